@@ -0,0 +1,427 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.Logger;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+import com.yahoo.flowetl.core.table.ColumnType;
+import com.yahoo.flowetl.core.table.OffHeapRows;
+import com.yahoo.flowetl.core.table.RowBatch;
+import com.yahoo.flowetl.core.table.RowWriter;
+
+/**
+ * Some database utility functions.
+ * 
+ * @author Joshua Harlow
+ */
+public class DbUtils
+{
+    /** The logger. */
+    private static final Logger logger = new Logger(DbUtils.class);
+
+    /** The fetch size used when streaming and none was given. */
+    public static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+
+    /**
+     * The fetch size that tells the mysql driver to stream rows one at a time
+     * (instead of reading the whole result into memory first).
+     */
+    public static final int MYSQL_STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+    private DbUtils() {
+        // a util class
+    }
+
+    /**
+     * Closes the given result set, the statement that made it and the
+     * connection of that statement (which for pooled connections gives it back
+     * to the pool) ignoring any errors.
+     * 
+     * @param rs
+     */
+    public static void closeAll(ResultSet rs) {
+        if (rs == null) {
+            return;
+        }
+        Statement st = null;
+        Connection con = null;
+        try {
+            st = rs.getStatement();
+            if (st != null) {
+                con = st.getConnection();
+            }
+        }
+        catch (SQLException e) {
+            if (logger.isEnabled(Level.WARN)) {
+                logger.log(Level.WARN, e, "Unable to find statement of result set " + rs);
+            }
+        }
+        try {
+            rs.close();
+        }
+        catch (SQLException e) {
+            if (logger.isEnabled(Level.WARN)) {
+                logger.log(Level.WARN, e, "Error closing result set");
+            }
+        }
+        closeAll(st, con);
+    }
+
+    /**
+     * Closes the given statement and connection (which for pooled connections
+     * gives it back to the pool) ignoring any errors, either can be null.
+     * 
+     * @param st
+     * @param con
+     */
+    public static void closeAll(Statement st, Connection con) {
+        if (st != null) {
+            try {
+                st.close();
+            }
+            catch (SQLException e) {
+                if (logger.isEnabled(Level.WARN)) {
+                    logger.log(Level.WARN, e, "Error closing statement");
+                }
+            }
+        }
+        if (con != null) {
+            try {
+                con.close();
+            }
+            catch (SQLException e) {
+                if (logger.isEnabled(Level.WARN)) {
+                    logger.log(Level.WARN, e, "Error closing connection");
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the fetch size to stream a forward only query with, the given one
+     * if given, otherwise the mysql streaming one if the connection is to mysql
+     * (its driver ignores any other fetch size and reads the whole result into
+     * memory first), otherwise the default.
+     * 
+     * @param con
+     * @param fetchSize
+     *            the fetch size asked for (or null if none)
+     * 
+     * @return the fetch size
+     * 
+     * @throws SQLException
+     */
+    public static int getFetchSize(Connection con, Integer fetchSize) throws SQLException {
+        if (fetchSize != null) {
+            return fetchSize;
+        }
+        String product = con.getMetaData().getDatabaseProductName();
+        if (StringUtils.containsIgnoreCase(product, "mysql")) {
+            return MYSQL_STREAMING_FETCH_SIZE;
+        }
+        return DEFAULT_STREAMING_FETCH_SIZE;
+    }
+
+    /**
+     * Gets the row batch column type that the given sql type is stored as
+     * (anything that is not a integer or a floating point number is stored as
+     * a string, this includes exact numerics and decimals which are kept as
+     * their text so that no precision is lost).
+     * 
+     * @param sqlType
+     *            the {@link Types} constant
+     * 
+     * @return the column type
+     */
+    public static ColumnType toColumnType(int sqlType) {
+        return toColumnType(sqlType, true);
+    }
+
+    /**
+     * Gets the row batch column type that the given sql type is stored as when
+     * it is signed or not (see {@link #toColumnType(int)}). Unsigned types are
+     * stored as the next wider type that holds all of their values, a
+     * unsigned integer as a long and a unsigned bigint as a string (it does
+     * not fit in any number type we store).
+     * 
+     * @param sqlType
+     *            the {@link Types} constant
+     * @param signed
+     *            whether the column is signed
+     * 
+     * @return the column type
+     */
+    public static ColumnType toColumnType(int sqlType, boolean signed) {
+        if (signed == false) {
+            switch (sqlType) {
+                case Types.INTEGER:
+                    return ColumnType.LONG;
+                case Types.BIGINT:
+                    return ColumnType.STRING;
+                default:
+                    break;
+            }
+        }
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return ColumnType.INT;
+            case Types.BIGINT:
+                return ColumnType.LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return ColumnType.DOUBLE;
+            default:
+                return ColumnType.STRING;
+        }
+    }
+
+    /**
+     * Reads the remaining rows of the given result set into a row batch (the
+     * result set is not closed).
+     * 
+     * @param rs
+     * 
+     * @return the row batch
+     * 
+     * @throws SQLException
+     */
+    public static RowBatch toRowBatch(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        ColumnType[] types = getColumnTypes(meta);
+        String[] names = getColumnNames(meta);
+        RowBatch.Builder builder = new RowBatch.Builder();
+        for (int i = 0; i < types.length; i++) {
+            builder.addColumn(names[i], types[i]);
+        }
+        readRows(rs, types, builder);
+        return builder.build();
+    }
+
+    /**
+     * Reads the remaining rows of the given result set into off heap rows (the
+     * result set is not closed). If reading fails the off heap rows are
+     * released before the failure is thrown.
+     * 
+     * @param rs
+     * 
+     * @return the off heap rows
+     * 
+     * @throws SQLException
+     */
+    public static OffHeapRows toOffHeapRows(ResultSet rs) throws SQLException {
+        return toOffHeapRows(rs, null);
+    }
+
+    /**
+     * Reads the remaining rows of the given result set into off heap rows
+     * which reserve their memory from the given budget (spilling to disk what
+     * does not fit). The result set is not closed. If reading fails the off
+     * heap rows are released before the failure is thrown.
+     * 
+     * @param rs
+     * @param budget
+     *            the memory budget (or null if not limited)
+     * 
+     * @return the off heap rows
+     * 
+     * @throws SQLException
+     */
+    public static OffHeapRows toOffHeapRows(ResultSet rs, MemoryBudget budget) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        ColumnType[] types = getColumnTypes(meta);
+        OffHeapRows rows = new OffHeapRows(getColumnNames(meta), types, OffHeapRows.DEFAULT_CHUNK_SIZE, budget);
+        boolean done = false;
+        try {
+            readRows(rs, types, rows);
+            done = true;
+        }
+        finally {
+            if (done == false) {
+                rows.release();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Puts the given result set into the given output in the form the given
+     * input asks for (see {@link ResultKeys}). Off heap rows and row batches
+     * are read right away and the result set (with its statement and
+     * connection) is closed so the connection goes back right away, a row
+     * iterator or the result set itself stay open until released (see
+     * {@link #releaseResult(BackedPipeResult, ResultKeys)}).
+     * 
+     * @param input
+     *            the input that asks for the form of the result
+     * @param out
+     *            the output to put it in
+     * @param rs
+     *            the result set (or null if none)
+     * @param keys
+     *            the keys of the pipe making the output
+     * @param budget
+     *            the memory budget off heap rows reserve from (or null if not
+     *            limited)
+     */
+    public static void setResult(PipeResult input, BackedPipeResult out, ResultSet rs, ResultKeys keys, MemoryBudget budget) {
+        if (rs != null && Boolean.TRUE.equals(keys.getOffHeapKey().get(input))) {
+            try {
+                keys.getOffHeapRowsKey().set(out, toOffHeapRows(rs, budget));
+            }
+            catch (SQLException e) {
+                throw new CoreException("Unable to read result set into off heap rows", e);
+            }
+            finally {
+                closeAll(rs);
+            }
+        }
+        else if (rs != null && Boolean.TRUE.equals(keys.getAsIteratorKey().get(input))) {
+            keys.getRowsKey().set(out, new ResultSetIterator(rs));
+        }
+        else if (rs != null && Boolean.TRUE.equals(keys.getAsBatchKey().get(input))) {
+            try {
+                keys.getRowBatchKey().set(out, toRowBatch(rs));
+            }
+            catch (SQLException e) {
+                throw new CoreException("Unable to read result set into a row batch", e);
+            }
+            finally {
+                closeAll(rs);
+            }
+        }
+        else {
+            keys.getResultSetKey().set(out, rs);
+        }
+    }
+
+    /**
+     * Releases what the given output made by {@link #setResult} holds on to,
+     * closing its result set or row iterator (and their statement and
+     * connection) and freeing its off heap rows. This is fine to call more
+     * than once.
+     * 
+     * @param out
+     * @param keys
+     *            the keys of the pipe that made the output
+     */
+    public static void releaseResult(BackedPipeResult out, ResultKeys keys) {
+        ResultSet rs = keys.getResultSetKey().get(out);
+        if (rs != null) {
+            keys.getResultSetKey().set(out, null);
+            closeAll(rs);
+        }
+        ResultSetIterator it = keys.getRowsKey().get(out);
+        if (it != null) {
+            keys.getRowsKey().set(out, null);
+            it.close();
+        }
+        OffHeapRows rows = keys.getOffHeapRowsKey().get(out);
+        if (rows != null) {
+            keys.getOffHeapRowsKey().set(out, null);
+            rows.release();
+        }
+    }
+
+    /**
+     * Reads the remaining rows of the given result set (whose columns are of
+     * the given types) into the given row writer.
+     */
+    private static void readRows(ResultSet rs, ColumnType[] types, RowWriter out) throws SQLException {
+        int am = types.length;
+        while (rs.next()) {
+            for (int i = 0; i < am; i++) {
+                int c = i + 1;
+                switch (types[i]) {
+                    case INT: {
+                        int v = rs.getInt(c);
+                        if (rs.wasNull() == false) {
+                            out.setInt(i, v);
+                        }
+                        break;
+                    }
+                    case LONG: {
+                        long v = rs.getLong(c);
+                        if (rs.wasNull() == false) {
+                            out.setLong(i, v);
+                        }
+                        break;
+                    }
+                    case DOUBLE: {
+                        double v = rs.getDouble(c);
+                        if (rs.wasNull() == false) {
+                            out.setDouble(i, v);
+                        }
+                        break;
+                    }
+                    default:
+                        out.setString(i, rs.getString(c));
+                        break;
+                }
+            }
+            out.endRow();
+        }
+    }
+
+    /**
+     * Gets the column types of the given result set meta data. A column is
+     * only taken as unsigned when its type name says so too (ie INT UNSIGNED
+     * on mysql) since some drivers (ie sqlite) say every column is unsigned.
+     */
+    private static ColumnType[] getColumnTypes(ResultSetMetaData meta) throws SQLException {
+        ColumnType[] types = new ColumnType[meta.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            int c = i + 1;
+            boolean signed = meta.isSigned(c) || StringUtils.containsIgnoreCase(meta.getColumnTypeName(c), "unsigned") == false;
+            types[i] = toColumnType(meta.getColumnType(c), signed);
+        }
+        return types;
+    }
+
+    /**
+     * Gets unique column names of the given result set meta data.
+     */
+    private static String[] getColumnNames(ResultSetMetaData meta) throws SQLException {
+        String[] names = new String[meta.getColumnCount()];
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < names.length; i++) {
+            String name = meta.getColumnLabel(i + 1);
+            if (seen.add(name) == false) {
+                // joins can have the same label more than once
+                name = name + "_" + (i + 1);
+                seen.add(name);
+            }
+            names[i] = name;
+        }
+        return names;
+    }
+}
@@ -0,0 +1,543 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.InputValidator;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
+import com.yahoo.flowetl.services.DatabaseService;
+
+/**
+ * A join done by this pipe instead of by a database, so the two sides can come
+ * from different databases (ie different shards). The rows of the build side
+ * (which should be the smaller side) are read into a hash table by their key
+ * and then the rows of the probe side are streamed past that table, each probe
+ * row is put into this pipes record channel joined with every build row that
+ * has the same key (as one object array of the probe columns followed by the
+ * build columns). If asked for, probe rows with no match are also put out
+ * (with nulls for the build columns).
+ * 
+ * The build side reserves its memory from the memory budget of the run (or
+ * the given memory limit). If it does not fit then both sides are split into
+ * partitions by the hash of their keys and written to spill files, each pair
+ * of partitions is then joined in turn (so only one build partition is in
+ * memory at a time).
+ * 
+ * @author Joshua Harlow
+ */
+public class HashJoinPipe extends StreamingPipe
+{
+    // innies required
+    public static final String IN_BUILD_DSN = makeParamName(HashJoinPipe.class, "builddsn", true);
+    public static final String IN_BUILD_SELECT = makeParamName(HashJoinPipe.class, "buildquery", true);
+    public static final String IN_BUILD_KEY = makeParamName(HashJoinPipe.class, "buildkey", true);
+    public static final String IN_PROBE_DSN = makeParamName(HashJoinPipe.class, "probedsn", true);
+    public static final String IN_PROBE_SELECT = makeParamName(HashJoinPipe.class, "probequery", true);
+    public static final String IN_PROBE_KEY = makeParamName(HashJoinPipe.class, "probekey", true);
+    public static final ParamKey<String> IN_BUILD_DSN_KEY = ParamKey.of(IN_BUILD_DSN, String.class);
+    public static final ParamKey<String> IN_BUILD_SELECT_KEY = ParamKey.of(IN_BUILD_SELECT, String.class);
+    public static final ParamKey<String> IN_BUILD_KEY_KEY = ParamKey.of(IN_BUILD_KEY, String.class);
+    public static final ParamKey<String> IN_PROBE_DSN_KEY = ParamKey.of(IN_PROBE_DSN, String.class);
+    public static final ParamKey<String> IN_PROBE_SELECT_KEY = ParamKey.of(IN_PROBE_SELECT, String.class);
+    public static final ParamKey<String> IN_PROBE_KEY_KEY = ParamKey.of(IN_PROBE_KEY, String.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_BUILD_DSN_KEY, IN_BUILD_SELECT_KEY, IN_BUILD_KEY_KEY, IN_PROBE_DSN_KEY,
+            IN_PROBE_SELECT_KEY, IN_PROBE_KEY_KEY);
+
+    // innies optional
+    public static final String IN_OUTER = makeParamName(HashJoinPipe.class, "outer", true);
+    public static final String IN_MEMORY_LIMIT = makeParamName(HashJoinPipe.class, "memorylimit", true);
+    public static final String IN_SPILL_PARTITIONS = makeParamName(HashJoinPipe.class, "spillpartitions", true);
+    public static final String IN_FETCH_SIZE = makeParamName(HashJoinPipe.class, "fetchsize", true);
+    public static final ParamKey<Boolean> IN_OUTER_KEY = ParamKey.of(IN_OUTER, Boolean.class);
+    public static final ParamKey<Long> IN_MEMORY_LIMIT_KEY = ParamKey.of(IN_MEMORY_LIMIT, Long.class);
+    public static final ParamKey<Integer> IN_SPILL_PARTITIONS_KEY = ParamKey.of(IN_SPILL_PARTITIONS, Integer.class);
+    public static final ParamKey<Integer> IN_FETCH_SIZE_KEY = ParamKey.of(IN_FETCH_SIZE, Integer.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_OUTER_KEY, IN_MEMORY_LIMIT_KEY, IN_SPILL_PARTITIONS_KEY, IN_FETCH_SIZE_KEY);
+
+    /** The number of spill partitions used when none is given. */
+    public static final int DEFAULT_SPILL_PARTITIONS = 16;
+
+    /** How many rows are written to a spill file between stream resets. */
+    private static final int RESET_EVERY = 1024;
+
+    /** The input validation class. */
+    private final InputValidator validator;
+
+    /** The db service. */
+    private final DatabaseService dbService;
+
+    /**
+     * The memory the build side may use, reserved from a budget or counted
+     * against a limit (or neither in which case it always fits).
+     */
+    private static class BuildMemory
+    {
+        private final MemoryBudget budget;
+        private final Long limit;
+        private long used;
+
+        private BuildMemory(MemoryBudget budget, Long limit) {
+            this.budget = budget;
+            this.limit = limit;
+            this.used = 0;
+        }
+
+        /**
+         * Takes the given bytes if they fit.
+         */
+        private boolean take(long bytes) {
+            if (limit != null) {
+                if (used + bytes > limit) {
+                    return false;
+                }
+            }
+            else if (budget != null && budget.tryReserve(bytes) == false) {
+                return false;
+            }
+            used += bytes;
+            return true;
+        }
+
+        /**
+         * Gives back all the bytes taken.
+         */
+        private void giveBack() {
+            if (limit == null && budget != null) {
+                budget.release(used);
+            }
+            used = 0;
+        }
+    }
+
+    /**
+     * The spill files of one side, rows go to the file of the partition of
+     * their key.
+     */
+    private static class SpillFiles
+    {
+        private final File[] files;
+        private final ObjectOutputStream[] outs;
+        private final int[] counts;
+
+        private SpillFiles(int partitions, File dir, String prefix) throws IOException {
+            this.files = new File[partitions];
+            this.outs = new ObjectOutputStream[partitions];
+            this.counts = new int[partitions];
+            try {
+                for (int i = 0; i < partitions; i++) {
+                    files[i] = File.createTempFile(prefix, ".spill", dir);
+                    outs[i] = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(files[i])));
+                }
+            }
+            catch (IOException e) {
+                delete();
+                throw e;
+            }
+        }
+
+        private void add(int partition, Object[] row) throws IOException {
+            ObjectOutputStream out = outs[partition];
+            out.writeObject(row);
+            counts[partition]++;
+            if (counts[partition] % RESET_EVERY == 0) {
+                // otherwise the stream remembers every row written
+                out.reset();
+            }
+        }
+
+        private void finish() throws IOException {
+            for (int i = 0; i < outs.length; i++) {
+                if (outs[i] != null) {
+                    outs[i].close();
+                    outs[i] = null;
+                }
+            }
+        }
+
+        private ObjectInputStream open(int partition) throws IOException {
+            return new ObjectInputStream(new BufferedInputStream(new FileInputStream(files[partition])));
+        }
+
+        private void delete() {
+            for (int i = 0; i < files.length; i++) {
+                if (outs[i] != null) {
+                    try {
+                        outs[i].close();
+                    }
+                    catch (IOException e) {
+                        // should be ok to ignore this...
+                    }
+                    outs[i] = null;
+                }
+                if (files[i] != null) {
+                    files[i].delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Instantiates a new hash join pipe.
+     * 
+     * @param name
+     * @param services
+     */
+    public HashJoinPipe(String name, ServiceRegistry services) {
+        super(name, services);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        dbService = getServiceRegistry().getService(DatabaseService.class);
+        if (dbService == null) {
+            throw new IllegalArgumentException(HashJoinPipe.class + " requires a database service to operate");
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /**
+     * Makes keys from different databases comparable (ie a int key from one
+     * and a long key from the other are equal). Integral keys become a long
+     * (or a big integer when they do not fit in one) and other numbers become
+     * a decimal without trailing zeros, numbers are never made a double since
+     * distinct keys could then become the same key.
+     * 
+     * @param key
+     * 
+     * @return the normalized key (or null if the key is null)
+     */
+    protected static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof BigInteger) {
+            return normalizeInteger((BigInteger) key);
+        }
+        if (key instanceof Double || key instanceof Float) {
+            double d = ((Number) key).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return d;
+            }
+            // the shortest decimal that is this value (so 0.1 is 0.1)
+            key = (key instanceof Float) ? new BigDecimal(key.toString()) : BigDecimal.valueOf(d);
+        }
+        if (key instanceof BigDecimal) {
+            BigDecimal dec = (BigDecimal) key;
+            if (dec.signum() == 0) {
+                return 0L;
+            }
+            dec = dec.stripTrailingZeros();
+            if (dec.scale() <= 0) {
+                return normalizeInteger(dec.toBigInteger());
+            }
+            return dec;
+        }
+        return key;
+    }
+
+    /**
+     * Makes the given integer a long if it fits in one.
+     */
+    private static Object normalizeInteger(BigInteger big) {
+        if (big.bitLength() < 64) {
+            return big.longValue();
+        }
+        return big;
+    }
+
+    /**
+     * Roughly estimates how many bytes the given row takes up in memory.
+     */
+    private static long estimateSize(Object[] row) {
+        // the array, its list entry and the map entry
+        long size = 64 + 8 * row.length;
+        for (Object o : row) {
+            if (o instanceof String) {
+                size += 40 + 2 * ((String) o).length();
+            }
+            else if (o instanceof byte[]) {
+                size += 16 + ((byte[]) o).length;
+            }
+            else if (o != null) {
+                size += 24;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the partition of the given (normalized) key.
+     */
+    private static int partitionOf(Object key, int partitions) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % partitions;
+    }
+
+    /**
+     * Runs the given query as a forward only query which streams its rows (see
+     * {@link DbUtils#getFetchSize(Connection, Integer)}).
+     */
+    private ResultSet query(String dsn, String sql, Integer fetchSize) {
+        if (getLogger().isEnabled(Level.INFO)) {
+            getLogger().log(Level.INFO, "Running query " + sql + " : " + dsn);
+        }
+        Connection con = dbService.getConnection(dsn);
+        PreparedStatement st = null;
+        try {
+            st = dbService.prepareStatement(dsn, con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(DbUtils.getFetchSize(con, fetchSize));
+            return st.executeQuery();
+        }
+        catch (SQLException e) {
+            DbUtils.closeAll(st, con);
+            throw new CoreException("Unable to run query " + sql + " on dsn " + dsn, e);
+        }
+    }
+
+    /**
+     * Gets the index of the given key column in the given result set.
+     */
+    private static int keyIndexOf(ResultSetMetaData meta, String column) throws SQLException {
+        for (int i = 0; i < meta.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(meta.getColumnLabel(i + 1))) {
+                return i;
+            }
+        }
+        throw new CoreException("Key column " + column + " is not selected");
+    }
+
+    /**
+     * Reads the current row of the given result set.
+     */
+    private static Object[] readRow(ResultSet rs, int am) throws SQLException {
+        Object[] row = new Object[am];
+        for (int i = 0; i < am; i++) {
+            row[i] = rs.getObject(i + 1);
+        }
+        return row;
+    }
+
+    /**
+     * Adds the given row to the given table under the given key.
+     */
+    private static void addRow(Map<Object, List<Object[]>> table, Object key, Object[] row) {
+        List<Object[]> rows = table.get(key);
+        if (rows == null) {
+            rows = new ArrayList<Object[]>(1);
+            table.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    /**
+     * Puts the given probe row joined with each of the given build rows into
+     * the given channel.
+     * 
+     * @return false if the channel was closed
+     */
+    private static boolean emit(RecordChannel<Object> out, Object[] probe, List<Object[]> matches, int buildColumns, boolean outer) {
+        if (matches == null || matches.isEmpty()) {
+            if (outer == false) {
+                return true;
+            }
+            Object[] joined = new Object[probe.length + buildColumns];
+            System.arraycopy(probe, 0, joined, 0, probe.length);
+            return out.put(joined);
+        }
+        for (Object[] build : matches) {
+            Object[] joined = new Object[probe.length + build.length];
+            System.arraycopy(probe, 0, joined, 0, probe.length);
+            System.arraycopy(build, 0, joined, probe.length, build.length);
+            if (out.put(joined) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.StreamingPipe#stream(java.util.Iterator,
+     * com.yahoo.flowetl.core.iterator.RecordChannel,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+        validator.checkInput(params);
+        boolean outer = Boolean.TRUE.equals(IN_OUTER_KEY.get(params));
+        Integer parts = IN_SPILL_PARTITIONS_KEY.get(params);
+        int partitions = parts == null ? DEFAULT_SPILL_PARTITIONS : parts.intValue();
+        if (partitions <= 0) {
+            throw new CoreException("The number of spill partitions must be greater than zero");
+        }
+        MemoryBudget budget = getMemoryBudget();
+        BuildMemory memory = new BuildMemory(budget, IN_MEMORY_LIMIT_KEY.get(params));
+        File spillDir = budget == null ? null : budget.getSpillDir();
+        Map<Object, List<Object[]>> table = new HashMap<Object, List<Object[]>>();
+        SpillFiles buildSpill = null;
+        SpillFiles probeSpill = null;
+        try {
+            // build
+            int buildColumns = 0;
+            int buildKey = 0;
+            int probeKey = 0;
+            ResultSet rs = query(IN_BUILD_DSN_KEY.get(params), IN_BUILD_SELECT_KEY.get(params), IN_FETCH_SIZE_KEY.get(params));
+            try {
+                ResultSetMetaData meta = rs.getMetaData();
+                buildColumns = meta.getColumnCount();
+                buildKey = keyIndexOf(meta, IN_BUILD_KEY_KEY.get(params));
+                while (rs.next()) {
+                    Object[] row = readRow(rs, buildColumns);
+                    Object key = normalizeKey(row[buildKey]);
+                    if (key == null) {
+                        // never matches anything
+                        continue;
+                    }
+                    if (buildSpill != null) {
+                        buildSpill.add(partitionOf(key, partitions), row);
+                        continue;
+                    }
+                    if (memory.take(estimateSize(row))) {
+                        addRow(table, key, row);
+                        continue;
+                    }
+                    // does not fit, move what is in memory to disk
+                    if (getLogger().isEnabled(Level.INFO)) {
+                        getLogger().log(Level.INFO, "Build side of " + getName() + " does not fit in memory, spilling to " + partitions + " partitions");
+                    }
+                    buildSpill = new SpillFiles(partitions, spillDir, "build-");
+                    for (Map.Entry<Object, List<Object[]>> e : table.entrySet()) {
+                        int p = partitionOf(e.getKey(), partitions);
+                        for (Object[] inMem : e.getValue()) {
+                            buildSpill.add(p, inMem);
+                        }
+                    }
+                    table.clear();
+                    memory.giveBack();
+                    buildSpill.add(partitionOf(key, partitions), row);
+                }
+            }
+            finally {
+                DbUtils.closeAll(rs);
+            }
+            setPercentDone(0.5f);
+            // probe
+            rs = query(IN_PROBE_DSN_KEY.get(params), IN_PROBE_SELECT_KEY.get(params), IN_FETCH_SIZE_KEY.get(params));
+            if (buildSpill != null) {
+                buildSpill.finish();
+                probeSpill = new SpillFiles(partitions, spillDir, "probe-");
+            }
+            try {
+                ResultSetMetaData meta = rs.getMetaData();
+                int am = meta.getColumnCount();
+                probeKey = keyIndexOf(meta, IN_PROBE_KEY_KEY.get(params));
+                while (rs.next()) {
+                    Object[] row = readRow(rs, am);
+                    Object key = normalizeKey(row[probeKey]);
+                    if (key == null) {
+                        if (outer && emit(out, row, null, buildColumns, true) == false) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (probeSpill != null) {
+                        probeSpill.add(partitionOf(key, partitions), row);
+                    }
+                    else if (emit(out, row, table.get(key), buildColumns, outer) == false) {
+                        return;
+                    }
+                }
+            }
+            finally {
+                DbUtils.closeAll(rs);
+            }
+            if (probeSpill == null) {
+                return;
+            }
+            // join each spilled partition in turn
+            probeSpill.finish();
+            for (int p = 0; p < partitions; p++) {
+                table.clear();
+                ObjectInputStream in = buildSpill.open(p);
+                try {
+                    for (int i = 0; i < buildSpill.counts[p]; i++) {
+                        Object[] row = (Object[]) in.readObject();
+                        addRow(table, normalizeKey(row[buildKey]), row);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                in = probeSpill.open(p);
+                try {
+                    for (int i = 0; i < probeSpill.counts[p]; i++) {
+                        Object[] row = (Object[]) in.readObject();
+                        if (emit(out, row, table.get(normalizeKey(row[probeKey])), buildColumns, outer) == false) {
+                            return;
+                        }
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                setPercentDone(0.5f + (0.5f * (p + 1)) / partitions);
+            }
+        }
+        finally {
+            table.clear();
+            memory.giveBack();
+            if (buildSpill != null) {
+                buildSpill.delete();
+            }
+            if (probeSpill != null) {
+                probeSpill.delete();
+            }
+        }
+    }
+}
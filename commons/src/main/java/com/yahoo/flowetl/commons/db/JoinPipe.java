@@ -11,11 +11,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.apache.commons.lang.StringUtils;
@@ -24,10 +23,15 @@ import com.yahoo.flowetl.core.CoreException;
 import com.yahoo.flowetl.core.InputValidator;
 import com.yahoo.flowetl.core.Logger.Level;
 import com.yahoo.flowetl.core.pipe.AbstractPipe;
+import com.yahoo.flowetl.core.pipe.ParamKey;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.Releasable;
 import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
-import com.yahoo.flowetl.core.validator.MapInputValidator;
+import com.yahoo.flowetl.core.table.OffHeapRows;
+import com.yahoo.flowetl.core.table.RowBatch;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
 import com.yahoo.flowetl.services.DatabaseService;
 
 /**
@@ -44,25 +48,61 @@ public class JoinPipe extends AbstractPipe
     // innies required
     public static final String IN_DSN = makeParamName(JoinPipe.class, "dsn", true);
     public static final String IN_JOIN = makeParamName(JoinPipe.class, "join", true);
-    private static final Map<String, Class<?>> REQUIRED_PARAMS = new TreeMap<String, Class<?>>();
-    static {
-        REQUIRED_PARAMS.put(IN_JOIN, Join.class);
-        REQUIRED_PARAMS.put(IN_DSN, String.class);
-    }
+    public static final ParamKey<String> IN_DSN_KEY = ParamKey.of(IN_DSN, String.class);
+    public static final ParamKey<Join> IN_JOIN_KEY = ParamKey.of(IN_JOIN, Join.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_JOIN_KEY, IN_DSN_KEY);
+
+    // innies optional
+    public static final String IN_AS_BATCH = makeParamName(JoinPipe.class, "asbatch", true);
+    public static final ParamKey<Boolean> IN_AS_BATCH_KEY = ParamKey.of(IN_AS_BATCH, Boolean.class);
+    public static final String IN_OFF_HEAP = makeParamName(JoinPipe.class, "offheap", true);
+    public static final ParamKey<Boolean> IN_OFF_HEAP_KEY = ParamKey.of(IN_OFF_HEAP, Boolean.class);
+    public static final String IN_AS_ITERATOR = makeParamName(JoinPipe.class, "asiterator", true);
+    public static final ParamKey<Boolean> IN_AS_ITERATOR_KEY = ParamKey.of(IN_AS_ITERATOR, Boolean.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_AS_BATCH_KEY, IN_OFF_HEAP_KEY, IN_AS_ITERATOR_KEY);
 
     // outties
     public static final String OUT_RESULT_SET = makeParamName(JoinPipe.class, "resultset", false);
+    public static final ParamKey<ResultSet> OUT_RESULT_SET_KEY = ParamKey.of(OUT_RESULT_SET, ResultSet.class);
+    public static final String OUT_ROW_BATCH = makeParamName(JoinPipe.class, "rowbatch", false);
+    public static final ParamKey<RowBatch> OUT_ROW_BATCH_KEY = ParamKey.of(OUT_ROW_BATCH, RowBatch.class);
+    public static final String OUT_OFF_HEAP_ROWS = makeParamName(JoinPipe.class, "offheaprows", false);
+    public static final ParamKey<OffHeapRows> OUT_OFF_HEAP_ROWS_KEY = ParamKey.of(OUT_OFF_HEAP_ROWS, OffHeapRows.class);
+    public static final String OUT_ROWS = makeParamName(JoinPipe.class, "rows", false);
+    public static final ParamKey<ResultSetIterator> OUT_ROWS_KEY = ParamKey.of(OUT_ROWS, ResultSetIterator.class);
+    private static final List<ParamKey<?>> OUTPUT_PARAMS = ParamKey.listOf(OUT_RESULT_SET_KEY, OUT_ROW_BATCH_KEY, OUT_OFF_HEAP_ROWS_KEY, OUT_ROWS_KEY);
+    private static final ResultKeys RESULT_KEYS = new ResultKeys(IN_OFF_HEAP_KEY, IN_AS_ITERATOR_KEY, IN_AS_BATCH_KEY, OUT_RESULT_SET_KEY, OUT_OFF_HEAP_ROWS_KEY, OUT_ROWS_KEY, OUT_ROW_BATCH_KEY);
 
     // the output result class
-    // that allows u to extract the result set without doing anything special
-    public static class Result extends BackedPipeResult
+    // that allows u to extract the result set (or the row batch, off heap
+    // rows or row iterator if those were asked for) without doing anything
+    // special and which closes that result set or row iterator (and its
+    // statement and connection) or frees those off heap rows when released
+    public static class Result extends BackedPipeResult implements Releasable
     {
         public Result() {
             super();
         }
 
         public ResultSet getResultSet() {
-            return getParam(OUT_RESULT_SET);
+            return OUT_RESULT_SET_KEY.get(this);
+        }
+
+        public RowBatch getRowBatch() {
+            return OUT_ROW_BATCH_KEY.get(this);
+        }
+
+        public OffHeapRows getOffHeapRows() {
+            return OUT_OFF_HEAP_ROWS_KEY.get(this);
+        }
+
+        public ResultSetIterator getRows() {
+            return OUT_ROWS_KEY.get(this);
+        }
+
+        @Override
+        public void release() {
+            DbUtils.releaseResult(this, RESULT_KEYS);
         }
     }
 
@@ -75,7 +115,7 @@ public class JoinPipe extends AbstractPipe
         // the join type
         public static enum Type
         {
-            LEFT, RIGHT
+            INNER, LEFT, RIGHT
         }
 
         /** The fields that we will be selecting on (if empty * will be used) */
@@ -175,8 +215,83 @@ public class JoinPipe extends AbstractPipe
             return tableName;
         }
 
+        /**
+         * Copies this join (and the joins it joins with).
+         * 
+         * @return the copy
+         */
+        public Join copy() {
+            Join copy = new Join(dbName, tableName, joinType);
+            copy.fields.addAll(fields);
+            for (Entry<String, Join> e : joinWith.entrySet()) {
+                copy.joinWith.put(e.getKey(), e.getValue() == null ? null : e.getValue().copy());
+            }
+            return copy;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((dbName == null) ? 0 : dbName.hashCode());
+            result = prime * result + ((tableName == null) ? 0 : tableName.hashCode());
+            result = prime * result + ((joinType == null) ? 0 : joinType.hashCode());
+            result = prime * result + fields.hashCode();
+            result = prime * result + joinWith.hashCode();
+            return result;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Join other = (Join) obj;
+            if (dbName == null) {
+                if (other.dbName != null)
+                    return false;
+            }
+            else if (!dbName.equals(other.dbName))
+                return false;
+            if (tableName == null) {
+                if (other.tableName != null)
+                    return false;
+            }
+            else if (!tableName.equals(other.tableName))
+                return false;
+            if (joinType != other.joinType)
+                return false;
+            return fields.equals(other.fields) && joinWith.equals(other.joinWith);
+        }
+
     }
 
+    /** The most joins kept compiled. */
+    public static final int MAX_COMPILED = 128;
+
+    /** The sql of the recently compiled joins (keyed by their structure). */
+    @SuppressWarnings("serial")
+    private static final Map<Join, String> COMPILED = new LinkedHashMap<Join, String>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Join, String> eldest) {
+            return size() > MAX_COMPILED;
+        }
+    };
+
     /** The db service for looking up database connections. */
     private final DatabaseService dbService;
 
@@ -195,7 +310,7 @@ public class JoinPipe extends AbstractPipe
         if (dbService == null) {
             throw new IllegalArgumentException(JoinPipe.class + " can not operate without a database service");
         }
-        validator = new MapInputValidator(REQUIRED_PARAMS, null);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
     }
 
     /**
@@ -212,6 +327,33 @@ public class JoinPipe extends AbstractPipe
         return StringUtils.join(new Object[] { dbName, tableName, fieldName }, ".");
     }
 
+    /**
+     * Gets the sql of the given join, making it only if a join with the same
+     * structure has not been made into sql recently.
+     * 
+     * @param start
+     * 
+     * @throws IllegalArgumentException
+     *             if the input join is not valid
+     * 
+     * @return the sql
+     */
+    protected static String compile(Join start) {
+        synchronized (COMPILED) {
+            String compiled = COMPILED.get(start);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        String compiled = makeSql(start);
+        synchronized (COMPILED) {
+            // keyed by a copy so that changing the given join later
+            // can not change what the compiled sql is found under
+            COMPILED.put(start.copy(), compiled);
+        }
+        return compiled;
+    }
+
     /**
      * Makes the sql that represents the given join.
      * 
@@ -222,15 +364,16 @@ public class JoinPipe extends AbstractPipe
      * 
      * @return the string
      */
-    private String makeSql(Join start) {
+    private static String makeSql(Join start) {
         if (StringUtils.isEmpty(start.getDbName())) {
             throw new IllegalArgumentException("Attempt to make a join without any start database to join on");
         }
         if (StringUtils.isEmpty(start.getTableName())) {
             throw new IllegalArgumentException("Attempt to make a join without any start database table name to join on");
         }
-        List<String> tmpList = new LinkedList<String>();
-        StringBuilder tmpBuilder = new StringBuilder();
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+        int fieldsAm = 0;
         for (Field f : start.getFields()) {
             if (f == null) {
                 continue;
@@ -239,22 +382,19 @@ public class JoinPipe extends AbstractPipe
             if (StringUtils.isEmpty(name)) {
                 continue;
             }
-            tmpBuilder.append(name);
+            if (fieldsAm > 0) {
+                sql.append(", ");
+            }
+            sql.append(name);
             if (StringUtils.isEmpty(f.getRename()) == false) {
-                tmpBuilder.append(" AS ");
-                tmpBuilder.append(f.getRename());
+                sql.append(" AS ");
+                sql.append(f.getRename());
             }
-            tmpList.add(tmpBuilder.toString());
-            tmpBuilder.setLength(0);
+            fieldsAm++;
         }
-        StringBuilder sql = new StringBuilder();
-        sql.append("SELECT ");
-        if (tmpList.isEmpty()) {
+        if (fieldsAm == 0) {
             sql.append(" * ");
         }
-        else {
-            sql.append(StringUtils.join(tmpList, ", "));
-        }
         sql.append(" FROM ");
         sql.append(start.getDbName());
         sql.append(" ");
@@ -266,8 +406,8 @@ public class JoinPipe extends AbstractPipe
         }
         sql.append(" JOIN ");
         Set<String> dbNames = new HashSet<String>();
-        for (Entry<String, Join> joinMe : start.getJoinWith().entrySet()) {
-            String thereDbName = joinMe.getValue().getDbName();
+        for (Join joinMe : start.getJoinWith().values()) {
+            String thereDbName = joinMe.getDbName();
             if (StringUtils.isEmpty(thereDbName)) {
                 continue;
             }
@@ -278,12 +418,18 @@ public class JoinPipe extends AbstractPipe
             throw new IllegalArgumentException("Attempt to make a join without any db names to join on");
         }
         sql.append(" (");
-        sql.append(StringUtils.join(dbNames, ", "));
+        int am = 0;
+        for (String dbName : dbNames) {
+            if (am++ > 0) {
+                sql.append(", ");
+            }
+            sql.append(dbName);
+        }
         sql.append(") ");
-        tmpList.clear();
         String myName = start.getDbName();
         String myTable = start.getTableName();
-        tmpBuilder.setLength(0);
+        sql.append(" ON (");
+        am = 0;
         for (Entry<String, Join> joinMe : start.getJoinWith().entrySet()) {
             String sharedField = joinMe.getKey();
             String thereDbName = joinMe.getValue().getDbName();
@@ -291,18 +437,17 @@ public class JoinPipe extends AbstractPipe
             if (StringUtils.isEmpty(thereTableName) || StringUtils.isEmpty(thereDbName) || StringUtils.isEmpty(sharedField)) {
                 continue;
             }
-            tmpBuilder.append(makeDbField(myName, myTable, sharedField));
-            tmpBuilder.append("=");
-            tmpBuilder.append(makeDbField(thereDbName, thereTableName, sharedField));
-            tmpList.add(tmpBuilder.toString());
-            tmpBuilder.setLength(0);
+            if (am++ > 0) {
+                sql.append(" AND ");
+            }
+            sql.append(makeDbField(myName, myTable, sharedField));
+            sql.append("=");
+            sql.append(makeDbField(thereDbName, thereTableName, sharedField));
         }
-        if (tmpList.isEmpty()) {
+        if (am == 0) {
             // not really a join...
             throw new IllegalArgumentException("Attempt to make a join without any fields to join on");
         }
-        sql.append(" ON (");
-        sql.append(StringUtils.join(tmpList, " AND "));
         sql.append(")");
         return sql.toString();
     }
@@ -320,6 +465,62 @@ public class JoinPipe extends AbstractPipe
         return 1;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.AbstractPipe#isReusable(com.yahoo.flowetl
+     * .core.pipe.PipeResult)
+     */
+    @Override
+    public boolean isReusable(PipeResult output) {
+        // a result set can only be iterated once
+        // but a row batch can be read many times
+        if (output instanceof Result) {
+            Result res = (Result) output;
+            return res.getResultSet() == null && res.getRowBatch() != null;
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.AbstractPipe#copyOutput(com.yahoo.flowetl
+     * .core.pipe.PipeResult)
+     */
+    @Override
+    protected PipeResult copyOutput(PipeResult output) {
+        if (isReusable(output) == false) {
+            return null;
+        }
+        // a row batch can not be changed so the copies can share it
+        Result copy = new Result();
+        copy.merge(output);
+        return copy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getDeclaredOutputs()
+     */
+    @Override
+    public List<ParamKey<?>> getDeclaredOutputs() {
+        return OUTPUT_PARAMS;
+    }
+
     /**
      * Executes the join string with the given dsn.
      * 
@@ -332,15 +533,17 @@ public class JoinPipe extends AbstractPipe
         Connection dbConnector = dbService.getConnection(dsn);
         PreparedStatement call = null;
         try {
-            call = dbConnector.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            call = dbService.prepareStatement(dsn, dbConnector, sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
         }
         catch (SQLException e) {
+            DbUtils.closeAll(null, dbConnector);
             throw new CoreException("Unable to prepare statement for query " + sql, e);
         }
         try {
             return call.executeQuery();
         }
         catch (SQLException e) {
+            DbUtils.closeAll(call, dbConnector);
             throw new CoreException("Unable to execute prepared statement " + call, e);
         }
     }
@@ -352,17 +555,17 @@ public class JoinPipe extends AbstractPipe
      */
     @Override
     protected PipeResult makeOutput(List<PipeResult> collectedInputs) {
-        BackedPipeResult merged = new BackedPipeResult(collectedInputs);
+        MergedPipeResult merged = new MergedPipeResult(collectedInputs);
         validator.checkInput(merged);
-        String dsn = merged.getParam(IN_DSN);
-        Join start = merged.getParam(IN_JOIN);
+        String dsn = IN_DSN_KEY.get(merged);
+        Join start = IN_JOIN_KEY.get(merged);
         Result out = new Result();
-        String sql = makeSql(start);
+        String sql = compile(start);
         if (getLogger().isEnabled(Level.INFO)) {
             getLogger().log(Level.INFO, "Running query " + sql + " on dsn " + dsn);
         }
         ResultSet rs = executeJoin(dsn, sql);
-        out.setParam(OUT_RESULT_SET, rs);
+        DbUtils.setResult(merged, out, rs, RESULT_KEYS, getMemoryBudget());
         return out;
     }
 
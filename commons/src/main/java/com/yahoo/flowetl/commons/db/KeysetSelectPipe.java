@@ -0,0 +1,500 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.ObjectUtils;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.InputValidator;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.pipe.PipeContext;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.runner.ThreadPerPipeExecutor;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
+import com.yahoo.flowetl.services.DatabaseService;
+import com.yahoo.flowetl.services.MemoryService;
+
+/**
+ * A select pipe which reads its query a page at a time ordered by a key column
+ * (each page starts after the last key of the page before it) and remembers
+ * the last key it read (its high water mark) so that the next run only reads
+ * the rows that were added since. While the rows of a page are being put into
+ * this pipes record channel the next page is already being fetched.
+ * 
+ * The key column must be unique, if it is not a tiebreaker column (which
+ * together with the key column is unique) must be given and the pages are
+ * then ordered by (and start after) the key and the tiebreaker. Each page is
+ * fetched with one extra row so that a key (or key and tiebreaker) which is
+ * repeated across the end of a page is noticed, that fails the run instead of
+ * silently skipping the rows after the end of the page.
+ * 
+ * The high water mark is kept in the memory service under the given state key
+ * (the pipe name by default), or in the given state file so that it survives
+ * restarts. It is only moved once the run that read the rows has completed
+ * (so the pipes that used them have succeeded), a run that fails or is
+ * stopped early leaves it where it was (so rows may be read again but are
+ * never skipped). When not ran by a runner there is no run to wait for and it
+ * is moved as soon as every new row has been put into the channel.
+ * 
+ * @author Joshua Harlow
+ */
+public class KeysetSelectPipe extends StreamingPipe
+{
+    // innies required
+    public static final String IN_DSN = makeParamName(KeysetSelectPipe.class, "dsn", true);
+    public static final String IN_SELECT = makeParamName(KeysetSelectPipe.class, "query", true);
+    public static final String IN_KEY_COLUMN = makeParamName(KeysetSelectPipe.class, "keycolumn", true);
+    public static final ParamKey<String> IN_DSN_KEY = ParamKey.of(IN_DSN, String.class);
+    public static final ParamKey<String> IN_SELECT_KEY = ParamKey.of(IN_SELECT, String.class);
+    public static final ParamKey<String> IN_KEY_COLUMN_KEY = ParamKey.of(IN_KEY_COLUMN, String.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_SELECT_KEY, IN_DSN_KEY, IN_KEY_COLUMN_KEY);
+
+    // innies optional
+    public static final String IN_SELECT_PARAMS = makeParamName(KeysetSelectPipe.class, "queryparams", true);
+    public static final String IN_PAGE_SIZE = makeParamName(KeysetSelectPipe.class, "pagesize", true);
+    public static final String IN_STATE_KEY = makeParamName(KeysetSelectPipe.class, "statekey", true);
+    public static final String IN_STATE_FILE = makeParamName(KeysetSelectPipe.class, "statefile", true);
+    public static final String IN_TIEBREAK_COLUMN = makeParamName(KeysetSelectPipe.class, "tiebreakcolumn", true);
+    @SuppressWarnings("rawtypes")
+    public static final ParamKey<List> IN_SELECT_PARAMS_KEY = ParamKey.of(IN_SELECT_PARAMS, List.class);
+    public static final ParamKey<Integer> IN_PAGE_SIZE_KEY = ParamKey.of(IN_PAGE_SIZE, Integer.class);
+    public static final ParamKey<String> IN_STATE_KEY_KEY = ParamKey.of(IN_STATE_KEY, String.class);
+    public static final ParamKey<String> IN_STATE_FILE_KEY = ParamKey.of(IN_STATE_FILE, String.class);
+    public static final ParamKey<String> IN_TIEBREAK_COLUMN_KEY = ParamKey.of(IN_TIEBREAK_COLUMN, String.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_SELECT_PARAMS_KEY, IN_PAGE_SIZE_KEY, IN_STATE_KEY_KEY, IN_STATE_FILE_KEY, IN_TIEBREAK_COLUMN_KEY);
+
+    /** The page size used when none is given. */
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+
+    /** What the high water marks are prefixed with in the memory service. */
+    private static final String STATE_PREFIX = "keyset-mark:";
+
+    /** The executor that fetches the next pages (a thread per fetch). */
+    private static final ExecutorService PAGE_EXECUTOR = new ThreadPerPipeExecutor("keyset");
+
+    /** The input validation class. */
+    private final InputValidator validator;
+
+    /** The db service. */
+    private final DatabaseService dbService;
+
+    /** The memory service (or null if none). */
+    private final MemoryService memService;
+
+    /**
+     * A fetched page of rows.
+     */
+    private static class Page
+    {
+        /** The rows of the page. */
+        private final List<Object[]> rows;
+
+        /** The index of the key column. */
+        private final int keyIndex;
+
+        /** The index of the tiebreaker column (or -1 if none). */
+        private final int tieIndex;
+
+        /** Whether there are rows after this page. */
+        private final boolean more;
+
+        private Page(List<Object[]> rows, int keyIndex, int tieIndex, boolean more) {
+            this.rows = rows;
+            this.keyIndex = keyIndex;
+            this.tieIndex = tieIndex;
+            this.more = more;
+        }
+
+        /**
+         * Gets the mark of the last row of this page.
+         */
+        private Object getLastMark() {
+            return makeMark(rows.get(rows.size() - 1), keyIndex, tieIndex);
+        }
+    }
+
+    /**
+     * Instantiates a new keyset select pipe.
+     * 
+     * @param name
+     * @param services
+     */
+    public KeysetSelectPipe(String name, ServiceRegistry services) {
+        super(name, services);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        dbService = getServiceRegistry().getService(DatabaseService.class);
+        if (dbService == null) {
+            throw new IllegalArgumentException(KeysetSelectPipe.class + " requires a database service to operate");
+        }
+        memService = getServiceRegistry().getService(MemoryService.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /**
+     * Gets the key the high water mark is kept under.
+     */
+    private String getStateKey(PipeResult params) {
+        String key = IN_STATE_KEY_KEY.get(params);
+        if (key == null) {
+            key = getName();
+        }
+        return STATE_PREFIX + key;
+    }
+
+    /**
+     * Loads the high water mark of the last run.
+     * 
+     * @param params
+     * 
+     * @return the high water mark (or null if none)
+     */
+    protected Object loadMark(PipeResult params) {
+        String stateFile = IN_STATE_FILE_KEY.get(params);
+        if (stateFile != null) {
+            File f = new File(stateFile);
+            if (f.exists() == false) {
+                return null;
+            }
+            ObjectInputStream in = null;
+            try {
+                in = new ObjectInputStream(new FileInputStream(f));
+                return in.readObject();
+            }
+            catch (Exception e) {
+                throw new CoreException("Unable to read the high water mark from " + f, e);
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        // should be ok to ignore this...
+                    }
+                }
+            }
+        }
+        if (memService != null) {
+            return memService.getObject(getStateKey(params));
+        }
+        return null;
+    }
+
+    /**
+     * Saves the high water mark for the next run.
+     * 
+     * @param params
+     * @param mark
+     */
+    protected void saveMark(PipeResult params, Object mark) {
+        String stateFile = IN_STATE_FILE_KEY.get(params);
+        if (stateFile != null) {
+            File f = new File(stateFile);
+            File tmp = new File(f.getPath() + ".tmp");
+            ObjectOutputStream out = null;
+            try {
+                out = new ObjectOutputStream(new FileOutputStream(tmp));
+                out.writeObject(mark);
+                out.close();
+                out = null;
+                // replace it whole so a crash never leaves half a mark
+                if (tmp.renameTo(f) == false) {
+                    f.delete();
+                    if (tmp.renameTo(f) == false) {
+                        throw new IOException("Unable to rename " + tmp + " to " + f);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new CoreException("Unable to save the high water mark to " + f, e);
+            }
+            finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    }
+                    catch (IOException e) {
+                        // should be ok to ignore this...
+                    }
+                }
+            }
+            return;
+        }
+        if (memService != null) {
+            memService.putObject(getStateKey(params), mark);
+        }
+        else if (getLogger().isEnabled(Level.WARN)) {
+            getLogger().log(Level.WARN, "No state file or memory service, the high water mark of " + getName() + " will not be kept");
+        }
+    }
+
+    /**
+     * Makes the mark of the given row, the key (or a list of the key and the
+     * tiebreaker when there is a tiebreaker).
+     */
+    private static Object makeMark(Object[] row, int keyIndex, int tieIndex) {
+        if (tieIndex == -1) {
+            return row[keyIndex];
+        }
+        List<Object> mark = new ArrayList<Object>(2);
+        mark.add(row[keyIndex]);
+        mark.add(row[tieIndex]);
+        return mark;
+    }
+
+    /**
+     * Checks if the given mark has a tiebreaker (marks saved before a
+     * tiebreaker was given only have a key).
+     */
+    private static boolean isTupleMark(PipeResult params, Object mark) {
+        return IN_TIEBREAK_COLUMN_KEY.get(params) != null && mark instanceof List && ((List<?>) mark).size() == 2;
+    }
+
+    /**
+     * Makes the query of the page after the given mark (with one extra row to
+     * tell if there are more rows and if the page ends in the middle of a
+     * repeated key).
+     */
+    private static String makeSql(PipeResult params, Object mark, int pageSize) {
+        String column = IN_KEY_COLUMN_KEY.get(params);
+        String tie = IN_TIEBREAK_COLUMN_KEY.get(params);
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT * FROM (" + IN_SELECT_KEY.get(params) + ") page");
+        if (mark != null) {
+            if (isTupleMark(params, mark)) {
+                sql.append(" WHERE (" + column + " > ? OR (" + column + " = ? AND " + tie + " > ?))");
+            }
+            else {
+                sql.append(" WHERE " + column + " > ?");
+            }
+        }
+        sql.append(" ORDER BY " + column);
+        if (tie != null) {
+            sql.append(", " + tie);
+        }
+        sql.append(" LIMIT " + (pageSize + 1));
+        return sql.toString();
+    }
+
+    /**
+     * Finds the index of the given column in the given result set.
+     */
+    private static int findColumn(ResultSetMetaData meta, String column, PipeResult params) throws SQLException {
+        for (int i = 0; i < meta.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(meta.getColumnLabel(i + 1))) {
+                return i;
+            }
+        }
+        throw new CoreException("Column " + column + " is not selected by " + IN_SELECT_KEY.get(params));
+    }
+
+    /**
+     * Fetches the page after the given mark.
+     * 
+     * @return the page (with no rows if there are no more)
+     */
+    private Page fetchPage(PipeResult params, Object mark, int pageSize) throws SQLException {
+        String sql = makeSql(params, mark, pageSize);
+        if (getLogger().isEnabled(Level.DEBUG)) {
+            getLogger().log(Level.DEBUG, "Fetching page after " + mark + " using " + sql);
+        }
+        Connection con = dbService.getConnection(IN_DSN_KEY.get(params));
+        PreparedStatement st = null;
+        try {
+            st = dbService.prepareStatement(IN_DSN_KEY.get(params), con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(pageSize);
+            int at = 1;
+            List<?> pParams = IN_SELECT_PARAMS_KEY.get(params);
+            if (pParams != null) {
+                for (Object o : pParams) {
+                    st.setObject(at++, o);
+                }
+            }
+            if (mark != null) {
+                if (isTupleMark(params, mark)) {
+                    List<?> tuple = (List<?>) mark;
+                    st.setObject(at++, tuple.get(0));
+                    st.setObject(at++, tuple.get(0));
+                    st.setObject(at++, tuple.get(1));
+                }
+                else {
+                    st.setObject(at++, mark);
+                }
+            }
+            ResultSet rs = st.executeQuery();
+            try {
+                ResultSetMetaData meta = rs.getMetaData();
+                int am = meta.getColumnCount();
+                int keyIndex = findColumn(meta, IN_KEY_COLUMN_KEY.get(params), params);
+                int tieIndex = -1;
+                String tie = IN_TIEBREAK_COLUMN_KEY.get(params);
+                if (tie != null) {
+                    tieIndex = findColumn(meta, tie, params);
+                }
+                List<Object[]> rows = new ArrayList<Object[]>();
+                while (rs.next()) {
+                    Object[] row = new Object[am];
+                    for (int i = 0; i < am; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+                boolean more = false;
+                if (rows.size() > pageSize) {
+                    // the extra row is read again as the start of the next
+                    // page, which only works if it is after the end of this
+                    Object[] extra = rows.remove(pageSize);
+                    Object last = makeMark(rows.get(pageSize - 1), keyIndex, tieIndex);
+                    if (ObjectUtils.equals(last, makeMark(extra, keyIndex, tieIndex))) {
+                        throw new CoreException("Key " + last + " of " + getName() + " is repeated across the end of a page, the key column must be unique (or a tiebreaker column must be given)");
+                    }
+                    more = true;
+                }
+                return new Page(rows, keyIndex, tieIndex, more);
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            DbUtils.closeAll(st, con);
+        }
+    }
+
+    /**
+     * Starts fetching the page after the given mark in the background.
+     */
+    private Future<Page> prefetch(final PipeResult params, final Object mark, final int pageSize) {
+        return PAGE_EXECUTOR.submit(new Callable<Page>()
+        {
+            @Override
+            public Page call() throws Exception {
+                return fetchPage(params, mark, pageSize);
+            }
+        });
+    }
+
+    /**
+     * Waits for the given page to be fetched.
+     */
+    private Page await(Future<Page> page) throws Exception {
+        try {
+            return page.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new CoreException("Unable to fetch page", cause);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.StreamingPipe#stream(java.util.Iterator,
+     * com.yahoo.flowetl.core.iterator.RecordChannel,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    protected void stream(Iterator<Object> records, RecordChannel<Object> out, final PipeResult params) throws Exception {
+        validator.checkInput(params);
+        Integer size = IN_PAGE_SIZE_KEY.get(params);
+        int pageSize = size == null ? DEFAULT_PAGE_SIZE : size.intValue();
+        if (pageSize <= 0) {
+            throw new CoreException("The page size must be greater than zero");
+        }
+        Object mark = loadMark(params);
+        if (getLogger().isEnabled(Level.INFO)) {
+            getLogger().log(Level.INFO, "Extracting rows of " + getName() + " after " + mark);
+        }
+        Page page = fetchPage(params, mark, pageSize);
+        long total = 0;
+        while (page.rows.isEmpty() == false) {
+            // get the next page while this one is put out
+            Future<Page> next = null;
+            if (page.more) {
+                next = prefetch(params, page.getLastMark(), pageSize);
+            }
+            for (Object[] row : page.rows) {
+                if (out.put(row) == false) {
+                    // nobody wants more, since what was put out may not have
+                    // been used the mark is left where it was
+                    if (next != null) {
+                        next.cancel(true);
+                    }
+                    return;
+                }
+                total++;
+            }
+            mark = page.getLastMark();
+            if (next == null) {
+                break;
+            }
+            page = await(next);
+        }
+        if (getLogger().isEnabled(Level.INFO)) {
+            getLogger().log(Level.INFO, "Extracted " + total + " rows of " + getName() + " up to " + mark);
+        }
+        if (mark == null || total == 0) {
+            return;
+        }
+        PipeContext context = getActiveContext();
+        if (context == null) {
+            saveMark(params, mark);
+            return;
+        }
+        // the rows were only put out, wait for the run to succeed
+        final Object newMark = mark;
+        context.onCompletion(new Runnable()
+        {
+            @Override
+            public void run() {
+                saveMark(params, newMark);
+            }
+        });
+    }
+}
@@ -0,0 +1,375 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.yahoo.flowetl.commons.db.JoinPipe.Join;
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.InputValidator;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
+import com.yahoo.flowetl.services.DatabaseService;
+
+/**
+ * A join done by this pipe of two queries that are both ordered (ascending) by
+ * their join key, as keyset ordered extracts are. Both sides are read forward
+ * only at the same time and only the right rows of the current key are held
+ * in memory, so unlike a hash join the memory used does not grow with the
+ * size of either side. The joined rows are put into this pipes record channel
+ * as one object array of the left columns followed by the right columns (with
+ * nulls for the missing side of a outer join).
+ * 
+ * The keys are compared in binary order (numbers by value, strings by their
+ * code points as a binary collation such as utf8mb4_bin or "C" orders them),
+ * so string keys must be ordered by the database with a binary collation. A
+ * side whose keys are found to not be in that order (a key that goes
+ * backwards) fails the join, which is what a case insensitive (or other
+ * linguistic) collation usually leads to.
+ * 
+ * @author Joshua Harlow
+ */
+public class MergeJoinPipe extends StreamingPipe
+{
+    // innies required
+    public static final String IN_LEFT_DSN = makeParamName(MergeJoinPipe.class, "leftdsn", true);
+    public static final String IN_LEFT_SELECT = makeParamName(MergeJoinPipe.class, "leftquery", true);
+    public static final String IN_LEFT_KEY = makeParamName(MergeJoinPipe.class, "leftkey", true);
+    public static final String IN_RIGHT_DSN = makeParamName(MergeJoinPipe.class, "rightdsn", true);
+    public static final String IN_RIGHT_SELECT = makeParamName(MergeJoinPipe.class, "rightquery", true);
+    public static final String IN_RIGHT_KEY = makeParamName(MergeJoinPipe.class, "rightkey", true);
+    public static final ParamKey<String> IN_LEFT_DSN_KEY = ParamKey.of(IN_LEFT_DSN, String.class);
+    public static final ParamKey<String> IN_LEFT_SELECT_KEY = ParamKey.of(IN_LEFT_SELECT, String.class);
+    public static final ParamKey<String> IN_LEFT_KEY_KEY = ParamKey.of(IN_LEFT_KEY, String.class);
+    public static final ParamKey<String> IN_RIGHT_DSN_KEY = ParamKey.of(IN_RIGHT_DSN, String.class);
+    public static final ParamKey<String> IN_RIGHT_SELECT_KEY = ParamKey.of(IN_RIGHT_SELECT, String.class);
+    public static final ParamKey<String> IN_RIGHT_KEY_KEY = ParamKey.of(IN_RIGHT_KEY, String.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_LEFT_DSN_KEY, IN_LEFT_SELECT_KEY, IN_LEFT_KEY_KEY, IN_RIGHT_DSN_KEY,
+            IN_RIGHT_SELECT_KEY, IN_RIGHT_KEY_KEY);
+
+    // innies optional
+    public static final String IN_JOIN_TYPE = makeParamName(MergeJoinPipe.class, "jointype", true);
+    public static final String IN_FETCH_SIZE = makeParamName(MergeJoinPipe.class, "fetchsize", true);
+    public static final ParamKey<Join.Type> IN_JOIN_TYPE_KEY = ParamKey.of(IN_JOIN_TYPE, Join.Type.class);
+    public static final ParamKey<Integer> IN_FETCH_SIZE_KEY = ParamKey.of(IN_FETCH_SIZE, Integer.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_JOIN_TYPE_KEY, IN_FETCH_SIZE_KEY);
+
+    /** The input validation class. */
+    private final InputValidator validator;
+
+    /** The db service. */
+    private final DatabaseService dbService;
+
+    /**
+     * One ordered side of the join, its current row and the (normalized) key
+     * of that row.
+     */
+    private static class Side
+    {
+        private final String name;
+        private final ResultSet rs;
+        private final int columns;
+        private final int keyIndex;
+        private Object[] row;
+        private Object key;
+        private Object lastKey;
+
+        private Side(String name, ResultSet rs, String keyColumn) throws SQLException {
+            this.name = name;
+            this.rs = rs;
+            ResultSetMetaData meta = rs.getMetaData();
+            this.columns = meta.getColumnCount();
+            int index = -1;
+            for (int i = 0; i < columns; i++) {
+                if (keyColumn.equalsIgnoreCase(meta.getColumnLabel(i + 1))) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) {
+                throw new CoreException("Key column " + keyColumn + " is not selected by the " + name + " side");
+            }
+            this.keyIndex = index;
+        }
+
+        /**
+         * Moves to the next row (the row is null at the end).
+         */
+        private void advance() throws SQLException {
+            if (rs.next() == false) {
+                row = null;
+                key = null;
+                return;
+            }
+            row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                row[i] = rs.getObject(i + 1);
+            }
+            key = HashJoinPipe.normalizeKey(row[keyIndex]);
+            if (key == null) {
+                return;
+            }
+            if (lastKey != null && compareKeys(key, lastKey) < 0) {
+                throw new CoreException("The " + name + " side is not ordered by its key, " + key + " came after " + lastKey);
+            }
+            lastKey = key;
+        }
+    }
+
+    /**
+     * Instantiates a new merge join pipe.
+     * 
+     * @param name
+     * @param services
+     */
+    public MergeJoinPipe(String name, ServiceRegistry services) {
+        super(name, services);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        dbService = getServiceRegistry().getService(DatabaseService.class);
+        if (dbService == null) {
+            throw new IllegalArgumentException(MergeJoinPipe.class + " requires a database service to operate");
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /**
+     * Compares two normalized (non-null) keys in binary order, numbers by their
+     * exact value and strings by their code points (the order of a binary
+     * collation, not of a linguistic one).
+     * 
+     * @param a
+     * @param b
+     * 
+     * @return less than, equal to or greater than zero
+     */
+    @SuppressWarnings("unchecked")
+    protected static int compareKeys(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (a.getClass() == b.getClass() && a instanceof Comparable) {
+                return ((Comparable<Object>) a).compareTo(b);
+            }
+            BigDecimal decA = toDecimal((Number) a);
+            BigDecimal decB = toDecimal((Number) b);
+            if (decA == null || decB == null) {
+                // only a nan or a infinity has no exact value
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            }
+            return decA.compareTo(decB);
+        }
+        if (a instanceof String && b instanceof String) {
+            return compareCodePoints((String) a, (String) b);
+        }
+        if (a instanceof Comparable && a.getClass().isInstance(b)) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        throw new CoreException("Unable to compare join keys " + a + " and " + b);
+    }
+
+    /**
+     * Gets the exact value of the given number.
+     * 
+     * @return the value (or null if it has no exact value)
+     */
+    private static BigDecimal toDecimal(Number num) {
+        if (num instanceof BigDecimal) {
+            return (BigDecimal) num;
+        }
+        if (num instanceof BigInteger) {
+            return new BigDecimal((BigInteger) num);
+        }
+        if (num instanceof Double || num instanceof Float) {
+            double d = num.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return null;
+            }
+            return new BigDecimal(d);
+        }
+        return BigDecimal.valueOf(num.longValue());
+    }
+
+    /**
+     * Compares two strings by their code points, unlike compareTo (which
+     * compares utf-16 chars) this is the order of the bytes of their utf-8
+     * encoding.
+     */
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        if (i < a.length()) {
+            return 1;
+        }
+        if (j < b.length()) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs the given query as a forward only query which streams its rows (see
+     * {@link DbUtils#getFetchSize(Connection, Integer)}).
+     */
+    private ResultSet query(String dsn, String sql, Integer fetchSize) {
+        if (getLogger().isEnabled(Level.INFO)) {
+            getLogger().log(Level.INFO, "Running query " + sql + " : " + dsn);
+        }
+        Connection con = dbService.getConnection(dsn);
+        PreparedStatement st = null;
+        try {
+            st = dbService.prepareStatement(dsn, con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(DbUtils.getFetchSize(con, fetchSize));
+            return st.executeQuery();
+        }
+        catch (SQLException e) {
+            DbUtils.closeAll(st, con);
+            throw new CoreException("Unable to run query " + sql + " on dsn " + dsn, e);
+        }
+    }
+
+    /**
+     * Puts the given left and right rows joined into the given channel, a null
+     * side is filled with the given amount of nulls.
+     * 
+     * @return false if the channel was closed
+     */
+    private static boolean emit(RecordChannel<Object> out, Object[] left, int leftColumns, Object[] right, int rightColumns) {
+        Object[] joined = new Object[leftColumns + rightColumns];
+        if (left != null) {
+            System.arraycopy(left, 0, joined, 0, leftColumns);
+        }
+        if (right != null) {
+            System.arraycopy(right, 0, joined, leftColumns, rightColumns);
+        }
+        return out.put(joined);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.StreamingPipe#stream(java.util.Iterator,
+     * com.yahoo.flowetl.core.iterator.RecordChannel,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+        validator.checkInput(params);
+        Join.Type type = IN_JOIN_TYPE_KEY.get(params);
+        if (type == null) {
+            type = Join.Type.INNER;
+        }
+        boolean keepLeft = (type == Join.Type.LEFT);
+        boolean keepRight = (type == Join.Type.RIGHT);
+        Integer fetchSize = IN_FETCH_SIZE_KEY.get(params);
+        ResultSet leftRs = query(IN_LEFT_DSN_KEY.get(params), IN_LEFT_SELECT_KEY.get(params), fetchSize);
+        ResultSet rightRs = null;
+        try {
+            rightRs = query(IN_RIGHT_DSN_KEY.get(params), IN_RIGHT_SELECT_KEY.get(params), fetchSize);
+            Side left = new Side("left", leftRs, IN_LEFT_KEY_KEY.get(params));
+            Side right = new Side("right", rightRs, IN_RIGHT_KEY_KEY.get(params));
+            List<Object[]> group = new ArrayList<Object[]>();
+            left.advance();
+            right.advance();
+            while (left.row != null || right.row != null) {
+                // null keys never match (and sort at one end)
+                if (left.row != null && left.key == null) {
+                    if (keepLeft && emit(out, left.row, left.columns, null, right.columns) == false) {
+                        return;
+                    }
+                    left.advance();
+                    continue;
+                }
+                if (right.row != null && right.key == null) {
+                    if (keepRight && emit(out, null, left.columns, right.row, right.columns) == false) {
+                        return;
+                    }
+                    right.advance();
+                    continue;
+                }
+                int cmp = 0;
+                if (left.row == null) {
+                    cmp = 1;
+                }
+                else if (right.row == null) {
+                    cmp = -1;
+                }
+                else {
+                    cmp = compareKeys(left.key, right.key);
+                }
+                if (cmp < 0) {
+                    if (keepLeft && emit(out, left.row, left.columns, null, right.columns) == false) {
+                        return;
+                    }
+                    left.advance();
+                    continue;
+                }
+                if (cmp > 0) {
+                    if (keepRight && emit(out, null, left.columns, right.row, right.columns) == false) {
+                        return;
+                    }
+                    right.advance();
+                    continue;
+                }
+                // hold the right rows of this key and match each left row of it
+                Object key = right.key;
+                group.clear();
+                while (right.row != null && right.key != null && compareKeys(right.key, key) == 0) {
+                    group.add(right.row);
+                    right.advance();
+                }
+                while (left.row != null && left.key != null && compareKeys(left.key, key) == 0) {
+                    for (Object[] match : group) {
+                        if (emit(out, left.row, left.columns, match, right.columns) == false) {
+                            return;
+                        }
+                    }
+                    left.advance();
+                }
+            }
+        }
+        finally {
+            DbUtils.closeAll(leftRs);
+            DbUtils.closeAll(rightRs);
+        }
+    }
+}
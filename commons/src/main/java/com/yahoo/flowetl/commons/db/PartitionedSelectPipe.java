@@ -0,0 +1,438 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.InputValidator;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.runner.ThreadPerPipeExecutor;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
+import com.yahoo.flowetl.services.DatabaseService;
+
+/**
+ * A select pipe which splits its query into ranges of a numeric (or date)
+ * column and runs a query for each range at the same time, each on its own
+ * (pooled) connection. The ranges are either given as split points or are
+ * found by splitting the min and max of the column into the given number of
+ * partitions (rows where the column is null get a partition of their own).
+ * 
+ * The rows of all the partitions are put into this pipes record channel as
+ * they arrive (each row as a object array of its column values) so they are
+ * concatenated in no particular order. Since the channel is bounded the
+ * queries only get as far ahead of the pipe using the rows as the channel
+ * allows.
+ * 
+ * By default each partition query wraps the given query as a derived table
+ * (ie SELECT * FROM (query) part WHERE ...) which some databases (ie mysql
+ * before 5.7) materialize in full for every partition. To avoid that the query
+ * can contain the partition marker, the condition of each partition then
+ * replaces that marker in the query itself (ie select a from t where b > ?
+ * and {partition}). Finding the min and max of the split column still wraps
+ * the query (once), give the split points to avoid that too.
+ * 
+ * @author Joshua Harlow
+ */
+public class PartitionedSelectPipe extends StreamingPipe
+{
+    // innies required
+    public static final String IN_DSN = makeParamName(PartitionedSelectPipe.class, "dsn", true);
+    public static final String IN_SELECT = makeParamName(PartitionedSelectPipe.class, "query", true);
+    public static final String IN_SPLIT_COLUMN = makeParamName(PartitionedSelectPipe.class, "splitcolumn", true);
+    public static final ParamKey<String> IN_DSN_KEY = ParamKey.of(IN_DSN, String.class);
+    public static final ParamKey<String> IN_SELECT_KEY = ParamKey.of(IN_SELECT, String.class);
+    public static final ParamKey<String> IN_SPLIT_COLUMN_KEY = ParamKey.of(IN_SPLIT_COLUMN, String.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_SELECT_KEY, IN_DSN_KEY, IN_SPLIT_COLUMN_KEY);
+
+    // innies optional
+    public static final String IN_SELECT_PARAMS = makeParamName(PartitionedSelectPipe.class, "queryparams", true);
+    public static final String IN_PARTITIONS = makeParamName(PartitionedSelectPipe.class, "partitions", true);
+    public static final String IN_SPLIT_POINTS = makeParamName(PartitionedSelectPipe.class, "splitpoints", true);
+    public static final String IN_FETCH_SIZE = makeParamName(PartitionedSelectPipe.class, "fetchsize", true);
+    @SuppressWarnings("rawtypes")
+    public static final ParamKey<List> IN_SELECT_PARAMS_KEY = ParamKey.of(IN_SELECT_PARAMS, List.class);
+    public static final ParamKey<Integer> IN_PARTITIONS_KEY = ParamKey.of(IN_PARTITIONS, Integer.class);
+    @SuppressWarnings("rawtypes")
+    public static final ParamKey<List> IN_SPLIT_POINTS_KEY = ParamKey.of(IN_SPLIT_POINTS, List.class);
+    public static final ParamKey<Integer> IN_FETCH_SIZE_KEY = ParamKey.of(IN_FETCH_SIZE, Integer.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_SELECT_PARAMS_KEY, IN_PARTITIONS_KEY, IN_SPLIT_POINTS_KEY, IN_FETCH_SIZE_KEY);
+
+    /** The number of partitions used when none is given. */
+    public static final int DEFAULT_PARTITIONS = 4;
+
+    /** The marker that is replaced by the condition of each partition. */
+    public static final String PARTITION_MARKER = "{partition}";
+
+    /** The executor that runs the partition queries (a thread per query). */
+    private static final ExecutorService PARTITION_EXECUTOR = new ThreadPerPipeExecutor("partition");
+
+    /** The input validation class. */
+    private final InputValidator validator;
+
+    /** The db service. */
+    private final DatabaseService dbService;
+
+    /**
+     * A range of the split column, a null bound means unbounded and if both
+     * are null (and nulls is set) the range is the rows where the column is
+     * null.
+     */
+    private static class Partition
+    {
+        /** The inclusive lower bound (or null). */
+        private final Object lower;
+
+        /** The exclusive upper bound (or null). */
+        private final Object upper;
+
+        /** Whether this is the partition of null values. */
+        private final boolean nulls;
+
+        private Partition(Object lower, Object upper, boolean nulls) {
+            this.lower = lower;
+            this.upper = upper;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public String toString() {
+            if (nulls) {
+                return "[null]";
+            }
+            return "[" + lower + ", " + upper + ")";
+        }
+    }
+
+    /**
+     * Instantiates a new partitioned select pipe.
+     * 
+     * @param name
+     * @param services
+     */
+    public PartitionedSelectPipe(String name, ServiceRegistry services) {
+        super(name, services);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        dbService = getServiceRegistry().getService(DatabaseService.class);
+        if (dbService == null) {
+            throw new IllegalArgumentException(PartitionedSelectPipe.class + " requires a database service to operate");
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /**
+     * Makes the partitions of the split column, either from the given split
+     * points or by splitting the min and max of the column.
+     */
+    private List<Partition> makePartitions(PipeResult params) {
+        List<?> points = IN_SPLIT_POINTS_KEY.get(params);
+        if (points == null) {
+            Integer count = IN_PARTITIONS_KEY.get(params);
+            points = findSplitPoints(params, count == null ? DEFAULT_PARTITIONS : count.intValue());
+        }
+        List<Partition> parts = new ArrayList<Partition>();
+        Object lower = null;
+        for (Object p : points) {
+            parts.add(new Partition(lower, p, false));
+            lower = p;
+        }
+        parts.add(new Partition(lower, null, false));
+        parts.add(new Partition(null, null, true));
+        return parts;
+    }
+
+    /**
+     * Finds the points that split the min and max of the split column into the
+     * given number of (roughly) equal ranges.
+     */
+    private List<Object> findSplitPoints(PipeResult params, int count) {
+        if (count <= 0) {
+            throw new CoreException("The number of partitions must be greater than zero");
+        }
+        String column = IN_SPLIT_COLUMN_KEY.get(params);
+        String query = IN_SELECT_KEY.get(params);
+        int marker = query.indexOf(PARTITION_MARKER);
+        if (marker != -1) {
+            // all the rows (this query has no partition)
+            query = query.substring(0, marker) + "1=1" + query.substring(marker + PARTITION_MARKER.length());
+        }
+        String sql = "SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + query + ") bounds";
+        Connection con = dbService.getConnection(IN_DSN_KEY.get(params));
+        PreparedStatement st = null;
+        try {
+            st = dbService.prepareStatement(IN_DSN_KEY.get(params), con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            bindParams(st, params);
+            ResultSet rs = st.executeQuery();
+            Object min = null;
+            Object max = null;
+            if (rs.next()) {
+                min = rs.getObject(1);
+                max = rs.getObject(2);
+            }
+            rs.close();
+            List<Object> points = new ArrayList<Object>();
+            if (min == null || max == null) {
+                // no rows (or all null)
+                return points;
+            }
+            boolean dates = min instanceof Date;
+            double lo = dates ? ((Date) min).getTime() : ((Number) min).doubleValue();
+            double hi = dates ? ((Date) max).getTime() : ((Number) max).doubleValue();
+            boolean integral = dates || isIntegral(min);
+            for (int i = 1; i < count; i++) {
+                double at = lo + ((hi - lo) * i) / count;
+                Object point = null;
+                if (dates) {
+                    point = new Timestamp((long) Math.ceil(at));
+                }
+                else if (integral) {
+                    point = (long) Math.ceil(at);
+                }
+                else {
+                    point = at;
+                }
+                // small ranges can round to the same point
+                if (points.isEmpty() || points.get(points.size() - 1).equals(point) == false) {
+                    points.add(point);
+                }
+            }
+            return points;
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to find the range of " + column + " using " + sql, e);
+        }
+        catch (ClassCastException e) {
+            throw new CoreException("Split column " + column + " is not a numeric or date column", e);
+        }
+        finally {
+            DbUtils.closeAll(st, con);
+        }
+    }
+
+    /**
+     * Checks if the given number is a integral type.
+     */
+    private static boolean isIntegral(Object num) {
+        return num instanceof Long || num instanceof Integer || num instanceof Short || num instanceof Byte || num instanceof BigInteger;
+    }
+
+    /**
+     * Binds the select params of the base query to the given statement.
+     * 
+     * @return the next param index to bind
+     */
+    private static int bindParams(PreparedStatement st, PipeResult params) throws SQLException {
+        List<?> pParams = IN_SELECT_PARAMS_KEY.get(params);
+        int at = 1;
+        if (pParams != null) {
+            for (Object o : pParams) {
+                st.setObject(at++, o);
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Binds the select params of the base query and the bounds of the given
+     * partition (which go where the condition of that partition is in the
+     * query) to the given statement.
+     */
+    private static void bindParams(PreparedStatement st, PipeResult params, Partition part) throws SQLException {
+        List<?> pParams = IN_SELECT_PARAMS_KEY.get(params);
+        if (pParams == null) {
+            pParams = new ArrayList<Object>();
+        }
+        String query = IN_SELECT_KEY.get(params);
+        int marker = query.indexOf(PARTITION_MARKER);
+        int before = pParams.size();
+        if (marker != -1) {
+            before = Math.min(before, StringUtils.countMatches(query.substring(0, marker), "?"));
+        }
+        int at = 1;
+        for (int i = 0; i < before; i++) {
+            st.setObject(at++, pParams.get(i));
+        }
+        if (part.lower != null) {
+            st.setObject(at++, part.lower);
+        }
+        if (part.upper != null) {
+            st.setObject(at++, part.upper);
+        }
+        for (int i = before; i < pParams.size(); i++) {
+            st.setObject(at++, pParams.get(i));
+        }
+    }
+
+    /**
+     * Makes the condition of the given partition.
+     */
+    private static String makeCondition(String column, Partition part) {
+        if (part.nulls) {
+            return column + " IS NULL";
+        }
+        if (part.lower == null && part.upper == null) {
+            return column + " IS NOT NULL";
+        }
+        if (part.lower == null) {
+            return column + " < ?";
+        }
+        if (part.upper == null) {
+            return column + " >= ?";
+        }
+        return column + " >= ? AND " + column + " < ?";
+    }
+
+    /**
+     * Makes the query for the given partition, the condition of the partition
+     * replaces the partition marker if the query has one, otherwise the query
+     * is wrapped as a derived table.
+     */
+    private static String makeSql(PipeResult params, Partition part) {
+        String condition = makeCondition(IN_SPLIT_COLUMN_KEY.get(params), part);
+        String query = IN_SELECT_KEY.get(params);
+        int marker = query.indexOf(PARTITION_MARKER);
+        StringBuilder sql = new StringBuilder();
+        if (marker != -1) {
+            sql.append(query, 0, marker);
+            sql.append("(" + condition + ")");
+            sql.append(query, marker + PARTITION_MARKER.length(), query.length());
+        }
+        else {
+            sql.append("SELECT * FROM (" + query + ") part WHERE ");
+            sql.append(condition);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Runs the query of the given partition putting its rows into the given
+     * channel until it runs out of rows, the channel is closed or another
+     * partition fails.
+     */
+    private void runPartition(PipeResult params, Partition part, RecordChannel<Object> out, AtomicBoolean stop) throws SQLException {
+        String sql = makeSql(params, part);
+        if (getLogger().isEnabled(Level.INFO)) {
+            getLogger().log(Level.INFO, "Running partition " + part + " query " + sql);
+        }
+        Connection con = dbService.getConnection(IN_DSN_KEY.get(params));
+        PreparedStatement st = null;
+        try {
+            st = dbService.prepareStatement(IN_DSN_KEY.get(params), con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // each partition streams (row by row on mysql) so that only
+            // what is in the channel is ever in memory
+            st.setFetchSize(DbUtils.getFetchSize(con, IN_FETCH_SIZE_KEY.get(params)));
+            bindParams(st, params, part);
+            ResultSet rs = st.executeQuery();
+            try {
+                int am = rs.getMetaData().getColumnCount();
+                while (stop.get() == false && rs.next()) {
+                    Object[] row = new Object[am];
+                    for (int i = 0; i < am; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    if (out.put(row) == false) {
+                        // nobody wants more
+                        stop.set(true);
+                    }
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            DbUtils.closeAll(st, con);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.StreamingPipe#stream(java.util.Iterator,
+     * com.yahoo.flowetl.core.iterator.RecordChannel,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    protected void stream(Iterator<Object> records, final RecordChannel<Object> out, final PipeResult params) throws Exception {
+        validator.checkInput(params);
+        List<Partition> parts = makePartitions(params);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        List<Future<?>> running = new ArrayList<Future<?>>();
+        for (final Partition part : parts) {
+            running.add(PARTITION_EXECUTOR.submit(new Callable<Object>()
+            {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        runPartition(params, part, out, stop);
+                    }
+                    catch (Exception e) {
+                        // let the others know to stop
+                        stop.set(true);
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        Throwable failure = null;
+        for (int i = 0; i < running.size(); i++) {
+            try {
+                running.get(i).get();
+            }
+            catch (InterruptedException e) {
+                stop.set(true);
+                throw e;
+            }
+            catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+            setPercentDone((float) (i + 1) / running.size());
+        }
+        if (failure != null) {
+            throw new CoreException("Partitioned select " + getName() + " failed", failure);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.sql.ResultSet;
+
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.table.OffHeapRows;
+import com.yahoo.flowetl.core.table.RowBatch;
+
+/**
+ * The param keys of a pipe that outputs the result of a query, the keys of
+ * the inputs that ask for the result in another form than a result set (off
+ * heap rows, a row iterator or a row batch) and the keys of the outputs each
+ * form is put under. Pipes that output a query result make and release it the
+ * same way through these (see {@link DbUtils#setResult} and
+ * {@link DbUtils#releaseResult}).
+ * 
+ * @author Joshua Harlow
+ */
+public class ResultKeys
+{
+    private final ParamKey<Boolean> offHeapKey;
+    private final ParamKey<Boolean> asIteratorKey;
+    private final ParamKey<Boolean> asBatchKey;
+    private final ParamKey<ResultSet> resultSetKey;
+    private final ParamKey<OffHeapRows> offHeapRowsKey;
+    private final ParamKey<ResultSetIterator> rowsKey;
+    private final ParamKey<RowBatch> rowBatchKey;
+
+    /**
+     * Instantiates new result keys.
+     * 
+     * @param offHeapKey
+     *            the input that asks for off heap rows
+     * @param asIteratorKey
+     *            the input that asks for a row iterator
+     * @param asBatchKey
+     *            the input that asks for a row batch
+     * @param resultSetKey
+     *            the output the result set is put under
+     * @param offHeapRowsKey
+     *            the output the off heap rows are put under
+     * @param rowsKey
+     *            the output the row iterator is put under
+     * @param rowBatchKey
+     *            the output the row batch is put under
+     */
+    public ResultKeys(ParamKey<Boolean> offHeapKey, ParamKey<Boolean> asIteratorKey, ParamKey<Boolean> asBatchKey, ParamKey<ResultSet> resultSetKey, ParamKey<OffHeapRows> offHeapRowsKey, ParamKey<ResultSetIterator> rowsKey, ParamKey<RowBatch> rowBatchKey) {
+        this.offHeapKey = offHeapKey;
+        this.asIteratorKey = asIteratorKey;
+        this.asBatchKey = asBatchKey;
+        this.resultSetKey = resultSetKey;
+        this.offHeapRowsKey = offHeapRowsKey;
+        this.rowsKey = rowsKey;
+        this.rowBatchKey = rowBatchKey;
+    }
+
+    public ParamKey<Boolean> getOffHeapKey() {
+        return offHeapKey;
+    }
+
+    public ParamKey<Boolean> getAsIteratorKey() {
+        return asIteratorKey;
+    }
+
+    public ParamKey<Boolean> getAsBatchKey() {
+        return asBatchKey;
+    }
+
+    public ParamKey<ResultSet> getResultSetKey() {
+        return resultSetKey;
+    }
+
+    public ParamKey<OffHeapRows> getOffHeapRowsKey() {
+        return offHeapRowsKey;
+    }
+
+    public ParamKey<ResultSetIterator> getRowsKey() {
+        return rowsKey;
+    }
+
+    public ParamKey<RowBatch> getRowBatchKey() {
+        return rowBatchKey;
+    }
+}
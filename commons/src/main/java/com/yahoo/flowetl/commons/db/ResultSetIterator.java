@@ -0,0 +1,136 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.iterator.CloseableIterator;
+
+/**
+ * A closeable iterator over the rows of a result set, each row is given out as
+ * the same reusable row object (see {@link Row}). Closing this (or reaching
+ * the end) closes the result set, its statement and its connection (which for
+ * pooled connections gives it back to the pool).
+ * 
+ * @author Joshua Harlow
+ */
+public class ResultSetIterator implements CloseableIterator<Row>
+{
+    /** The result set. */
+    private final ResultSet rs;
+
+    /** The reused row. */
+    private final Row row;
+
+    /** Whether the result set has been moved to a row next has not given out. */
+    private boolean advanced;
+
+    /** Whether the result set has a row to give out. */
+    private boolean hasRow;
+
+    /** Whether this has been closed. */
+    private boolean closed;
+
+    /**
+     * Instantiates a new result set iterator.
+     * 
+     * @param rs
+     */
+    public ResultSetIterator(ResultSet rs) {
+        if (rs == null) {
+            throw new IllegalArgumentException("No valid result set provided");
+        }
+        this.rs = rs;
+        this.row = new Row(rs);
+        this.advanced = false;
+        this.hasRow = false;
+        this.closed = false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.Iterator#hasNext()
+     */
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (advanced) {
+            return hasRow;
+        }
+        try {
+            hasRow = rs.next();
+        }
+        catch (SQLException e) {
+            close();
+            throw new CoreException("Unable to move to the next row of " + rs, e);
+        }
+        advanced = true;
+        if (hasRow == false) {
+            close();
+        }
+        return hasRow;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.Iterator#next()
+     */
+    @Override
+    public Row next() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        advanced = false;
+        return row;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.Iterator#remove()
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.iterator.CloseableIterator#close()
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        DbUtils.closeAll(rs);
+    }
+
+    /**
+     * Checks if this has been closed.
+     * 
+     * @return true, if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.commons.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import com.yahoo.flowetl.core.CoreException;
+
+/**
+ * A reusable view of the current row of a result set, the same row object is
+ * handed out for every row so reading rows makes nothing per row (which also
+ * means a row must not be kept once the next row is moved to). Columns are
+ * indexed from zero (like the row batch) and values are read straight from the
+ * result set when asked for.
+ * 
+ * @author Joshua Harlow
+ */
+public class Row
+{
+    /** The result set being viewed. */
+    private final ResultSet rs;
+
+    /** The column names (found when first asked for). */
+    private String[] names;
+
+    /**
+     * Instantiates a new row.
+     * 
+     * @param rs
+     */
+    public Row(ResultSet rs) {
+        this.rs = rs;
+    }
+
+    /**
+     * Gets the column count.
+     * 
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return getNames().length;
+    }
+
+    /**
+     * Gets the name (label) of the given column.
+     * 
+     * @param column
+     * 
+     * @return the column name
+     */
+    public String getColumnName(int column) {
+        return getNames()[column];
+    }
+
+    /**
+     * Gets the index of the column with the given name.
+     * 
+     * @param name
+     * 
+     * @return the column index (or -1 if no such column)
+     */
+    public int getColumnIndex(String name) {
+        String[] known = getNames();
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the column names from the result set meta data.
+     */
+    private String[] getNames() {
+        if (names == null) {
+            try {
+                ResultSetMetaData meta = rs.getMetaData();
+                String[] tmp = new String[meta.getColumnCount()];
+                for (int i = 0; i < tmp.length; i++) {
+                    tmp[i] = meta.getColumnLabel(i + 1);
+                }
+                names = tmp;
+            }
+            catch (SQLException e) {
+                throw new CoreException("Unable to get the columns of result set " + rs, e);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Gets the int value of the given column.
+     * 
+     * @param column
+     * 
+     * @return the value (zero if null)
+     */
+    public int getInt(int column) {
+        try {
+            return rs.getInt(column + 1);
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to get column " + column, e);
+        }
+    }
+
+    /**
+     * Gets the long value of the given column.
+     * 
+     * @param column
+     * 
+     * @return the value (zero if null)
+     */
+    public long getLong(int column) {
+        try {
+            return rs.getLong(column + 1);
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to get column " + column, e);
+        }
+    }
+
+    /**
+     * Gets the double value of the given column.
+     * 
+     * @param column
+     * 
+     * @return the value (zero if null)
+     */
+    public double getDouble(int column) {
+        try {
+            return rs.getDouble(column + 1);
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to get column " + column, e);
+        }
+    }
+
+    /**
+     * Gets the string value of the given column.
+     * 
+     * @param column
+     * 
+     * @return the value (or null)
+     */
+    public String getString(int column) {
+        try {
+            return rs.getString(column + 1);
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to get column " + column, e);
+        }
+    }
+
+    /**
+     * Gets the value of the given column as whatever object the driver makes
+     * for it.
+     * 
+     * @param column
+     * 
+     * @return the value (or null)
+     */
+    public Object getObject(int column) {
+        try {
+            return rs.getObject(column + 1);
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to get column " + column, e);
+        }
+    }
+
+    /**
+     * Checks if the last value read from this row was null (since the
+     * primitive getters give back zero for nulls).
+     * 
+     * @return true, if it was null
+     */
+    public boolean wasNull() {
+        try {
+            return rs.wasNull();
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to check for null", e);
+        }
+    }
+}
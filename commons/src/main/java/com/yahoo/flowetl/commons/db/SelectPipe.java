@@ -10,17 +10,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import com.yahoo.flowetl.core.CoreException;
 import com.yahoo.flowetl.core.InputValidator;
 import com.yahoo.flowetl.core.Logger.Level;
 import com.yahoo.flowetl.core.pipe.AbstractPipe;
+import com.yahoo.flowetl.core.pipe.ParamKey;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.Releasable;
 import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
-import com.yahoo.flowetl.core.validator.MapInputValidator;
+import com.yahoo.flowetl.core.table.OffHeapRows;
+import com.yahoo.flowetl.core.table.RowBatch;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
 import com.yahoo.flowetl.services.DatabaseService;
 
 /**
@@ -36,32 +39,77 @@ public class SelectPipe extends AbstractPipe
     // innies required
     public static final String IN_DSN = makeParamName(SelectPipe.class, "dsn", true);
     public static final String IN_SELECT = makeParamName(SelectPipe.class, "query", true);
-    private static final Map<String, Class<?>> REQUIRED_PARAMS = new TreeMap<String, Class<?>>();
-    static {
-        REQUIRED_PARAMS.put(IN_SELECT, String.class);
-        REQUIRED_PARAMS.put(IN_DSN, String.class);
-    }
+    public static final ParamKey<String> IN_DSN_KEY = ParamKey.of(IN_DSN, String.class);
+    public static final ParamKey<String> IN_SELECT_KEY = ParamKey.of(IN_SELECT, String.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_SELECT_KEY, IN_DSN_KEY);
 
     // innies optional
     public static final String IN_SELECT_PARAMS = makeParamName(SelectPipe.class, "queryparams", true);
-    private static final Map<String, Class<?>> OPTIONAL_PARAMS = new TreeMap<String, Class<?>>();
-    static {
-        OPTIONAL_PARAMS.put(IN_SELECT_PARAMS, List.class);
-    }
+    @SuppressWarnings("rawtypes")
+    public static final ParamKey<List> IN_SELECT_PARAMS_KEY = ParamKey.of(IN_SELECT_PARAMS, List.class);
+    public static final String IN_AS_BATCH = makeParamName(SelectPipe.class, "asbatch", true);
+    public static final ParamKey<Boolean> IN_AS_BATCH_KEY = ParamKey.of(IN_AS_BATCH, Boolean.class);
+    public static final String IN_OFF_HEAP = makeParamName(SelectPipe.class, "offheap", true);
+    public static final ParamKey<Boolean> IN_OFF_HEAP_KEY = ParamKey.of(IN_OFF_HEAP, Boolean.class);
+    public static final String IN_AS_ITERATOR = makeParamName(SelectPipe.class, "asiterator", true);
+    public static final ParamKey<Boolean> IN_AS_ITERATOR_KEY = ParamKey.of(IN_AS_ITERATOR, Boolean.class);
+    public static final String IN_STREAMING = makeParamName(SelectPipe.class, "streaming", true);
+    public static final ParamKey<Boolean> IN_STREAMING_KEY = ParamKey.of(IN_STREAMING, Boolean.class);
+    public static final String IN_FETCH_SIZE = makeParamName(SelectPipe.class, "fetchsize", true);
+    public static final ParamKey<Integer> IN_FETCH_SIZE_KEY = ParamKey.of(IN_FETCH_SIZE, Integer.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_SELECT_PARAMS_KEY, IN_AS_BATCH_KEY, IN_OFF_HEAP_KEY, IN_AS_ITERATOR_KEY, IN_STREAMING_KEY, IN_FETCH_SIZE_KEY);
+
+    /** The fetch size used when streaming and none was given. */
+    public static final int DEFAULT_STREAMING_FETCH_SIZE = DbUtils.DEFAULT_STREAMING_FETCH_SIZE;
+
+    /**
+     * The fetch size that tells the mysql driver to stream rows one at a time
+     * (instead of reading the whole result into memory first).
+     */
+    public static final int MYSQL_STREAMING_FETCH_SIZE = DbUtils.MYSQL_STREAMING_FETCH_SIZE;
 
     // outties
     public static final String OUT_RESULT_SET = AbstractPipe.makeParamName(SelectPipe.class, "resultset", false);
+    public static final ParamKey<ResultSet> OUT_RESULT_SET_KEY = ParamKey.of(OUT_RESULT_SET, ResultSet.class);
+    public static final String OUT_ROW_BATCH = makeParamName(SelectPipe.class, "rowbatch", false);
+    public static final ParamKey<RowBatch> OUT_ROW_BATCH_KEY = ParamKey.of(OUT_ROW_BATCH, RowBatch.class);
+    public static final String OUT_OFF_HEAP_ROWS = makeParamName(SelectPipe.class, "offheaprows", false);
+    public static final ParamKey<OffHeapRows> OUT_OFF_HEAP_ROWS_KEY = ParamKey.of(OUT_OFF_HEAP_ROWS, OffHeapRows.class);
+    public static final String OUT_ROWS = makeParamName(SelectPipe.class, "rows", false);
+    public static final ParamKey<ResultSetIterator> OUT_ROWS_KEY = ParamKey.of(OUT_ROWS, ResultSetIterator.class);
+    private static final List<ParamKey<?>> OUTPUT_PARAMS = ParamKey.listOf(OUT_RESULT_SET_KEY, OUT_ROW_BATCH_KEY, OUT_OFF_HEAP_ROWS_KEY, OUT_ROWS_KEY);
+    private static final ResultKeys RESULT_KEYS = new ResultKeys(IN_OFF_HEAP_KEY, IN_AS_ITERATOR_KEY, IN_AS_BATCH_KEY, OUT_RESULT_SET_KEY, OUT_OFF_HEAP_ROWS_KEY, OUT_ROWS_KEY, OUT_ROW_BATCH_KEY);
 
     // the output result class
-    // that allows u to extract the result set without doing anything special
-    public static class Result extends BackedPipeResult
+    // that allows u to extract the result set (or the row batch, off heap
+    // rows or row iterator if those were asked for) without doing anything
+    // special and which closes that result set or row iterator (and its
+    // statement and connection) or frees those off heap rows when released
+    public static class Result extends BackedPipeResult implements Releasable
     {
         public Result() {
             super();
         }
 
         public ResultSet getResultSet() {
-            return getParam(OUT_RESULT_SET);
+            return OUT_RESULT_SET_KEY.get(this);
+        }
+
+        public RowBatch getRowBatch() {
+            return OUT_ROW_BATCH_KEY.get(this);
+        }
+
+        public OffHeapRows getOffHeapRows() {
+            return OUT_OFF_HEAP_ROWS_KEY.get(this);
+        }
+
+        public ResultSetIterator getRows() {
+            return OUT_ROWS_KEY.get(this);
+        }
+
+        @Override
+        public void release() {
+            DbUtils.releaseResult(this, RESULT_KEYS);
         }
     }
 
@@ -79,7 +127,7 @@ public class SelectPipe extends AbstractPipe
      */
     public SelectPipe(String name, ServiceRegistry services) {
         super(name, services);
-        validator = new MapInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        validator = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
         dbService = getServiceRegistry().getService(DatabaseService.class);
         if (dbService == null) {
             throw new IllegalArgumentException(SelectPipe.class + " requires a database service to operate");
@@ -99,47 +147,131 @@ public class SelectPipe extends AbstractPipe
         return 1;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.AbstractPipe#isReusable(com.yahoo.flowetl
+     * .core.pipe.PipeResult)
+     */
+    @Override
+    public boolean isReusable(PipeResult output) {
+        // a result set can only be iterated once
+        // but a row batch can be read many times
+        if (output instanceof Result) {
+            Result res = (Result) output;
+            return res.getResultSet() == null && res.getRowBatch() != null;
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.AbstractPipe#copyOutput(com.yahoo.flowetl
+     * .core.pipe.PipeResult)
+     */
+    @Override
+    protected PipeResult copyOutput(PipeResult output) {
+        if (isReusable(output) == false) {
+            return null;
+        }
+        // a row batch can not be changed so the copies can share it
+        Result copy = new Result();
+        copy.merge(output);
+        return copy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getDeclaredOutputs()
+     */
+    @Override
+    public List<ParamKey<?>> getDeclaredOutputs() {
+        return OUTPUT_PARAMS;
+    }
+
     /**
      * Makes the output for the given input by forming the sql query, binding
      * the params and then returning the result set.
      * 
+     * When streaming the query is forward only and the driver is asked to
+     * fetch rows a few at a time (the given fetch size, or for mysql row by
+     * row) so the first rows are available right away and the rows are never
+     * all in memory at once. The statement and connection stay open until the
+     * output is released (which happens once the pipe using it has ran).
+     * 
      * @param input
      *            the input
      * 
      * @return the query result set
      */
     private ResultSet makeOutput(PipeResult input) {
-        String dsn = input.getParam(IN_DSN);
-        String query = input.getParam(IN_SELECT);
+        String dsn = IN_DSN_KEY.get(input);
+        String query = IN_SELECT_KEY.get(input);
+        boolean streaming = Boolean.TRUE.equals(IN_STREAMING_KEY.get(input));
         Connection con = dbService.getConnection(dsn);
         PreparedStatement m = null;
         if (getLogger().isEnabled(Level.INFO)) {
-            getLogger().log(Level.INFO, "Running query " + query + " : " + dsn);
+            getLogger().log(Level.INFO, "Running " + (streaming ? "streaming " : "") + "query " + query + " : " + dsn);
         }
+        boolean done = false;
         try {
-            // we won't notice changes by others
-            // and read only
-            m = con.prepareStatement(query, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-        }
-        catch (SQLException e) {
-            throw new CoreException("Unable to prepare statement for query " + query, e);
-        }
-        List<?> pParams = input.getParam(IN_SELECT_PARAMS);
-        if (pParams != null) {
-            for (int i = 0; i < pParams.size(); i++) {
-                try {
-                    m.setObject((i + 1), pParams.get(i));
+            try {
+                if (streaming) {
+                    m = dbService.prepareStatement(dsn, con, query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    m.setFetchSize(DbUtils.getFetchSize(con, IN_FETCH_SIZE_KEY.get(input)));
                 }
-                catch (SQLException e) {
-                    throw new CoreException("Unable to set param " + (i + 1) + " on query " + query + " to " + pParams.get(i), e);
+                else {
+                    // we won't notice changes by others
+                    // and read only
+                    m = dbService.prepareStatement(dsn, con, query, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+                    Integer fetchSize = IN_FETCH_SIZE_KEY.get(input);
+                    if (fetchSize != null) {
+                        m.setFetchSize(fetchSize);
+                    }
                 }
             }
+            catch (SQLException e) {
+                throw new CoreException("Unable to prepare statement for query " + query, e);
+            }
+            List<?> pParams = IN_SELECT_PARAMS_KEY.get(input);
+            if (pParams != null) {
+                for (int i = 0; i < pParams.size(); i++) {
+                    try {
+                        m.setObject((i + 1), pParams.get(i));
+                    }
+                    catch (SQLException e) {
+                        throw new CoreException("Unable to set param " + (i + 1) + " on query " + query + " to " + pParams.get(i), e);
+                    }
+                }
+            }
+            ResultSet rs = null;
+            try {
+                rs = m.executeQuery();
+            }
+            catch (SQLException e) {
+                throw new CoreException("Unable to execute prepared statement " + m, e);
+            }
+            done = true;
+            return rs;
         }
-        try {
-            return m.executeQuery();
-        }
-        catch (SQLException e) {
-            throw new CoreException("Unable to execute prepared statement " + m, e);
+        finally {
+            if (done == false) {
+                DbUtils.closeAll(m, con);
+            }
         }
     }
 
@@ -150,10 +282,11 @@ public class SelectPipe extends AbstractPipe
      */
     @Override
     protected PipeResult makeOutput(List<PipeResult> inputs) {
-        BackedPipeResult merged = new BackedPipeResult(inputs);
+        MergedPipeResult merged = new MergedPipeResult(inputs);
         validator.checkInput(merged);
         Result res = new Result();
-        res.setParam(OUT_RESULT_SET, makeOutput(merged));
+        ResultSet rs = makeOutput(merged);
+        DbUtils.setResult(merged, res, rs, RESULT_KEYS, getMemoryBudget());
         return res;
     }
 }
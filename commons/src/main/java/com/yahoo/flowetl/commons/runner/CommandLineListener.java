@@ -215,8 +215,13 @@ public class CommandLineListener implements FlowListener
             }
             lastPerDone = 0;
         }
-        double tSecs = (double) timeTakenMs / 1000.0d;
-        out.println("Finished pipe #" + (currPipe + 1) + " in " + tSecs + " seconds");
+        if (timeTakenMs == REUSED) {
+            out.println("Reused the output of pipe #" + (currPipe + 1));
+        }
+        else {
+            double tSecs = (double) timeTakenMs / 1000.0d;
+            out.println("Finished pipe #" + (currPipe + 1) + " in " + tSecs + " seconds");
+        }
         out.println("With result " + ranResult);
         currPipe += 1;
         out.println("Completed - " + formatDonePercent(((float) (currPipe) / (float) totalPipes)) + " of all pipes");
@@ -15,17 +15,18 @@ package com.yahoo.flowetl.commons.web;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.yahoo.flowetl.core.CoreException;
 import com.yahoo.flowetl.core.InputValidator;
 import com.yahoo.flowetl.core.pipe.AbstractPipe;
+import com.yahoo.flowetl.core.pipe.ParamKey;
 import com.yahoo.flowetl.core.pipe.PipeResult;
 import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
-import com.yahoo.flowetl.core.validator.MapInputValidator;
+import com.yahoo.flowetl.core.validator.KeyInputValidator;
 import com.yahoo.flowetl.services.HttpService;
 import com.yahoo.flowetl.services.HttpService.GetHttpParams;
 import com.yahoo.flowetl.services.HttpService.HttpParams;
@@ -43,28 +44,29 @@ public class HttpPipe extends AbstractPipe
 {
     // innies required
     public static final String IN_URI = makeParamName(HttpPipe.class, "uri", true);
-    private static final Map<String, Class<?>> REQUIRED_PARAMS = new TreeMap<String, Class<?>>();
-    static {
-        REQUIRED_PARAMS.put(IN_URI, URI.class);
-    }
+    public static final ParamKey<URI> IN_URI_KEY = ParamKey.of(IN_URI, URI.class);
+    private static final List<ParamKey<?>> REQUIRED_PARAMS = ParamKey.listOf(IN_URI_KEY);
 
     // innies optional
     public static final String IN_METHOD = makeParamName(HttpPipe.class, "method", true);
     public static final String IN_TIMEOUT_MS = makeParamName(HttpPipe.class, "in-timeout-ms", true);
     public static final String IN_POST_DATA = makeParamName(HttpPipe.class, "in-post-data", true);
     public static final String IN_USER_AGENT = makeParamName(HttpPipe.class, "in-useragent", true);
-    private static final Map<String, Class<?>> OPTIONAL_PARAMS = new TreeMap<String, Class<?>>();
-    static {
-        OPTIONAL_PARAMS.put(IN_METHOD, String.class);
-        OPTIONAL_PARAMS.put(IN_TIMEOUT_MS, Integer.class);
-        OPTIONAL_PARAMS.put(IN_POST_DATA, String.class);
-        OPTIONAL_PARAMS.put(IN_USER_AGENT, String.class);
-    }
+    public static final ParamKey<String> IN_METHOD_KEY = ParamKey.of(IN_METHOD, String.class);
+    public static final ParamKey<Integer> IN_TIMEOUT_MS_KEY = ParamKey.of(IN_TIMEOUT_MS, Integer.class);
+    public static final ParamKey<String> IN_POST_DATA_KEY = ParamKey.of(IN_POST_DATA, String.class);
+    public static final ParamKey<String> IN_USER_AGENT_KEY = ParamKey.of(IN_USER_AGENT, String.class);
+    private static final List<ParamKey<?>> OPTIONAL_PARAMS = ParamKey.listOf(IN_METHOD_KEY, IN_TIMEOUT_MS_KEY, IN_POST_DATA_KEY, IN_USER_AGENT_KEY);
 
     // outties
     public static final String OUT_STATUS_CODE = makeParamName(HttpPipe.class, "statusCode", false);
     public static final String OUT_RESPONSE_BODY = makeParamName(HttpPipe.class, "responseBody", false);
     public static final String OUT_RESPONSE_HEADERS = makeParamName(HttpPipe.class, "responseHeaders", false);
+    public static final ParamKey<Integer> OUT_STATUS_CODE_KEY = ParamKey.of(OUT_STATUS_CODE, Integer.class);
+    public static final ParamKey<String> OUT_RESPONSE_BODY_KEY = ParamKey.of(OUT_RESPONSE_BODY, String.class);
+    @SuppressWarnings("rawtypes")
+    public static final ParamKey<Map> OUT_RESPONSE_HEADERS_KEY = ParamKey.of(OUT_RESPONSE_HEADERS, Map.class);
+    private static final List<ParamKey<?>> OUTPUT_PARAMS = ParamKey.listOf(OUT_STATUS_CODE_KEY, OUT_RESPONSE_BODY_KEY, OUT_RESPONSE_HEADERS_KEY);
 
     // the output result class
     // that allows u to extract the result set without doing anything special
@@ -75,11 +77,11 @@ public class HttpPipe extends AbstractPipe
         }
 
         public Integer getStatusCode() {
-            return getParam(OUT_STATUS_CODE);
+            return OUT_STATUS_CODE_KEY.get(this);
         }
 
         public String getResponseBody() {
-            return getParam(OUT_RESPONSE_BODY);
+            return OUT_RESPONSE_BODY_KEY.get(this);
         }
 
         public Map<String, String> getResponseHeaders() {
@@ -106,7 +108,27 @@ public class HttpPipe extends AbstractPipe
             throw new CoreException("No " + HttpService.class + " service found - required");
         }
         // make input checker
-        inputChecker = new MapInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+        inputChecker = new KeyInputValidator(REQUIRED_PARAMS, OPTIONAL_PARAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return REQUIRED_PARAMS;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#getDeclaredOutputs()
+     */
+    @Override
+    public List<ParamKey<?>> getDeclaredOutputs() {
+        return OUTPUT_PARAMS;
     }
 
     /**
@@ -120,11 +142,11 @@ public class HttpPipe extends AbstractPipe
         // services already existent
         HttpService sv = httpService;
         // extract params and/or default them
-        URI uri = input.getParam(IN_URI);
-        String inMethod = input.getParam(IN_METHOD);
+        URI uri = IN_URI_KEY.get(input);
+        String inMethod = IN_METHOD_KEY.get(input);
         HttpParams p = null;
         if (StringUtils.equalsIgnoreCase(inMethod, "POST")) {
-            Object addData = input.getParam(IN_POST_DATA);
+            Object addData = IN_POST_DATA_KEY.get(input);
             PostHttpParams tmp = new PostHttpParams();
             tmp.additionalData = addData;
             p = tmp;
@@ -132,16 +154,16 @@ public class HttpPipe extends AbstractPipe
         else {
             p = new GetHttpParams();
         }
-        Integer soTout = input.getParam(IN_TIMEOUT_MS);
+        Integer soTout = IN_TIMEOUT_MS_KEY.get(input);
         p.uri = uri;
-        p.userAgent = input.getParam(IN_USER_AGENT);
+        p.userAgent = IN_USER_AGENT_KEY.get(input);
         if (soTout != null && soTout > 0) {
             p.socketTO = soTout.intValue();
         }
         HttpResult res = sv.call(p);
         Result out = new Result();
-        out.setParam(OUT_STATUS_CODE, res.statusCode);
-        out.setParam(OUT_RESPONSE_BODY, res.responseBody);
+        OUT_STATUS_CODE_KEY.set(out, res.statusCode);
+        OUT_RESPONSE_BODY_KEY.set(out, res.responseBody);
         out.setParam(OUT_RESPONSE_HEADERS, res.headers);
         return out;
     }
@@ -153,7 +175,7 @@ public class HttpPipe extends AbstractPipe
      */
     @Override
     protected PipeResult makeOutput(List<PipeResult> inputs) {
-        BackedPipeResult merged = new BackedPipeResult(inputs);
+        MergedPipeResult merged = new MergedPipeResult(inputs);
         inputChecker.checkInput(merged);
         return makeOutput(merged);
     }
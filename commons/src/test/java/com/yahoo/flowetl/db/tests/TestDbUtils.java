@@ -0,0 +1,217 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.db.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.flowetl.commons.db.DbUtils;
+import com.yahoo.flowetl.core.table.ColumnType;
+import com.yahoo.flowetl.core.table.OffHeapRows;
+import com.yahoo.flowetl.core.table.RowBatch;
+
+@Test
+public class TestDbUtils
+{
+    private static void fill(Connection con) throws Exception {
+        Statement st = con.createStatement();
+        st.executeUpdate("create table t (id integer, total bigint, ratio double, name text)");
+        st.close();
+        PreparedStatement ins = con.prepareStatement("insert into t values (?, ?, ?, ?)");
+        for (int i = 0; i < 100; i++) {
+            ins.setInt(1, i);
+            ins.setLong(2, i * 1000L);
+            ins.setDouble(3, i / 2.0);
+            if (i % 10 == 0) {
+                ins.setNull(4, java.sql.Types.VARCHAR);
+            }
+            else {
+                ins.setString(4, "n" + (i % 3));
+            }
+            ins.executeUpdate();
+        }
+        ins.close();
+    }
+
+    @Test
+    public void testToOffHeapRows() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try {
+            fill(con);
+            Statement st = con.createStatement();
+            ResultSet rs = st.executeQuery("select id, ratio, name from t order by id");
+            OffHeapRows rows = DbUtils.toOffHeapRows(rs);
+            rs.close();
+            st.close();
+            Assert.assertEquals(rows.getRowCount(), 100);
+            int name = rows.getColumnIndex("name");
+            int ratio = rows.getColumnIndex("ratio");
+            OffHeapRows.Cursor cursor = rows.cursor();
+            int seen = 0;
+            double sum = 0;
+            while (cursor.next()) {
+                sum += cursor.getDouble(ratio);
+                if (seen % 10 == 0) {
+                    Assert.assertTrue(cursor.isNull(name));
+                }
+                else {
+                    Assert.assertEquals(cursor.getString(name), "n" + (seen % 3));
+                }
+                seen++;
+            }
+            Assert.assertEquals(seen, 100);
+            Assert.assertEquals(sum, 2475.0d);
+            rows.release();
+            Assert.assertTrue(rows.isReleased());
+            try {
+                rows.cursor();
+                Assert.fail("Released rows were readable");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    @Test
+    public void testToRowBatch() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try {
+            fill(con);
+            Statement st = con.createStatement();
+            ResultSet rs = st.executeQuery("select id, total, ratio, name from t order by id");
+            RowBatch batch = DbUtils.toRowBatch(rs);
+            rs.close();
+            st.close();
+            Assert.assertEquals(batch.getRowCount(), 100);
+            Assert.assertEquals(batch.getColumnCount(), 4);
+            int name = batch.getColumnIndex("name");
+            Assert.assertEquals(batch.getColumnType(name), ColumnType.STRING);
+            long sum = 0;
+            int[] ids = batch.getInts(batch.getColumnIndex("id"));
+            for (int i = 0; i < batch.getRowCount(); i++) {
+                sum += ids[i];
+            }
+            Assert.assertEquals(sum, 4950L);
+            // the driver picks how wide the integer column is
+            Number total = (Number) batch.getValue(batch.getColumnIndex("total"), 99);
+            Assert.assertEquals(total.longValue(), 99000L);
+            Assert.assertEquals(batch.getDouble(batch.getColumnIndex("ratio"), 3), 1.5d);
+            Assert.assertTrue(batch.isNull(name, 90));
+            Assert.assertNull(batch.getString(name, 90));
+            Assert.assertEquals(batch.getString(name, 91), "n1");
+            // only 3 distinct names are stored
+            Assert.assertEquals(batch.getDictionary(name).length, 3);
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    @Test
+    public void testExactNumerics() throws Exception {
+        Assert.assertEquals(DbUtils.toColumnType(Types.DOUBLE), ColumnType.DOUBLE);
+        Assert.assertEquals(DbUtils.toColumnType(Types.NUMERIC), ColumnType.STRING);
+        Assert.assertEquals(DbUtils.toColumnType(Types.DECIMAL), ColumnType.STRING);
+        RowBatch.Builder builder = new RowBatch.Builder();
+        int amount = builder.addColumn("amount", DbUtils.toColumnType(Types.DECIMAL));
+        builder.setString(amount, "12345678901234567.89");
+        builder.endRow();
+        RowBatch batch = builder.build();
+        Assert.assertEquals(new BigDecimal(batch.getString(amount, 0)), new BigDecimal("12345678901234567.89"));
+    }
+
+    @Test
+    public void testUnsigned() throws Exception {
+        Assert.assertEquals(DbUtils.toColumnType(Types.INTEGER, true), ColumnType.INT);
+        Assert.assertEquals(DbUtils.toColumnType(Types.INTEGER, false), ColumnType.LONG);
+        Assert.assertEquals(DbUtils.toColumnType(Types.BIGINT, false), ColumnType.STRING);
+        Assert.assertEquals(DbUtils.toColumnType(Types.SMALLINT, false), ColumnType.INT);
+        Class.forName("org.sqlite.JDBC");
+        Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try {
+            Statement st = con.createStatement();
+            st.executeUpdate("create table u (id integer, total text)");
+            st.executeUpdate("insert into u values (4294967295, '18446744073709551615')");
+            // sqlite has no unsigned columns so pretend these are (like mysql)
+            RowBatch batch = DbUtils.toRowBatch(unsigned(st.executeQuery("select id, total from u")));
+            st.close();
+            Assert.assertEquals(batch.getLong(0, 0), 4294967295L);
+            Assert.assertEquals(batch.getString(1, 0), "18446744073709551615");
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    private static ResultSet unsigned(final ResultSet rs) throws Exception {
+        final ResultSetMetaData meta = rs.getMetaData();
+        final ResultSetMetaData unsignedMeta = (ResultSetMetaData) Proxy.newProxyInstance(TestDbUtils.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                int column = (args != null && args.length == 1) ? (Integer) args[0] : 0;
+                if ("isSigned".equals(method.getName())) {
+                    return false;
+                }
+                if ("getColumnType".equals(method.getName())) {
+                    return (column == 1) ? Types.INTEGER : Types.BIGINT;
+                }
+                if ("getColumnTypeName".equals(method.getName())) {
+                    return (column == 1) ? "INT UNSIGNED" : "BIGINT UNSIGNED";
+                }
+                return method.invoke(meta, args);
+            }
+        });
+        return (ResultSet) Proxy.newProxyInstance(TestDbUtils.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getMetaData".equals(method.getName())) {
+                    return unsignedMeta;
+                }
+                return method.invoke(rs, args);
+            }
+        });
+    }
+
+    @Test
+    public void testFetchSize() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Connection con = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try {
+            Assert.assertEquals(DbUtils.getFetchSize(con, null), DbUtils.DEFAULT_STREAMING_FETCH_SIZE);
+            Assert.assertEquals(DbUtils.getFetchSize(con, 10), 10);
+        }
+        finally {
+            con.close();
+        }
+    }
+}
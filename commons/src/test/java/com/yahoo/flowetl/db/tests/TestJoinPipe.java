@@ -13,6 +13,8 @@
 package com.yahoo.flowetl.db.tests;
 
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -53,4 +55,35 @@ public class TestJoinPipe
         String sql = capture.toString();
         Assert.assertTrue(sql.length() != 0);
     }
+
+    @Test
+    public void testJoinSqlCached() {
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(new CachingDatabaseService());
+        final List<String> capture = new ArrayList<String>();
+        JoinPipe p = new JoinPipe("b", reg)
+        {
+            @Override
+            protected ResultSet executeJoin(String dsn, String sql) {
+                // override for test
+                capture.add(sql);
+                return null;
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            // a different join with the same structure each time
+            Join j = new Join("bob", "cachetable");
+            j.addField(new Field("j", "k"));
+            j.addJoin("blah", new Join("bb", "cachetable2"));
+            BackedPipeResult in = new BackedPipeResult();
+            in.setParam(JoinPipe.IN_DSN, "blah");
+            in.setParam(JoinPipe.IN_JOIN, j);
+            p.attachInput(in);
+            p.generateOutput();
+            p.clearInputs();
+        }
+        Assert.assertEquals(capture.size(), 2);
+        Assert.assertSame(capture.get(0), capture.get(1));
+        Assert.assertEquals(capture.get(0), "SELECT j AS k FROM bob RIGHT JOIN  (bb)  ON (bob.cachetable.blah=bb.cachetable2.blah)");
+    }
 }
@@ -0,0 +1,619 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.db.tests;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.flowetl.commons.db.DbUtils;
+import com.yahoo.flowetl.commons.db.HashJoinPipe;
+import com.yahoo.flowetl.commons.db.JoinPipe.Join;
+import com.yahoo.flowetl.commons.db.KeysetSelectPipe;
+import com.yahoo.flowetl.commons.db.MergeJoinPipe;
+import com.yahoo.flowetl.commons.db.PartitionedSelectPipe;
+import com.yahoo.flowetl.commons.db.ResultSetIterator;
+import com.yahoo.flowetl.commons.db.Row;
+import com.yahoo.flowetl.commons.db.SelectPipe;
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.Plumber;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.pipe.cache.LruOutputCache;
+import com.yahoo.flowetl.core.pipe.example.CapturePipe;
+import com.yahoo.flowetl.core.runner.AbstractPlanRunner;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.services.DatabaseService;
+
+@Test
+public class TestSelectPipe
+{
+    private static class FileDatabaseService extends DatabaseService
+    {
+        private final String url;
+        private Connection last;
+
+        public FileDatabaseService(File db) {
+            this.url = "jdbc:sqlite:" + db.getAbsolutePath();
+        }
+
+        @Override
+        public Connection getConnection(String dbDsn) {
+            try {
+                last = DriverManager.getConnection(url);
+                return last;
+            }
+            catch (SQLException e) {
+                throw new CoreException("Unable to connect to " + url, e);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            // nothing to do
+        }
+    }
+
+    private static class SummingPipe extends StreamingPipe
+    {
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicInteger rows = new AtomicInteger();
+
+        public SummingPipe(ServiceRegistry services) {
+            super("sum", services);
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            while (records.hasNext()) {
+                Object[] row = (Object[]) records.next();
+                if (row[0] != null) {
+                    sum.addAndGet(((Number) row[0]).longValue());
+                }
+                rows.incrementAndGet();
+            }
+        }
+    }
+
+    private static class FailingPipe extends SummingPipe
+    {
+        public FailingPipe(ServiceRegistry services) {
+            super(services);
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            super.stream(records, out, params);
+            throw new IllegalStateException("Failed after reading it all");
+        }
+    }
+
+    private static FileDatabaseService makeDatabase(File db) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        FileDatabaseService dbService = new FileDatabaseService(db);
+        Connection con = dbService.getConnection("test");
+        Statement st = con.createStatement();
+        st.executeUpdate("create table t (id integer)");
+        for (int i = 0; i < 50; i++) {
+            st.executeUpdate("insert into t values (" + i + ")");
+        }
+        st.close();
+        con.close();
+        return dbService;
+    }
+
+    @Test
+    public void testStreamingSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        SelectPipe p = new SelectPipe("select", reg);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(SelectPipe.IN_DSN, "test");
+        in.setParam(SelectPipe.IN_SELECT, "select id from t order by id");
+        in.setParam(SelectPipe.IN_STREAMING, Boolean.TRUE);
+        in.setParam(SelectPipe.IN_FETCH_SIZE, 10);
+        p.attachInput(in);
+        SelectPipe.Result out = (SelectPipe.Result) p.generateOutput();
+        ResultSet rs = out.getResultSet();
+        Assert.assertEquals(rs.getType(), ResultSet.TYPE_FORWARD_ONLY);
+        int sum = 0;
+        while (rs.next()) {
+            sum += rs.getInt(1);
+        }
+        Assert.assertEquals(sum, 1225);
+        // releasing closes the statement and connection
+        out.release();
+        Assert.assertTrue(dbService.last.isClosed());
+        Assert.assertNull(out.getResultSet());
+        db.delete();
+    }
+
+    @Test
+    public void testCapturedSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        SelectPipe p = new SelectPipe("select", reg);
+        CapturePipe capture = new CapturePipe("capture", reg);
+        p.attachOutput(capture);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(SelectPipe.IN_DSN, "test");
+        in.setParam(SelectPipe.IN_SELECT, "select id from t order by id");
+        in.setParam(SelectPipe.IN_STREAMING, Boolean.TRUE);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        // the captured result set must still be open
+        ResultSet rs = capture.getCaptured().getParam(SelectPipe.OUT_RESULT_SET);
+        int sum = 0;
+        while (rs.next()) {
+            sum += rs.getInt(1);
+        }
+        Assert.assertEquals(sum, 1225);
+        DbUtils.closeAll(rs);
+        db.delete();
+    }
+
+    @Test
+    public void testIteratorSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        SelectPipe p = new SelectPipe("select", reg);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(SelectPipe.IN_DSN, "test");
+        in.setParam(SelectPipe.IN_SELECT, "select id from t order by id");
+        in.setParam(SelectPipe.IN_AS_ITERATOR, Boolean.TRUE);
+        // sqlite only has forward only result sets
+        in.setParam(SelectPipe.IN_STREAMING, Boolean.TRUE);
+        p.attachInput(in);
+        SelectPipe.Result out = (SelectPipe.Result) p.generateOutput();
+        Assert.assertNull(out.getResultSet());
+        ResultSetIterator it = out.getRows();
+        Row first = null;
+        int sum = 0;
+        while (it.hasNext()) {
+            Row row = it.next();
+            if (first == null) {
+                first = row;
+            }
+            // the same row is handed out each time
+            Assert.assertSame(row, first);
+            sum += row.getInt(0);
+        }
+        Assert.assertEquals(sum, 1225);
+        // reaching the end closes it all
+        Assert.assertTrue(it.isClosed());
+        Assert.assertTrue(dbService.last.isClosed());
+        out.release();
+        db.delete();
+    }
+
+
+    @Test
+    public void testCachedBatchSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        SelectPipe p = new SelectPipe("select", reg);
+        p.setOutputCache(new LruOutputCache(4));
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(SelectPipe.IN_DSN, "test");
+        in.setParam(SelectPipe.IN_SELECT, "select id from t order by id");
+        in.setParam(SelectPipe.IN_AS_BATCH, Boolean.TRUE);
+        // sqlite only has forward only result sets
+        in.setParam(SelectPipe.IN_STREAMING, Boolean.TRUE);
+        SelectPipe.Result first = (SelectPipe.Result) p.generateOutput(Collections.<PipeResult> singletonList(in), null);
+        Assert.assertEquals(first.getRowBatch().getRowCount(), 50);
+        // a hit must not go back to the database
+        Connection con = dbService.getConnection("test");
+        Statement st = con.createStatement();
+        st.executeUpdate("drop table t");
+        st.close();
+        con.close();
+        first.release();
+        SelectPipe.Result second = (SelectPipe.Result) p.generateOutput(Collections.<PipeResult> singletonList(in), null);
+        Assert.assertNotSame(second, first);
+        Assert.assertSame(second.getRowBatch(), first.getRowBatch());
+        Assert.assertEquals(second.getRowBatch().getRowCount(), 50);
+        db.delete();
+    }
+
+    @Test
+    public void testPartitionedSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        Connection con = dbService.getConnection("test");
+        Statement st = con.createStatement();
+        st.executeUpdate("insert into t values (null)");
+        st.close();
+        con.close();
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        PartitionedSelectPipe p = new PartitionedSelectPipe("select", reg);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(PartitionedSelectPipe.IN_DSN, "test");
+        in.setParam(PartitionedSelectPipe.IN_SELECT, "select id from t");
+        in.setParam(PartitionedSelectPipe.IN_SPLIT_COLUMN, "id");
+        in.setParam(PartitionedSelectPipe.IN_PARTITIONS, 4);
+        p.attachInput(in);
+        SummingPipe sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        new Plumber().translate(p).run();
+        // every row once (including the null one)
+        Assert.assertEquals(sum.rows.get(), 51);
+        Assert.assertEquals(sum.sum.get(), 1225L);
+
+        // the partition condition can go right into the query
+        p = new PartitionedSelectPipe("select", reg);
+        in.setParam(PartitionedSelectPipe.IN_SELECT, "select id from t where (id >= ? or id is null) and " + PartitionedSelectPipe.PARTITION_MARKER + " and (id < ? or id is null)");
+        in.setParam(PartitionedSelectPipe.IN_SELECT_PARAMS, Arrays.asList(10, 20));
+        p.attachInput(in);
+        sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        new Plumber().translate(p).run();
+        Assert.assertEquals(sum.rows.get(), 11);
+        Assert.assertEquals(sum.sum.get(), 145L);
+        db.delete();
+    }
+
+
+    @Test
+    public void testKeysetSelect() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        File state = File.createTempFile("select", ".mark");
+        state.delete();
+        state.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(KeysetSelectPipe.IN_DSN, "test");
+        in.setParam(KeysetSelectPipe.IN_SELECT, "select id from t");
+        in.setParam(KeysetSelectPipe.IN_KEY_COLUMN, "id");
+        in.setParam(KeysetSelectPipe.IN_PAGE_SIZE, 7);
+        in.setParam(KeysetSelectPipe.IN_STATE_FILE, state.getAbsolutePath());
+
+        // a run that fails after reading it all does not move the mark
+        KeysetSelectPipe p = new KeysetSelectPipe("keyset", reg);
+        SummingPipe sum = new FailingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        try {
+            new Plumber().translate(p).run();
+            Assert.fail("The failing consumer did not fail the run");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(sum.rows.get(), 50);
+        Assert.assertFalse(state.exists());
+
+        p = new KeysetSelectPipe("keyset", reg);
+        sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        Assert.assertEquals(sum.rows.get(), 50);
+        Assert.assertEquals(sum.sum.get(), 1225L);
+        Assert.assertTrue(state.exists());
+
+        // only the new rows are read next time
+        Connection con = dbService.getConnection("test");
+        Statement st = con.createStatement();
+        for (int i = 50; i < 55; i++) {
+            st.executeUpdate("insert into t values (" + i + ")");
+        }
+        st.close();
+        con.close();
+        p = new KeysetSelectPipe("keyset", reg);
+        sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        Assert.assertEquals(sum.rows.get(), 5);
+        Assert.assertEquals(sum.sum.get(), 260L);
+        state.delete();
+        db.delete();
+    }
+
+    @Test
+    public void testKeysetSelectRepeatedKeys() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        Connection con = dbService.getConnection("test");
+        Statement st = con.createStatement();
+        st.executeUpdate("create table d (n integer, k integer)");
+        for (int i = 0; i < 20; i++) {
+            st.executeUpdate("insert into d values (" + i + ", " + (i / 2) + ")");
+        }
+        st.close();
+        con.close();
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(KeysetSelectPipe.IN_DSN, "test");
+        in.setParam(KeysetSelectPipe.IN_SELECT, "select n, k from d");
+        in.setParam(KeysetSelectPipe.IN_KEY_COLUMN, "k");
+        in.setParam(KeysetSelectPipe.IN_PAGE_SIZE, 3);
+
+        // a page ending in the middle of a key fails instead of skipping
+        KeysetSelectPipe p = new KeysetSelectPipe("keyset", reg);
+        SummingPipe sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        try {
+            new Plumber().translate(p).run();
+            Assert.fail("A repeated key across a page was not noticed");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+
+        in.setParam(KeysetSelectPipe.IN_TIEBREAK_COLUMN, "n");
+        p = new KeysetSelectPipe("keyset", reg);
+        sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        Assert.assertEquals(sum.rows.get(), 20);
+        Assert.assertEquals(sum.sum.get(), 190L);
+        db.delete();
+    }
+
+    private static SummingPipe runHashJoin(ServiceRegistry reg, Long memoryLimit, boolean outer) throws Exception {
+        return runHashJoin(reg, memoryLimit, outer, null);
+    }
+
+    // when given a spill dir the run gets a budget that nothing fits in
+    private static SummingPipe runHashJoin(ServiceRegistry reg, Long memoryLimit, boolean outer, File spillDir) throws Exception {
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(HashJoinPipe.IN_BUILD_DSN, "build");
+        in.setParam(HashJoinPipe.IN_BUILD_SELECT, "select id, v from b");
+        in.setParam(HashJoinPipe.IN_BUILD_KEY, "id");
+        in.setParam(HashJoinPipe.IN_PROBE_DSN, "probe");
+        in.setParam(HashJoinPipe.IN_PROBE_SELECT, "select id from t");
+        in.setParam(HashJoinPipe.IN_PROBE_KEY, "id");
+        in.setParam(HashJoinPipe.IN_SPILL_PARTITIONS, 3);
+        in.setParam(HashJoinPipe.IN_FETCH_SIZE, 10);
+        in.setParam(HashJoinPipe.IN_OUTER, outer);
+        if (memoryLimit != null) {
+            in.setParam(HashJoinPipe.IN_MEMORY_LIMIT, memoryLimit);
+        }
+        HashJoinPipe p = new HashJoinPipe("hashjoin", reg);
+        SummingPipe sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        AbstractPlanRunner r = (AbstractPlanRunner) new Plumber().translate(p);
+        if (spillDir != null) {
+            r.setMemoryBudget(1, spillDir);
+        }
+        r.run();
+        return sum;
+    }
+
+    @Test
+    public void testHashJoin() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        Connection con = dbService.getConnection("build");
+        Statement st = con.createStatement();
+        st.executeUpdate("create table b (id integer, v varchar(10))");
+        for (int i = 0; i < 50; i += 2) {
+            st.executeUpdate("insert into b values (" + i + ", 'v" + i + "')");
+        }
+        st.executeUpdate("insert into b values (null, 'none')");
+        st.close();
+        con.close();
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        // in memory
+        SummingPipe sum = runHashJoin(reg, null, false);
+        Assert.assertEquals(sum.rows.get(), 25);
+        Assert.assertEquals(sum.sum.get(), 600L);
+        // spilled
+        sum = runHashJoin(reg, 1L, false);
+        Assert.assertEquals(sum.rows.get(), 25);
+        Assert.assertEquals(sum.sum.get(), 600L);
+        // unmatched probe rows too
+        sum = runHashJoin(reg, 1L, true);
+        Assert.assertEquals(sum.rows.get(), 50);
+        Assert.assertEquals(sum.sum.get(), 1225L);
+        // spilled since the budget of the run is used up
+        File spillDir = db.getParentFile();
+        sum = runHashJoin(reg, null, false, spillDir);
+        Assert.assertEquals(sum.rows.get(), 25);
+        Assert.assertEquals(sum.sum.get(), 600L);
+        // which really does spill to where the run says
+        try {
+            runHashJoin(reg, null, false, new File(spillDir, "missing-" + System.nanoTime()));
+            Assert.fail("Spilling to a missing directory did not fail");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+        db.delete();
+    }
+
+    private static class KeyPipe extends HashJoinPipe
+    {
+        public KeyPipe(ServiceRegistry services) {
+            super("keys", services);
+        }
+
+        public static Object key(Object key) {
+            return normalizeKey(key);
+        }
+    }
+
+    @Test
+    public void testHashJoinKeys() throws Exception {
+        // adjacent keys too wide for a long (and for a double) stay apart
+        Object a = KeyPipe.key(new BigDecimal("12345678901234567891"));
+        Object b = KeyPipe.key(new BigDecimal("12345678901234567892"));
+        Assert.assertFalse(a.equals(b));
+        Assert.assertEquals(KeyPipe.key(new BigInteger("12345678901234567891")), a);
+        Assert.assertEquals(KeyPipe.key(new BigDecimal("12345678901234567891.00")), a);
+        Assert.assertFalse(KeyPipe.key(new BigDecimal("0.12345678901234567891")).equals(KeyPipe.key(new BigDecimal("0.12345678901234567892"))));
+        // the same number from different types is the same key
+        Assert.assertEquals(KeyPipe.key(Integer.valueOf(5)), KeyPipe.key(new BigDecimal("5.00")));
+        Assert.assertEquals(KeyPipe.key(Double.valueOf(5.0d)), KeyPipe.key(Long.valueOf(5L)));
+        Assert.assertEquals(KeyPipe.key(new BigDecimal("1.50")), KeyPipe.key(Double.valueOf(1.5d)));
+        Assert.assertEquals(KeyPipe.key(BigDecimal.ZERO.setScale(2)), KeyPipe.key(Integer.valueOf(0)));
+    }
+
+    private static class OrderPipe extends MergeJoinPipe
+    {
+        public OrderPipe(ServiceRegistry services) {
+            super("order", services);
+        }
+
+        public static int compare(Object a, Object b) {
+            return compareKeys(KeyPipe.key(a), KeyPipe.key(b));
+        }
+    }
+
+    @Test
+    public void testMergeJoinKeys() throws Exception {
+        // unsigned bigint keys past a long that only differ in the low digits
+        Assert.assertTrue(OrderPipe.compare(new BigInteger("18446744073709551614"), new BigInteger("18446744073709551615")) < 0);
+        Assert.assertTrue(OrderPipe.compare(new BigDecimal("12345678901234567891"), new BigDecimal("12345678901234567892")) < 0);
+        Assert.assertTrue(OrderPipe.compare(new BigDecimal("0.12345678901234567892"), new BigDecimal("0.12345678901234567891")) > 0);
+        // mixed types are compared by their exact value
+        Assert.assertTrue(OrderPipe.compare(Long.valueOf(Long.MAX_VALUE), new BigInteger("9223372036854775808")) < 0);
+        Assert.assertTrue(OrderPipe.compare(new BigDecimal("9223372036854775807.5"), Long.valueOf(Long.MAX_VALUE)) > 0);
+        Assert.assertEquals(OrderPipe.compare(Integer.valueOf(3), new BigDecimal("3.00")), 0);
+        Assert.assertTrue(OrderPipe.compare(Double.valueOf(1.5d), Long.valueOf(2L)) < 0);
+    }
+
+    private static SummingPipe runMergeJoin(ServiceRegistry reg, Join.Type type) throws Exception {
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(MergeJoinPipe.IN_LEFT_DSN, "left");
+        in.setParam(MergeJoinPipe.IN_LEFT_SELECT, "select id from t order by id");
+        in.setParam(MergeJoinPipe.IN_LEFT_KEY, "id");
+        in.setParam(MergeJoinPipe.IN_RIGHT_DSN, "right");
+        in.setParam(MergeJoinPipe.IN_RIGHT_SELECT, "select id, v from m order by id");
+        in.setParam(MergeJoinPipe.IN_RIGHT_KEY, "id");
+        in.setParam(MergeJoinPipe.IN_JOIN_TYPE, type);
+        MergeJoinPipe p = new MergeJoinPipe("mergejoin", reg);
+        SummingPipe sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        return sum;
+    }
+
+    @Test
+    public void testMergeJoin() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        Connection con = dbService.getConnection("right");
+        Statement st = con.createStatement();
+        st.executeUpdate("create table m (id integer, v varchar(10))");
+        for (int i = 0; i < 50; i += 2) {
+            st.executeUpdate("insert into m values (" + i + ", 'v" + i + "')");
+        }
+        // a key group and a unmatched right row
+        st.executeUpdate("insert into m values (10, 'dup')");
+        st.executeUpdate("insert into m values (100, 'none')");
+        st.close();
+        con.close();
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        SummingPipe sum = runMergeJoin(reg, Join.Type.INNER);
+        Assert.assertEquals(sum.rows.get(), 26);
+        Assert.assertEquals(sum.sum.get(), 610L);
+        sum = runMergeJoin(reg, Join.Type.LEFT);
+        Assert.assertEquals(sum.rows.get(), 51);
+        Assert.assertEquals(sum.sum.get(), 1235L);
+        sum = runMergeJoin(reg, Join.Type.RIGHT);
+        Assert.assertEquals(sum.rows.get(), 27);
+        Assert.assertEquals(sum.sum.get(), 610L);
+        db.delete();
+    }
+
+    private static SummingPipe runStringMergeJoin(ServiceRegistry reg, String rightOrder) throws Exception {
+        BackedPipeResult in = new BackedPipeResult();
+        in.setParam(MergeJoinPipe.IN_LEFT_DSN, "left");
+        in.setParam(MergeJoinPipe.IN_LEFT_SELECT, "select id, k from s order by k");
+        in.setParam(MergeJoinPipe.IN_LEFT_KEY, "k");
+        in.setParam(MergeJoinPipe.IN_RIGHT_DSN, "right");
+        in.setParam(MergeJoinPipe.IN_RIGHT_SELECT, "select k from s order by " + rightOrder);
+        in.setParam(MergeJoinPipe.IN_RIGHT_KEY, "k");
+        MergeJoinPipe p = new MergeJoinPipe("mergejoin", reg);
+        SummingPipe sum = new SummingPipe(reg);
+        p.attachOutput(sum);
+        p.attachInput(in);
+        new Plumber().translate(p).run();
+        return sum;
+    }
+
+    @Test
+    public void testStringMergeJoin() throws Exception {
+        File db = File.createTempFile("select", ".db");
+        db.deleteOnExit();
+        FileDatabaseService dbService = makeDatabase(db);
+        Connection con = dbService.getConnection("right");
+        Statement st = con.createStatement();
+        st.executeUpdate("create table s (id integer, k varchar(10))");
+        st.executeUpdate("insert into s values (1, 'B')");
+        st.executeUpdate("insert into s values (2, 'a')");
+        st.executeUpdate("insert into s values (3, 'c')");
+        st.close();
+        con.close();
+        ServiceRegistry reg = new ServiceRegistry();
+        reg.registerService(dbService);
+        // binary order on both sides
+        SummingPipe sum = runStringMergeJoin(reg, "k");
+        Assert.assertEquals(sum.rows.get(), 3);
+        Assert.assertEquals(sum.sum.get(), 6L);
+        // a case insensitive order is found out
+        try {
+            runStringMergeJoin(reg, "k collate nocase");
+            Assert.fail("Keys out of binary order were not found out");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+        db.delete();
+    }
+
+}
@@ -18,12 +18,20 @@ import java.util.List;
 import com.yahoo.flowetl.core.listener.FlowListener;
 import com.yahoo.flowetl.core.pipe.Pipe;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.runner.RunContext;
 
 /**
  * This class implements what a set of pipes that are to be ran will derive
  * from, it has a concept of a listener who can and will be notified of various
  * events that the running derivative decides are relevant.
  * 
+ * Listeners are notified one event at a time even if the running derivative
+ * runs pipes from multiple threads, so listeners need not be thread safe.
+ * 
+ * The same runner can be ran by multiple threads at the same time as long as
+ * each run is given its own run context (the events of those runs will then
+ * be interleaved for the listeners).
+ * 
  * @author Joshua Harlow
  */
 public abstract class PipeRunner implements Runnable
@@ -38,12 +46,41 @@ public abstract class PipeRunner implements Runnable
         this.listeners = new ArrayList<FlowListener>();
     }
 
+    /**
+     * Makes a new context for a single run of this runner.
+     * 
+     * @return the run context
+     */
+    public abstract RunContext newContext();
+
+    /**
+     * Runs the pipes using the given context to hold the inputs, outputs and
+     * progress of this run (instead of the pipes themselves).
+     * 
+     * @param context
+     *            a context made by this runner that has not been ran
+     */
+    public abstract void run(RunContext context);
+
+    /**
+     * Runs the pipes using a new context which takes the inputs that were
+     * attached directly to the pipes.
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        RunContext context = newContext();
+        context.takeAttachedInputs();
+        run(context);
+    }
+
     /**
      * Adds the flow listener.
      * 
      * @param listener
      */
-    public void addFlowListener(FlowListener listener) {
+    public synchronized void addFlowListener(FlowListener listener) {
         listeners.add(listener);
     }
 
@@ -52,7 +89,7 @@ public abstract class PipeRunner implements Runnable
      * 
      * @param listener
      */
-    public void removeFlowListener(FlowListener listener) {
+    public synchronized void removeFlowListener(FlowListener listener) {
         listeners.remove(listener);
     }
 
@@ -61,7 +98,7 @@ public abstract class PipeRunner implements Runnable
      * 
      * @param ordering
      */
-    protected void notifyStart(List<Pipe> ordering) {
+    protected synchronized void notifyStart(List<Pipe> ordering) {
         for (FlowListener f : listeners) {
             f.onStart(ordering);
         }
@@ -73,7 +110,7 @@ public abstract class PipeRunner implements Runnable
      * 
      * @param timeTakenMs
      */
-    protected void notifyComplete(long timeTakenMs) {
+    protected synchronized void notifyComplete(long timeTakenMs) {
         for (FlowListener f : listeners) {
             f.onCompletion(timeTakenMs);
         }
@@ -84,7 +121,7 @@ public abstract class PipeRunner implements Runnable
      * 
      * @param startingPipe
      */
-    protected void notifyStartGenerate(Pipe startingPipe) {
+    protected synchronized void notifyStartGenerate(Pipe startingPipe) {
         for (FlowListener f : listeners) {
             f.onStartGenerate(startingPipe);
         }
@@ -99,7 +136,7 @@ public abstract class PipeRunner implements Runnable
      * @param pipeResult
      * @param timeTakenMs
      */
-    protected void notifyFinishGenerate(Pipe finishedPipe, PipeResult pipeResult, long timeTakenMs) {
+    protected synchronized void notifyFinishGenerate(Pipe finishedPipe, PipeResult pipeResult, long timeTakenMs) {
         for (FlowListener f : listeners) {
             f.onFinishGenerate(finishedPipe, pipeResult, timeTakenMs);
         }
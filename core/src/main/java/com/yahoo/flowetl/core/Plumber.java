@@ -18,15 +18,13 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.time.StopWatch;
 import org.jgrapht.DirectedGraph;
 import org.jgrapht.EdgeFactory;
 import org.jgrapht.alg.ConnectivityInspector;
 import org.jgrapht.alg.CycleDetector;
-import org.jgrapht.event.TraversalListenerAdapter;
-import org.jgrapht.event.VertexTraversalEvent;
 import org.jgrapht.ext.DOTExporter;
 import org.jgrapht.ext.EdgeNameProvider;
 import org.jgrapht.ext.VertexNameProvider;
@@ -35,15 +33,29 @@ import org.jgrapht.traverse.GraphIterator;
 import org.jgrapht.traverse.TopologicalOrderIterator;
 
 import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.pipe.ContextPipe;
+import com.yahoo.flowetl.core.pipe.ParamKey;
 import com.yahoo.flowetl.core.pipe.Pipe;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.TypedPipe;
+import com.yahoo.flowetl.core.runner.ExecutionPlan;
+import com.yahoo.flowetl.core.runner.ParallelPipeRunner;
+import com.yahoo.flowetl.core.runner.PipeTimings;
+import com.yahoo.flowetl.core.runner.SerialPipeRunner;
+import com.yahoo.flowetl.core.runner.ThreadPerPipeExecutor;
 import com.yahoo.flowetl.core.util.IterUtils;
 
 /**
  * This classes job is to take a set of pipes and form the pipe runner which
  * will be used to execute the pipes in the correct order. It ensures that there
  * are no cycles in your pipes, that every pipe is connected somehow to each
- * other (connectivity).
+ * other (connectivity). The verified pipes are compiled once into an
+ * execution plan so that the formed runner can be ran many times without
+ * having to walk the pipes again.
+ * 
+ * If an executor service is provided the pipe runner that is formed will run
+ * pipes which do not depend on each other at the same time on that executor,
+ * otherwise pipes are ran one at a time in the thread that runs the runner.
  * 
  * @author Joshua Harlow
  */
@@ -53,10 +65,71 @@ public class Plumber
     private static final Logger logger = new Logger(Plumber.class);
 
     /**
-     * Instantiates a new plumber.
+     * The different ways the runners formed by this plumber can run pipes
+     * without being given a executor.
+     */
+    public static enum ExecutionMode
+    {
+        // one pipe at a time in the thread that runs the runner
+        SERIAL,
+        // each pipe that is ready runs on its own (virtual if possible) thread
+        THREAD_PER_PIPE
+    }
+
+    /** The executor to run pipes on (or null if pipes run one at a time). */
+    private final ExecutorService executor;
+
+    /** The timings used to run pipes on the critical path first (or null). */
+    private final PipeTimings timings;
+
+    /**
+     * Instantiates a new plumber which forms runners that run pipes one at a
+     * time.
      */
     public Plumber() {
+        this((ExecutorService) null);
+    }
 
+    /**
+     * Instantiates a new plumber which forms runners that run independent
+     * pipes at the same time using the given executor.
+     * 
+     * @param executor
+     *            the executor to run pipes on (null for one at a time)
+     */
+    public Plumber(ExecutorService executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Instantiates a new plumber which forms runners that run independent
+     * pipes at the same time using the given executor. When more pipes are
+     * ready than the executor can run the ones on the critical path (as
+     * estimated by the given timings) are ran first. The timings are updated
+     * by every run so the same timings should be given to every plumber that
+     * forms the same pipes.
+     * 
+     * @param executor
+     *            the executor to run pipes on (null for one at a time)
+     * @param timings
+     *            the timings from previous runs (or null)
+     */
+    public Plumber(ExecutorService executor, PipeTimings timings) {
+        this.executor = executor;
+        this.timings = timings;
+    }
+
+    /**
+     * Instantiates a new plumber which forms runners that run pipes using the
+     * given execution mode. When running a thread per pipe the pipes which are
+     * blocked (ie on http calls or database queries) do not tie up a pool
+     * thread, so there is no pool to size.
+     * 
+     * @param mode
+     *            the execution mode
+     */
+    public Plumber(ExecutionMode mode) {
+        this(mode == ExecutionMode.THREAD_PER_PIPE ? new ThreadPerPipeExecutor() : (ExecutorService) null);
     }
 
     /**
@@ -138,14 +211,14 @@ public class Plumber
      * 
      * @throws PipeException
      */
-    public PipeRunner translate(final Set<Pipe> roots) throws PipeException {
+    public PipeRunner translate(Set<Pipe> roots) throws PipeException {
 
         if (roots == null || roots.isEmpty()) {
             throw new IllegalArgumentException("No valid pipes provided");
         }
 
         // first translate to a graph
-        final DefaultDirectedGraph<Pipe, PipeEdge> runGraph = new DefaultDirectedGraph<Pipe, PipeEdge>(new EdgeFactory<Pipe, PipeEdge>()
+        DefaultDirectedGraph<Pipe, PipeEdge> runGraph = new DefaultDirectedGraph<Pipe, PipeEdge>(new EdgeFactory<Pipe, PipeEdge>()
         {
             @Override
             public PipeEdge createEdge(Pipe src, Pipe tgt) {
@@ -209,6 +282,11 @@ public class Plumber
             throw new PipeException("The pipes provided have occurences which do not actually connect to other pipes");
         }
 
+        // check the declared inputs against the declared outputs
+        for (Pipe p : reachableInputs) {
+            checkInputs(p, runGraph);
+        }
+
         // display
         if (logger.isEnabled(Level.DEBUG)) {
             StringWriter w = new StringWriter();
@@ -242,77 +320,93 @@ public class Plumber
         }
 
         // all verified, yippe
-        PipeRunner out = new PipeRunner()
-        {
-            @Override
-            public void run() {
-
-                // use topological order to figure out
-                // how to run this graph in a way
-                // that will ensure the inputs are satisfied
-                // before a vertex is ran...
-                GraphIterator<Pipe, PipeEdge> it = makeTraversalIterator(runGraph);
-
-                // get the ordering first
-                // which doesn't involve activating any of the pipes
-                // just seeing what the iteration order will be...
-                final List<Pipe> order = IterUtils.toList(it, ArrayList.class);
-
-                // now make the real run iterator
-                it = makeTraversalIterator(runGraph);
-                it.addTraversalListener(new TraversalListenerAdapter<Pipe, PipeEdge>()
-                {
-                    @Override
-                    public void vertexTraversed(VertexTraversalEvent<Pipe> v) {
-                        if (logger.isEnabled(Level.INFO)) {
-                            logger.log(Level.INFO, "Vertex " + v.getVertex() + " was visited");
-                        }
-                    }
-                });
-
-                StopWatch overallTimer = new StopWatch();
-                overallTimer.start();
-
-                notifyStart(order);
-
-                // keep track of which ones we exec'ed
-                // maybe for use later??
-                final List<Pipe> curExecd = new ArrayList<Pipe>(order.size());
-
-                // iterate
-                StopWatch perRunTimer = new StopWatch();
-                List<Pipe> pipeOutputs = null;
-                PipeResult pipeRes = null;
-                while (it.hasNext()) {
-                    Pipe toRun = it.next();
-                    perRunTimer.reset();
-                    perRunTimer.start();
-                    notifyStartGenerate(toRun);
-                    {
-                        pipeRes = toRun.generateOutput();
-                    }
-                    perRunTimer.stop();
-                    curExecd.add(toRun);
-                    pipeOutputs = toRun.getOutputs();
-                    if (pipeOutputs != null) {
-                        for (Pipe tmp : pipeOutputs) {
-                            if (tmp == null) {
-                                continue;
-                            }
-                            tmp.attachInput(pipeRes);
-                        }
-                    }
-                    notifyFinishGenerate(toRun, pipeRes, perRunTimer.getTime());
-                    // now clear it
-                    toRun.clearInputs();
-                }
-
-                overallTimer.stop();
-                notifyComplete(overallTimer.getTime());
+        // use topological order to figure out
+        // how to run this graph in a way
+        // that will ensure the inputs are satisfied
+        // before a vertex is ran, this is only done once
+        // since the compiled plan can be ran many times
+        List<Pipe> order = IterUtils.toList(makeTraversalIterator(runGraph), ArrayList.class);
+        ExecutionPlan plan = new ExecutionPlan(order);
+        if (executor != null) {
+            return new ParallelPipeRunner(plan, executor, timings);
+        }
+        return new SerialPipeRunner(plan);
+    }
 
+    /**
+     * Checks that the pipes directly before the given pipe declare outputs that
+     * satisfy the required inputs of the given pipe (when ran a pipe is only
+     * given the outputs of the pipes directly before it, so a input passed
+     * through from further back must be declared by the pipe passing it
+     * through). Pipes that can get starting inputs (those with no pipes before
+     * them and those with inputs attached to them) are not checked since what
+     * they get is only known when ran, neither are pipes that have a pipe
+     * before them that does not declare its outputs. Starting inputs that are
+     * only attached to the context of a run are not known here, so a pipe
+     * after other pipes that relies on them should have them attached to it
+     * (or not declare them as required).
+     * 
+     * @param pipe
+     * @param runGraph
+     * 
+     * @throws PipeException
+     *             if a required input is not provided or is provided with a
+     *             incompatible type
+     */
+    private void checkInputs(Pipe pipe, DirectedGraph<Pipe, PipeEdge> runGraph) throws PipeException {
+        if ((pipe instanceof TypedPipe) == false) {
+            return;
+        }
+        List<ParamKey<?>> required = ((TypedPipe) pipe).getRequiredInputs();
+        if (required == null || required.isEmpty()) {
+            return;
+        }
+        Set<PipeEdge> incoming = runGraph.incomingEdgesOf(pipe);
+        if (incoming.isEmpty()) {
+            return;
+        }
+        if ((pipe instanceof ContextPipe) == false) {
+            // can not tell what inputs are attached to it
+            return;
+        }
+        List<PipeResult> attached = ((ContextPipe) pipe).getInputs();
+        if (attached != null && attached.isEmpty() == false) {
+            return;
+        }
+        // gather what the pipes directly before it declare
+        List<ParamKey<?>> provided = new ArrayList<ParamKey<?>>();
+        for (PipeEdge e : incoming) {
+            Pipe before = runGraph.getEdgeSource(e);
+            List<ParamKey<?>> declared = null;
+            if (before instanceof TypedPipe) {
+                declared = ((TypedPipe) before).getDeclaredOutputs();
+            }
+            if (declared == null) {
+                // can not tell what it provides
+                return;
             }
-        };
-        return out;
+            provided.addAll(declared);
+        }
+        for (ParamKey<?> key : required) {
+            ParamKey<?> mismatched = null;
+            boolean satisfied = false;
+            for (ParamKey<?> out : provided) {
+                if (key.accepts(out)) {
+                    satisfied = true;
+                    break;
+                }
+                if (key.getName().equals(out.getName())) {
+                    mismatched = out;
+                }
+            }
+            if (satisfied) {
+                continue;
+            }
+            if (mismatched != null) {
+                throw new PipeException("Pipe " + pipe + " requires input " + key + " but it is provided as " + mismatched);
+            }
+            throw new PipeException("Pipe " + pipe + " requires input " + key + " but no pipe directly before it provides it");
+        }
     }
 
     /**
@@ -0,0 +1,290 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.iterator;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.yahoo.flowetl.core.CoreException;
+
+/**
+ * A bounded channel of records between a producer thread and a consumer
+ * thread. The consumer side is a closeable iterator which blocks until the
+ * next record is produced, the producer side blocks when the channel is full
+ * so that a producer can never get more than the capacity ahead of its
+ * consumer (which keeps memory constant no matter how many records pass
+ * through).
+ *
+ * The producer must either finish or fail the channel when it is done. If the
+ * consumer closes the channel early then the producer is told (by put
+ * returning false) so that it can stop producing.
+ *
+ * @author Joshua Harlow
+ */
+public class RecordChannel<T> implements CloseableIterator<T>
+{
+    /** The marker that is placed after the last record. */
+    private static final Object END = new Object();
+
+    /** How long to block before checking if the consumer closed. */
+    private static final long WAIT_MS = 100;
+
+    /** The records that have been produced but not consumed. */
+    private final BlockingQueue<Object> queue;
+
+    /** The capacity of the channel. */
+    private final int capacity;
+
+    /** Whether a full channel blocks its producer (or fails it). */
+    private final boolean blocking;
+
+    /** Whether the consumer has closed the channel. */
+    private volatile boolean closed;
+
+    /** The failure of the producer (if any). */
+    private volatile Throwable failure;
+
+    /** The record that hasNext took but next has not returned (consumer). */
+    private Object nextRecord;
+
+    /** Whether the end has been reached (consumer). */
+    private boolean done;
+
+    /**
+     * Instantiates a new record channel.
+     *
+     * @param capacity
+     *            how many records can be produced but not yet consumed
+     */
+    public RecordChannel(int capacity) {
+        this(capacity, makeQueue(capacity), true);
+    }
+
+    /**
+     * Instantiates a new record channel using the given queue.
+     */
+    private RecordChannel(int capacity, BlockingQueue<Object> queue, boolean blocking) {
+        this.capacity = capacity;
+        this.queue = queue;
+        this.blocking = blocking;
+        this.closed = false;
+        this.failure = null;
+        this.nextRecord = null;
+        this.done = false;
+    }
+
+    /**
+     * Makes a bounded queue with the given capacity.
+     */
+    private static BlockingQueue<Object> makeQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Channel capacity must be greater than zero");
+        }
+        return new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * Makes a channel whose records are only consumed after the producer is
+     * done (ie they are kept for whoever looks at the result of a run). Since
+     * nothing makes space while the producer runs, putting more records than
+     * the capacity into it fails instead of blocking (forever).
+     *
+     * @param <T>
+     * @param capacity
+     *            how many records can be kept
+     *
+     * @return the channel
+     */
+    public static <T> RecordChannel<T> kept(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Channel capacity must be greater than zero");
+        }
+        // unbounded so that the end always fits, the records are counted
+        return new RecordChannel<T>(capacity, new LinkedBlockingQueue<Object>(), false);
+    }
+
+    /**
+     * Gets the capacity.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Puts the given object into the queue waiting for space to free up.
+     *
+     * @return false if the consumer closed the channel while waiting
+     */
+    private boolean offer(Object obj) {
+        try {
+            while (closed == false) {
+                if (queue.offer(obj, WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CoreException("Interrupted while waiting for space in channel", e);
+        }
+    }
+
+    /**
+     * Puts a record into the channel (producer side), blocking while the
+     * channel is full.
+     *
+     * @param record
+     *            the record (can not be null)
+     *
+     * @return false if the consumer has closed the channel (and the producer
+     *         should stop producing)
+     *
+     * @throws CoreException
+     *             if the records of this channel are kept (see
+     *             {@link #kept(int)}) and it already keeps its capacity
+     */
+    public boolean put(T record) {
+        if (record == null) {
+            throw new IllegalArgumentException("Null records can not be put into a channel");
+        }
+        if (blocking == false && closed == false && queue.size() >= capacity) {
+            throw new CoreException("Channel can only keep " + capacity + " records until its producer is done");
+        }
+        return offer(record);
+    }
+
+    /**
+     * Marks that no more records will be put into this channel (producer
+     * side).
+     */
+    public void finish() {
+        offer(END);
+    }
+
+    /**
+     * Marks that the producer failed, the consumer will get this failure once
+     * it has consumed the records before it (producer side).
+     *
+     * @param cause
+     */
+    public void fail(Throwable cause) {
+        this.failure = cause;
+        offer(END);
+    }
+
+    /**
+     * Checks if the consumer has closed this channel.
+     *
+     * @return true, if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Iterator#hasNext()
+     */
+    @Override
+    public boolean hasNext() {
+        if (done) {
+            return false;
+        }
+        if (nextRecord != null) {
+            return true;
+        }
+        Object got = null;
+        try {
+            got = queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CoreException("Interrupted while waiting for the next record", e);
+        }
+        if (got == END) {
+            done = true;
+            Throwable cause = failure;
+            if (cause != null) {
+                throw new CoreException("The producer of this channel failed", cause);
+            }
+            return false;
+        }
+        nextRecord = got;
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Iterator#next()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public T next() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        T record = (T) nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.Iterator#remove()
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.iterator.CloseableIterator#close()
+     */
+    @Override
+    public void close() {
+        closed = true;
+        done = true;
+        nextRecord = null;
+        // let a blocked producer through
+        queue.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [capacity=");
+        builder.append(capacity);
+        builder.append(", buffered=");
+        builder.append(queue.size());
+        builder.append(", closed=");
+        builder.append(closed);
+        builder.append("]");
+        return builder.toString();
+    }
+}
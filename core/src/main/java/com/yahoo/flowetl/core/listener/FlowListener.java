@@ -27,6 +27,11 @@ import com.yahoo.flowetl.core.pipe.PipeResult;
  */
 public interface FlowListener
 {
+    /**
+     * The time given to {@link #onFinishGenerate(Pipe, PipeResult, long)} for
+     * a pipe that was not ran since its output from a earlier run was reused.
+     */
+    public static final long REUSED = -1;
 
     /**
      * This is called before any pipes have ran but the order in which they will
@@ -45,7 +50,8 @@ public interface FlowListener
 
     /**
      * This is called when the given pipe has been ran with the given result and
-     * how long that pipe took to complete its output.
+     * how long that pipe took to complete its output (or {@link #REUSED} if it
+     * was not ran and its output from a earlier run was reused instead).
      * 
      * @param ranPipe
      * @param ranResult
@@ -13,11 +13,17 @@
 package com.yahoo.flowetl.core.pipe;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.yahoo.flowetl.core.Logger;
 import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.pipe.cache.OutputCache;
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.util.FingerprintUtils;
 
 /**
  * An implementation of the pipe interface which provides the necessary base
@@ -27,7 +33,7 @@ import com.yahoo.flowetl.core.services.ServiceRegistry;
  * 
  * @author Joshua Harlow
  */
-public abstract class AbstractPipe implements Pipe
+public abstract class AbstractPipe implements ContextPipe, TypedPipe
 {
     /** The logger for children to use. */
     private final Logger logger;
@@ -53,6 +59,12 @@ public abstract class AbstractPipe implements Pipe
     /** The percent done. */
     private float percentDone;
 
+    /** The context of the output that is being generated (per thread). */
+    private final ThreadLocal<PipeContext> activeContext;
+
+    /** The cache of outputs by input fingerprint (or null if not caching). */
+    private volatile OutputCache outputCache;
+
     /**
      * Instantiates a new abstract pipe.
      * 
@@ -69,6 +81,108 @@ public abstract class AbstractPipe implements Pipe
         this.collectedInputs = new ArrayList<PipeResult>();
         this.percentDone = 0.0f;
         this.percentLock = new Object();
+        this.activeContext = new ThreadLocal<PipeContext>();
+        this.outputCache = null;
+    }
+
+    /**
+     * Sets the output cache. When set the output made for a given input is
+     * cached (if it can be reused) and given back whenever a input with the
+     * same fingerprint is seen again instead of making a new output. This
+     * should only be used for pipes whose output depends only on their input.
+     * The cache holds a copy of the output and each hit is given a copy of
+     * that (see {@link #copyOutput(PipeResult)}) so that nobody using a output
+     * can change what the cache holds.
+     * 
+     * @param outputCache
+     *            the output cache (or null to stop caching)
+     */
+    public void setOutputCache(OutputCache outputCache) {
+        this.outputCache = outputCache;
+    }
+
+    /**
+     * Gets the output cache.
+     * 
+     * @return the output cache (or null if not caching)
+     */
+    public OutputCache getOutputCache() {
+        return outputCache;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.ContextPipe#isReusable(com.yahoo.flowetl.core.pipe
+     * .PipeResult)
+     */
+    @Override
+    public boolean isReusable(PipeResult output) {
+        return output != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.TypedPipe#getRequiredInputs()
+     */
+    @Override
+    public List<ParamKey<?>> getRequiredInputs() {
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.TypedPipe#getDeclaredOutputs()
+     */
+    @Override
+    public List<ParamKey<?>> getDeclaredOutputs() {
+        return null;
+    }
+
+    /**
+     * Makes a copy of the given output for the output cache. The default
+     * copies the params of plain backed results (the param values themselves
+     * are shared, so they should not be changed by whoever uses them) and
+     * does not copy anything else, derived classes whose outputs can be
+     * safely copied should override this.
+     * 
+     * @param output
+     * 
+     * @return the copy (or null if the output can not be copied, it is then
+     *         not cached)
+     */
+    protected PipeResult copyOutput(PipeResult output) {
+        if (output == null || output.getClass() != BackedPipeResult.class) {
+            return null;
+        }
+        BackedPipeResult copy = new BackedPipeResult();
+        copy.merge(output);
+        return copy;
+    }
+
+    /**
+     * Makes the key that the output made for the given inputs is cached with.
+     * 
+     * @param inputs
+     * 
+     * @return the cache key (or null if the inputs have a value that can not
+     *         be fingerprinted, the output is then not cached)
+     */
+    protected String makeCacheKey(List<PipeResult> inputs) {
+        String fingerprint = FingerprintUtils.fingerprint(new MergedPipeResult(inputs));
+        if (fingerprint == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(getClass().getName());
+        key.append(":");
+        key.append(getName());
+        key.append(":");
+        key.append(fingerprint);
+        return key.toString();
     }
 
     /*
@@ -136,6 +250,16 @@ public abstract class AbstractPipe implements Pipe
         collectedInputs.add(in);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.ContextPipe#getInputs()
+     */
+    @Override
+    public List<PipeResult> getInputs() {
+        return Collections.unmodifiableList(collectedInputs);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -143,10 +267,52 @@ public abstract class AbstractPipe implements Pipe
      */
     @Override
     public final PipeResult generateOutput() {
-        setPercentDone(0.0f);
-        PipeResult made = makeOutput(collectedInputs);
-        setPercentDone(1.0f);
-        return made;
+        return generateOutput(collectedInputs, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.ContextPipe#generateOutput(java.util.List,
+     * com.yahoo.flowetl.core.pipe.PipeContext)
+     */
+    @Override
+    public final PipeResult generateOutput(List<PipeResult> inputs, PipeContext context) {
+        PipeContext previous = activeContext.get();
+        activeContext.set(context);
+        try {
+            OutputCache cache = outputCache;
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = makeCacheKey(inputs);
+            }
+            if (cacheKey != null) {
+                PipeResult cached = cache.get(cacheKey);
+                if (cached != null) {
+                    PipeResult copy = copyOutput(cached);
+                    if (copy != null) {
+                        if (logger.isEnabled(Level.DEBUG)) {
+                            logger.log(Level.DEBUG, "Using cached output for " + cacheKey);
+                        }
+                        setPercentDone(1.0f);
+                        return copy;
+                    }
+                }
+            }
+            setPercentDone(0.0f);
+            PipeResult made = makeOutput(inputs);
+            setPercentDone(1.0f);
+            if (cacheKey != null && isReusable(made)) {
+                PipeResult copy = copyOutput(made);
+                if (copy != null) {
+                    cache.put(cacheKey, copy);
+                }
+            }
+            return made;
+        }
+        finally {
+            activeContext.set(previous);
+        }
     }
 
     /*
@@ -186,6 +352,8 @@ public abstract class AbstractPipe implements Pipe
     /**
      * Sets the percent done. Ie how far we are along from 0.0 to 1.0 in
      * completion if such a metric can be generated during creation of outputs.
+     * If this is called while generating output for a run the context of that
+     * run is also updated.
      * 
      * @param perDone
      */
@@ -199,9 +367,54 @@ public abstract class AbstractPipe implements Pipe
         synchronized (percentLock) {
             percentDone = perDone;
         }
+        PipeContext context = activeContext.get();
+        if (context != null) {
+            context.setPercentDone(perDone);
+        }
         logger.log(Level.INFO, "Set percent done to %s", perDone);
     }
 
+    /**
+     * Gets the context of the run this pipe is generating output for in the
+     * calling thread.
+     * 
+     * @return the context (or null if not generating output for a run)
+     */
+    protected PipeContext getActiveContext() {
+        return activeContext.get();
+    }
+
+    /**
+     * Sets the context of the run this pipe is generating output for in the
+     * calling thread. Work that is handed off to other threads uses this so
+     * that it still reports its progress to (and uses the memory budget of)
+     * the run that started it.
+     * 
+     * @param context
+     * 
+     * @return the context the calling thread had before (which should be set
+     *         back once that work is done)
+     */
+    protected PipeContext setActiveContext(PipeContext context) {
+        PipeContext previous = activeContext.get();
+        activeContext.set(context);
+        return previous;
+    }
+
+    /**
+     * Gets the memory budget of the run this pipe is generating output for.
+     * 
+     * @return the memory budget (or null if not limited or not generating
+     *         output for a run)
+     */
+    protected MemoryBudget getMemoryBudget() {
+        PipeContext context = activeContext.get();
+        if (context == null) {
+            return null;
+        }
+        return context.getMemoryBudget();
+    }
+
     /**
      * Gets the service registry.
      */
@@ -0,0 +1,64 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+import java.util.List;
+
+/**
+ * A pipe which can generate its output from inputs given to it for a single
+ * run (instead of from the inputs attached to it), so the same pipe can be ran
+ * by different runs at the same time. Pipes that are not context pipes are
+ * still ran by the runners, they just get their inputs attached to them (and
+ * are only ran by one run at a time).
+ * 
+ * @author Joshua Harlow
+ */
+public interface ContextPipe extends Pipe
+{
+    /**
+     * Gets the inputs which have been attached to this pipe (and not yet
+     * cleared).
+     * 
+     * @return the attached inputs
+     */
+    public List<PipeResult> getInputs();
+
+    /**
+     * Checks if the given output of this pipe can be given out again (ie for a
+     * later input with the same fingerprint, or to a later run) instead of
+     * making a new output. Outputs which can only be used once (ie a result
+     * set) can not.
+     * 
+     * @param output
+     * 
+     * @return true, if reusable
+     */
+    public boolean isReusable(PipeResult output);
+
+    /**
+     * Generates the output of the current pipe from the given inputs instead
+     * of the attached inputs. At this point it can be ensured that all input
+     * pipes have ran and there output is in the given inputs. Nothing specific
+     * to this call should be kept in the pipe itself (that is what the context
+     * is for) since the same pipe may be generating output for different runs
+     * at the same time.
+     * 
+     * @param inputs
+     *            the outputs of the pipes this pipe depends on
+     * @param context
+     *            the context of this call (may be null)
+     * 
+     * @return the generated pipe result.
+     */
+    public PipeResult generateOutput(List<PipeResult> inputs, PipeContext context);
+}
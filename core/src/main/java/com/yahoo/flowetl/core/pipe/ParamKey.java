@@ -0,0 +1,191 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.ClassUtils;
+
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.ParamSlots;
+
+/**
+ * A typed param name, pipes declare the keys they require as inputs and the
+ * keys they produce as outputs so that the plumber can check that pipes are
+ * wired together correctly before anything runs. The slot of the name is
+ * found once when the key is made so that getting a keys value from a backed
+ * (or merged) result does not look up the name again, it is a binary search
+ * over the few slots that result holds (see {@link BackedPipeResult}). Making
+ * a key interns its name for good (see {@link ParamSlots}) so keys should be
+ * made once (ie as constants) and not per record or per run.
+ * 
+ * @author Joshua Harlow
+ */
+public final class ParamKey<T>
+{
+    /** The param name. */
+    private final String name;
+
+    /** The type of the value. */
+    private final Class<T> type;
+
+    /** The interned slot of the name. */
+    private final int slot;
+
+    /**
+     * Instantiates a new param key.
+     */
+    private ParamKey(String name, Class<T> type) {
+        this.name = name;
+        this.type = type;
+        this.slot = ParamSlots.slotOf(name);
+    }
+
+    /**
+     * Makes a key for the given param name and value type.
+     * 
+     * @param name
+     * @param type
+     * 
+     * @return the param key
+     */
+    public static <T> ParamKey<T> of(String name, Class<T> type) {
+        if (name == null || type == null) {
+            throw new IllegalArgumentException("A param key needs a name and a type");
+        }
+        return new ParamKey<T>(name, type);
+    }
+
+    /**
+     * Makes a unmodifiable list of the given keys (useful for declaring the
+     * inputs and outputs of a pipe).
+     * 
+     * @param keys
+     * 
+     * @return the list of keys
+     */
+    public static List<ParamKey<?>> listOf(ParamKey<?>... keys) {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * Gets the name.
+     * 
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the type.
+     * 
+     * @return the type
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Gets the slot.
+     * 
+     * @return the slot
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Gets the value of this key from the given result (no type checking is
+     * done, that is what validators are for).
+     * 
+     * @param in
+     * 
+     * @return the value (or null if not there)
+     */
+    public T get(PipeResult in) {
+        if (in instanceof BackedPipeResult) {
+            return ((BackedPipeResult) in).<T> getParam(slot);
+        }
+        if (in instanceof MergedPipeResult) {
+            return ((MergedPipeResult) in).<T> getParam(slot);
+        }
+        return in.<T> getParam(name);
+    }
+
+    /**
+     * Sets the value of this key in the given result.
+     * 
+     * @param out
+     * @param value
+     */
+    public void set(BackedPipeResult out, T value) {
+        out.setParam(slot, value);
+    }
+
+    /**
+     * Checks if a value produced for the given key can be used as the value of
+     * this key, which is when they have the same name and the produced type
+     * can be assigned to this keys type.
+     * 
+     * @param produced
+     * 
+     * @return true, if it can
+     */
+    public boolean accepts(ParamKey<?> produced) {
+        if (produced == null || name.equals(produced.name) == false) {
+            return false;
+        }
+        return ClassUtils.isAssignable(produced.type, type);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return name.hashCode() * 31 + type.hashCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj instanceof ParamKey<?>) == false) {
+            return false;
+        }
+        ParamKey<?> other = (ParamKey<?>) obj;
+        return name.equals(other.name) && type.equals(other.type);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name + "<" + type.getName() + ">";
+    }
+}
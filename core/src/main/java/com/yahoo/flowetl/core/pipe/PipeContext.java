@@ -0,0 +1,63 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+
+/**
+ * The context that a single pipe generates its output in during a single run.
+ * Since the same pipe may be generating output for many runs at the same time,
+ * anything that is specific to one run (like how far along the pipe is) is
+ * kept here instead of in the pipe itself.
+ *
+ * @author Joshua Harlow
+ */
+public interface PipeContext
+{
+    /**
+     * Sets how far along (0.0<->1.0 inclusive) the pipe is in this run.
+     *
+     * @param perDone
+     */
+    public void setPercentDone(float perDone);
+
+    /**
+     * Gets how far along (0.0<->1.0 inclusive) the pipe is in this run.
+     *
+     * This should be thread safe since it might be called externally by other
+     * threads.
+     *
+     * @return the percent done
+     */
+    public float getPercentDone();
+
+    /**
+     * Gets the memory budget of this run, results the pipe holds on to which
+     * can be large should reserve their memory from it (and spill if they can
+     * not).
+     * 
+     * @return the memory budget (or null if not limited)
+     */
+    public MemoryBudget getMemoryBudget();
+
+    /**
+     * Adds a task that is ran once this run has completed (every pipe of it
+     * ran without failing), this is where a pipe makes permanent what should
+     * only be kept if whatever used its output succeeded (ie moving a high
+     * water mark). The task is dropped if the run fails and is ran right away
+     * (in the calling thread) if it is added after the run completed.
+     * 
+     * @param task
+     */
+    public void onCompletion(Runnable task);
+}
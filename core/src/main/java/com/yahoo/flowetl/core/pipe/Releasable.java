@@ -0,0 +1,30 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+/**
+ * A pipe result which holds on to something that should be given back as soon
+ * as nobody needs it anymore (ie a open result set). Runners release a result
+ * once every pipe that uses it has ran, so a releasable result should not be
+ * reusable (since it can not be given out again after being released).
+ * 
+ * @author Joshua Harlow
+ */
+public interface Releasable
+{
+    /**
+     * Releases whatever this result holds on to. This should not fail and
+     * should be fine to call more than once.
+     */
+    public void release();
+}
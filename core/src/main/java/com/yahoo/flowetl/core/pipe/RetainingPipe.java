@@ -0,0 +1,26 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+/**
+ * A pipe which holds on to the inputs it was given after it has ran (ie to
+ * capture them) in some way that is not visible from its output. Runners never
+ * release the outputs given to such a pipe, whatever they hold on to (ie a
+ * open result set) is then usable for as long as the pipe holds on to them.
+ * 
+ * @author Joshua Harlow
+ */
+public interface RetainingPipe extends Pipe
+{
+    // a marker only
+}
@@ -0,0 +1,285 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.CloseableIterator;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
+import com.yahoo.flowetl.core.runner.ThreadPerPipeExecutor;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+
+/**
+ * A pipe which consumes and emits records one at a time instead of producing
+ * a single materialized result. The records of the previous streaming pipe (if
+ * any) are found in its output under the records param and the records this
+ * pipe produces are put into a bounded channel which is placed in this pipes
+ * output under the same param.
+ *
+ * Each streaming pipe does its work on its own thread so a chain of streaming
+ * pipes has all of its stages working at the same time, and since each
+ * channel is bounded a stage that gets ahead of the stage after it will block
+ * until that stage catches up. A stage runs with the context of the run that
+ * started it, so it can report progress and use the memory budget of that run
+ * like any other pipe. A streaming pipe with no outputs is the end of
+ * its chain, it does its work in the thread running it so that the chain is
+ * fully drained (or its failure is known) when it completes. Such a pipe is
+ * meant to be a sink (which consumes the records without producing any),
+ * since nothing consumes what it produces while it runs only up to its
+ * capacity of records are kept in its output (for whoever ran the plan) and
+ * producing more fails it (attach another streaming pipe to consume them).
+ *
+ * The output of a streaming pipe is releasable, releasing a output whose
+ * records were not taken by a later streaming pipe closes its channel which
+ * stops the stage producing them (this is how a failed run stops stages that
+ * nobody will consume).
+ *
+ * @author Joshua Harlow
+ */
+public abstract class StreamingPipe extends AbstractPipe
+{
+    // outties
+    public static final String OUT_RECORDS = makeParamName(StreamingPipe.class, "records", false);
+
+    /** The default channel capacity. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** The executor that runs the stages (a thread per stage). */
+    private static final ExecutorService STAGE_EXECUTOR = new ThreadPerPipeExecutor("stream");
+
+    /** The capacity of the channels this pipe produces. */
+    private final int capacity;
+
+    /**
+     * The output of a streaming pipe, releasing it closes the channel of
+     * records it holds unless a later stage took those records (that stage
+     * then closes them when it is done).
+     */
+    protected static class StreamResult extends BackedPipeResult implements Releasable
+    {
+        /** The channel of records. */
+        private final RecordChannel<Object> records;
+
+        /** Whether a later stage took the records. */
+        private final AtomicBoolean taken;
+
+        /**
+         * Instantiates a new stream result.
+         *
+         * @param inputs
+         * @param records
+         */
+        public StreamResult(List<PipeResult> inputs, RecordChannel<Object> records) {
+            super(inputs);
+            this.records = records;
+            this.taken = new AtomicBoolean(false);
+            setParam(OUT_RECORDS, records);
+        }
+
+        /**
+         * Marks that a later stage took the records of this result.
+         */
+        private void take() {
+            taken.set(true);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.yahoo.flowetl.core.pipe.Releasable#release()
+         */
+        @Override
+        public void release() {
+            if (taken.get() == false) {
+                records.close();
+            }
+        }
+    }
+
+    /**
+     * Instantiates a new streaming pipe with the default channel capacity.
+     *
+     * @param name
+     * @param services
+     */
+    public StreamingPipe(String name, ServiceRegistry services) {
+        this(name, services, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Instantiates a new streaming pipe.
+     *
+     * @param name
+     * @param services
+     * @param capacity
+     *            how many records this pipe can get ahead of the pipe after it
+     *            (or keep if it is the end of its chain)
+     */
+    public StreamingPipe(String name, ServiceRegistry services, int capacity) {
+        super(name, services);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Channel capacity must be greater than zero");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the capacity of the channels this pipe produces.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#maxOutputs()
+     */
+    @Override
+    public int maxOutputs() {
+        // a channel can only be consumed once
+        return 1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.yahoo.flowetl.core.pipe.AbstractPipe#isReusable(com.yahoo.flowetl
+     * .core.pipe.PipeResult)
+     */
+    @Override
+    public boolean isReusable(PipeResult output) {
+        // a channel can only be consumed once
+        return false;
+    }
+
+    /**
+     * Derived classes implement this to consume the given records and put the
+     * records they produce into the given channel. This should stop when the
+     * records run out or when putting into the channel returns false (the
+     * consumer is no longer interested). The channel will be finished (or
+     * failed if this throws) after this returns.
+     *
+     * @param records
+     *            the records of the previous streaming pipe (or null if this
+     *            pipe is the start of a chain)
+     * @param out
+     *            where to put the produced records
+     * @param params
+     *            the merged inputs of this pipe
+     *
+     * @throws Exception
+     */
+    protected abstract void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception;
+
+    /**
+     * Runs the stream of this pipe (for the run with the given context),
+     * finishing (or failing) the channel and closing the previous channel.
+     */
+    private void runStream(CloseableIterator<Object> records, RecordChannel<Object> out, PipeResult params, PipeContext context) {
+        PipeContext previous = setActiveContext(context);
+        try {
+            stream(records, out, params);
+            out.finish();
+        }
+        catch (Throwable t) {
+            if (getLogger().isEnabled(Level.WARN)) {
+                getLogger().log(Level.WARN, t, "Streaming pipe " + getName() + " failed");
+            }
+            out.fail(t);
+        }
+        finally {
+            setActiveContext(previous);
+            closeRecords(records);
+        }
+    }
+
+    /**
+     * Closes the records given to this pipe (if any).
+     */
+    private void closeRecords(CloseableIterator<Object> records) {
+        if (records == null) {
+            return;
+        }
+        try {
+            records.close();
+        }
+        catch (Exception e) {
+            if (getLogger().isEnabled(Level.WARN)) {
+                getLogger().log(Level.WARN, e, "Unable to close records given to " + getName());
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.pipe.AbstractPipe#makeOutput(java.util.List)
+     */
+    @Override
+    protected PipeResult makeOutput(List<PipeResult> inputs) {
+        final MergedPipeResult params = new MergedPipeResult(inputs);
+        final CloseableIterator<Object> records = params.getParam(OUT_RECORDS);
+        if (records != null) {
+            // this stage now owns those records
+            for (PipeResult in : inputs) {
+                if (in instanceof StreamResult && ((StreamResult) in).records == records) {
+                    ((StreamResult) in).take();
+                }
+            }
+        }
+        List<Pipe> outputs = getOutputs();
+        if (outputs == null || outputs.isEmpty()) {
+            // end of the chain, drain it here (keeping what little
+            // it produces for whoever ran the plan)
+            RecordChannel<Object> out = RecordChannel.kept(capacity);
+            try {
+                stream(records, out, params);
+                out.finish();
+            }
+            catch (RuntimeException e) {
+                out.close();
+                throw e;
+            }
+            catch (Exception e) {
+                out.close();
+                throw new CoreException("Streaming pipe " + getName() + " failed", e);
+            }
+            finally {
+                closeRecords(records);
+            }
+            return new StreamResult(inputs, out);
+        }
+        // the stage reports to (and budgets with) the run that started it
+        final PipeContext context = getActiveContext();
+        final RecordChannel<Object> out = new RecordChannel<Object>(capacity);
+        STAGE_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                runStream(records, out, params, context);
+            }
+        });
+        return new StreamResult(inputs, out);
+    }
+}
@@ -0,0 +1,45 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe;
+
+import java.util.List;
+
+/**
+ * A pipe which declares the param keys it requires and the param keys it
+ * provides, these are checked when the pipes are translated so that wiring
+ * mistakes are found before running. Pipes that are not typed pipes are not
+ * checked (and the pipes after them are not checked either).
+ * 
+ * @author Joshua Harlow
+ */
+public interface TypedPipe extends Pipe
+{
+    /**
+     * Gets the param keys this pipe requires to be in its inputs, these are
+     * checked against the declared outputs of the pipes before it when the
+     * pipes are translated (so wiring mistakes are found before running).
+     * 
+     * @return the required keys (or null if not declared)
+     */
+    public List<ParamKey<?>> getRequiredInputs();
+
+    /**
+     * Gets the param keys this pipe puts into its output (including any inputs
+     * it passes through that the pipes after it rely on, since a pipe is only
+     * checked against the pipes directly before it).
+     * 
+     * @return the declared keys (or null if not declared, in which case the
+     *         pipes after this one are not checked)
+     */
+    public List<ParamKey<?>> getDeclaredOutputs();
+}
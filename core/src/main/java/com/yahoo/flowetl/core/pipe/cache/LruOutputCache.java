@@ -0,0 +1,109 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * A output cache which keeps up to a maximum number of outputs in memory,
+ * dropping the least recently used output when it is full.
+ * 
+ * @author Joshua Harlow
+ */
+public class LruOutputCache implements OutputCache
+{
+    /** The cached outputs (in least recently used order). */
+    private final Map<String, PipeResult> outputs;
+
+    /** The maximum amount of outputs to keep. */
+    private final int maxEntries;
+
+    /**
+     * Instantiates a new lru output cache.
+     * 
+     * @param maxEntries
+     *            the maximum amount of outputs to keep
+     */
+    @SuppressWarnings("serial")
+    public LruOutputCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        this.maxEntries = maxEntries;
+        this.outputs = new LinkedHashMap<String, PipeResult>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PipeResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the max entries.
+     * 
+     * @return the maximum amount of outputs to keep
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets how many outputs are cached.
+     * 
+     * @return the size
+     */
+    public synchronized int size() {
+        return outputs.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.cache.OutputCache#get(java.lang.String)
+     */
+    @Override
+    public synchronized PipeResult get(String key) {
+        return outputs.get(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.cache.OutputCache#put(java.lang.String,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    public synchronized void put(String key, PipeResult output) {
+        outputs.put(key, output);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [maxEntries=");
+        builder.append(maxEntries);
+        builder.append(", size=");
+        builder.append(size());
+        builder.append("]");
+        return builder.toString();
+    }
+}
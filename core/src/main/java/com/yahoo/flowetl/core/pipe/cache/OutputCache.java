@@ -0,0 +1,45 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe.cache;
+
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * A cache of pipe outputs keyed by a fingerprint of the input that produced
+ * them. Pipes which are given a cache will return the cached output instead of
+ * making a new one when they get an input with the same fingerprint again.
+ * 
+ * Implementations should be bounded and thread safe since the same cache may
+ * be used by pipes running at the same time.
+ * 
+ * @author Joshua Harlow
+ */
+public interface OutputCache
+{
+    /**
+     * Gets the output that was cached for the given key.
+     * 
+     * @param key
+     * 
+     * @return the output or null if not cached
+     */
+    public PipeResult get(String key);
+
+    /**
+     * Caches the given output for the given key.
+     * 
+     * @param key
+     * @param output
+     */
+    public void put(String key, PipeResult output);
+}
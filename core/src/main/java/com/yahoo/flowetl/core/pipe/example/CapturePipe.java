@@ -16,6 +16,7 @@ import java.util.List;
 
 import com.yahoo.flowetl.core.pipe.AbstractPipe;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.RetainingPipe;
 import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
 
@@ -24,11 +25,11 @@ import com.yahoo.flowetl.core.services.ServiceRegistry;
  * them all into one pipe result and return no output but it provides a function
  * that allows you to fetch the merged input. This is useful for testing or for
  * capturing any output of a given set of pipes (by attaching it as the output
- * of each pipe).
+ * of each pipe). What it captures is never released by the runner running it.
  * 
  * @author Joshua Harlow
  */
-public class CapturePipe extends AbstractPipe
+public class CapturePipe extends AbstractPipe implements RetainingPipe
 {
     /** The input collector pipe that will store all inputs merged. */
     private final BackedPipeResult inputCollector;
@@ -12,30 +12,49 @@
  *******************************************************/
 package com.yahoo.flowetl.core.pipe.result;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.lang.ClassUtils;
 
 import com.yahoo.flowetl.core.pipe.PipeResult;
 
 /**
- * An implementation of a pipe result which uses a map as backing store.
+ * An implementation of a pipe result which keeps its params sorted by param
+ * slot (see {@link ParamSlots}) in a pair of compact arrays, so the storage is
+ * sized to the params this result has (not to the highest slot ever interned),
+ * getting a param is a binary search and merging another backed result is a
+ * linear merge of the two arrays.
  * 
  * @author harlowja
  */
 public class BackedPipeResult implements PipeResult
 {
-    /** The backing map storage. */
-    private final Map<String, Object> backing;
+    /** The empty slots. */
+    private static final int[] NO_SLOTS = new int[0];
+
+    /** The empty values. */
+    private static final Object[] NO_VALUES = new Object[0];
+
+    /** The slots that have a param (sorted, only the first size are used). */
+    private int[] slots;
+
+    /** The value of each used slot (in the same order as the slots). */
+    private Object[] values;
+
+    /** How many params there are. */
+    private int size;
 
     /**
      * Instantiates a new backed pipe result.
      */
     public BackedPipeResult() {
-        backing = new TreeMap<String, Object>();
+        slots = NO_SLOTS;
+        values = NO_VALUES;
+        size = 0;
     }
 
     /**
@@ -55,6 +74,42 @@ public class BackedPipeResult implements PipeResult
         }
     }
 
+    /**
+     * Ensures the backing storage can hold the given amount of params.
+     */
+    private void ensureCapacity(int amount) {
+        if (amount <= slots.length) {
+            return;
+        }
+        int length = Math.max(amount, Math.max(4, slots.length * 2));
+        slots = Arrays.copyOf(slots, length);
+        values = Arrays.copyOf(values, length);
+    }
+
+    /**
+     * Finds where the given slot is stored.
+     * 
+     * @return the index (or the negative insertion point minus one if the slot
+     *         has no param)
+     */
+    private int indexOf(int slot) {
+        if (slot < 0) {
+            return -1;
+        }
+        return Arrays.binarySearch(slots, 0, size, slot);
+    }
+
+    /**
+     * Checks if the given slot has a param.
+     * 
+     * @param slot
+     * 
+     * @return true, if it has
+     */
+    public boolean isParamExistent(int slot) {
+        return indexOf(slot) >= 0;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -62,7 +117,37 @@ public class BackedPipeResult implements PipeResult
      */
     @Override
     public Iterator<String> iterator() {
-        return backing.keySet().iterator();
+        return new Iterator<String>()
+        {
+            private int next = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = slots[next];
+                next++;
+                return ParamSlots.nameOf(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last == -1) {
+                    throw new IllegalStateException();
+                }
+                removeParam(last);
+                // everything after the removed param moved down by one
+                next--;
+                last = -1;
+            }
+        };
     }
 
     /**
@@ -72,7 +157,47 @@ public class BackedPipeResult implements PipeResult
      * @param value
      */
     public void setParam(String name, Object value) {
-        backing.put(name, value);
+        setParam(ParamSlots.slotOf(name), value);
+    }
+
+    /**
+     * Sets the param with the given slot to the given value
+     * 
+     * @param slot
+     * @param value
+     */
+    public void setParam(int slot, Object value) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("Param slots can not be negative");
+        }
+        int at = indexOf(slot);
+        if (at >= 0) {
+            values[at] = value;
+            return;
+        }
+        at = -(at + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(slots, at, slots, at + 1, size - at);
+        System.arraycopy(values, at, values, at + 1, size - at);
+        slots[at] = slot;
+        values[at] = value;
+        size++;
+    }
+
+    /**
+     * Removes the param with the given slot.
+     * 
+     * @param slot
+     */
+    public void removeParam(int slot) {
+        int at = indexOf(slot);
+        if (at < 0) {
+            return;
+        }
+        System.arraycopy(slots, at + 1, slots, at, size - at - 1);
+        System.arraycopy(values, at + 1, values, at, size - at - 1);
+        size--;
+        values[size] = null;
     }
 
     /*
@@ -80,10 +205,25 @@ public class BackedPipeResult implements PipeResult
      * 
      * @see com.yahoo.flowetl.core.pipe.PipeResult#getParam(java.lang.String)
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <T> T getParam(String name) {
-        return (T) backing.get(name);
+        return this.<T> getParam(ParamSlots.lookup(name));
+    }
+
+    /**
+     * Gets the param with the given slot.
+     * 
+     * @param slot
+     * 
+     * @return the param (or null if not there)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getParam(int slot) {
+        int at = indexOf(slot);
+        if (at < 0) {
+            return null;
+        }
+        return (T) values[at];
     }
 
     /*
@@ -108,9 +248,13 @@ public class BackedPipeResult implements PipeResult
      */
     @Override
     public String toString() {
+        List<String> names = new ArrayList<String>();
+        for (String name : this) {
+            names.add(name);
+        }
         StringBuilder builder = new StringBuilder();
         builder.append(super.toString() + " [backing=");
-        builder.append(backing.keySet());
+        builder.append(names);
         builder.append("]");
         return builder.toString();
     }
@@ -119,7 +263,8 @@ public class BackedPipeResult implements PipeResult
      * Clears the backing storage.
      */
     public void clear() {
-        backing.clear();
+        Arrays.fill(values, 0, size, null);
+        size = 0;
     }
 
     /**
@@ -134,6 +279,10 @@ public class BackedPipeResult implements PipeResult
         if (inResult == this) {
             return;
         }
+        if (inResult instanceof BackedPipeResult) {
+            merge((BackedPipeResult) inResult);
+            return;
+        }
         Iterator<String> pIt = inResult.iterator();
         if (pIt == null) {
             return;
@@ -141,9 +290,52 @@ public class BackedPipeResult implements PipeResult
         while (pIt.hasNext()) {
             String k = pIt.next();
             if (k != null) {
-                backing.put(k, inResult.getParam(k));
+                setParam(k, inResult.getParam(k));
+            }
+        }
+    }
+
+    /**
+     * Merges the given backed result by merging its sorted slots with ours.
+     */
+    private void merge(BackedPipeResult other) {
+        int am = other.size;
+        if (am == 0) {
+            return;
+        }
+        if (size == 0) {
+            // nothing to be over-ridden so just copy it all
+            ensureCapacity(am);
+            System.arraycopy(other.slots, 0, slots, 0, am);
+            System.arraycopy(other.values, 0, values, 0, am);
+            size = am;
+            return;
+        }
+        int[] newSlots = new int[size + am];
+        Object[] newValues = new Object[size + am];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size || j < am) {
+            if (j == am || (i < size && slots[i] < other.slots[j])) {
+                newSlots[k] = slots[i];
+                newValues[k] = values[i];
+                i++;
+            }
+            else {
+                if (i < size && slots[i] == other.slots[j]) {
+                    // the other result over-rides ours
+                    i++;
+                }
+                newSlots[k] = other.slots[j];
+                newValues[k] = other.values[j];
+                j++;
             }
+            k++;
         }
+        slots = newSlots;
+        values = newValues;
+        size = k;
     }
 
     /*
@@ -173,6 +365,6 @@ public class BackedPipeResult implements PipeResult
      */
     @Override
     public boolean isParamExistent(String name) {
-        return backing.containsKey(name);
+        return isParamExistent(ParamSlots.lookup(name));
     }
 }
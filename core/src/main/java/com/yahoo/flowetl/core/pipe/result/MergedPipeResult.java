@@ -0,0 +1,244 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe.result;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.ClassUtils;
+
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * A pipe result which is a view of a list of other pipe results merged
+ * together, without copying any of their params. A param is looked up in the
+ * results from last to first so that later results win (the same as merging
+ * them into a backed pipe result would). The first time a param is set on
+ * this view the merged params are copied into a backed pipe result which is
+ * then used from there on (the viewed results are never changed).
+ * 
+ * @author Joshua Harlow
+ */
+public class MergedPipeResult implements PipeResult
+{
+    /** The results being viewed (in merge order). */
+    private final PipeResult[] layers;
+
+    /** The materialized result (or null if not written to yet). */
+    private BackedPipeResult materialized;
+
+    /**
+     * Instantiates a new merged view of the given results.
+     * 
+     * @param toMerge
+     *            the results (later ones win)
+     */
+    public MergedPipeResult(List<PipeResult> toMerge) {
+        List<PipeResult> tmp = new ArrayList<PipeResult>();
+        if (toMerge != null) {
+            for (int i = 0; i < toMerge.size(); i++) {
+                if (toMerge.get(i) != null) {
+                    tmp.add(toMerge.get(i));
+                }
+            }
+        }
+        this.layers = tmp.toArray(new PipeResult[tmp.size()]);
+        this.materialized = null;
+    }
+
+    /**
+     * Finds the last result which has the given param.
+     * 
+     * @return that result (or null if none have it)
+     */
+    private PipeResult find(String name) {
+        for (int i = layers.length - 1; i >= 0; i--) {
+            if (layers[i].isParamExistent(name)) {
+                return layers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the param with the given name to the given value, copying the
+     * merged params first if this is the first write.
+     * 
+     * @param name
+     * @param value
+     */
+    public void setParam(String name, Object value) {
+        if (materialized == null) {
+            BackedPipeResult tmp = new BackedPipeResult();
+            for (int i = 0; i < layers.length; i++) {
+                tmp.merge(layers[i]);
+            }
+            materialized = tmp;
+        }
+        materialized.setParam(name, value);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.PipeResult#getParam(java.lang.String)
+     */
+    @Override
+    public <T> T getParam(String name) {
+        if (materialized != null) {
+            return materialized.<T> getParam(name);
+        }
+        PipeResult from = find(name);
+        if (from == null) {
+            return null;
+        }
+        return from.<T> getParam(name);
+    }
+
+    /**
+     * Gets the param with the given slot.
+     * 
+     * @param slot
+     * 
+     * @return the param (or null if not there)
+     */
+    public <T> T getParam(int slot) {
+        if (materialized != null) {
+            return materialized.<T> getParam(slot);
+        }
+        String name = null;
+        for (int i = layers.length - 1; i >= 0; i--) {
+            PipeResult layer = layers[i];
+            if (layer instanceof BackedPipeResult) {
+                BackedPipeResult backed = (BackedPipeResult) layer;
+                if (backed.isParamExistent(slot)) {
+                    return backed.<T> getParam(slot);
+                }
+                continue;
+            }
+            if (name == null) {
+                name = ParamSlots.nameOf(slot);
+            }
+            if (layer.isParamExistent(name)) {
+                return layer.<T> getParam(name);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.PipeResult#isParamExistent(java.lang.String)
+     */
+    @Override
+    public boolean isParamExistent(String name) {
+        if (materialized != null) {
+            return materialized.isParamExistent(name);
+        }
+        return find(name) != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.PipeResult#getParamClass(java.lang.String)
+     */
+    @Override
+    public Class<?> getParamClass(String name) {
+        Object o = getParam(name);
+        if (o == null) {
+            return null;
+        }
+        return o.getClass();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.pipe.PipeResult#isParamCastable(java.lang.String,
+     * java.lang.Class)
+     */
+    @Override
+    public <T> boolean isParamCastable(String name, Class<T> kls) {
+        Class<?> pKls = getParamClass(name);
+        if (pKls == null) {
+            return false;
+        }
+        if (ClassUtils.isAssignable(pKls, kls) == false) {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Iterable#iterator()
+     */
+    @Override
+    public Iterator<String> iterator() {
+        if (materialized != null) {
+            return materialized.iterator();
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        for (int i = 0; i < layers.length; i++) {
+            for (String name : layers[i]) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+        }
+        final Iterator<String> it = names.iterator();
+        // this is a view so it can not be removed from
+        return new Iterator<String>()
+        {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [layers=");
+        builder.append(layers.length);
+        builder.append(", materialized=");
+        builder.append(materialized != null);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.pipe.result;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.yahoo.flowetl.core.CoreException;
+
+/**
+ * The table which interns param names into integer slots, each distinct param
+ * name gets the next slot the first time it is seen and keeps it for the life
+ * of the process. Results then keep their params sorted by slot (see
+ * {@link BackedPipeResult}) instead of in maps keyed by name, each result only
+ * stores the params it has so a result is never sized by how many names have
+ * been interned.
+ * 
+ * The table is shared by everything (instead of being per plan) so that
+ * results made by different plans can still be merged by slot. It never
+ * shrinks (a slot can not be given back while some result may still hold it)
+ * and costs one entry per distinct name, so param names should be fixed names
+ * (not names made up per record or per run). To keep such a mistake from
+ * slowly using up memory the table is bounded, interning more than
+ * {@link #MAX_SLOTS} names fails.
+ * 
+ * @author Joshua Harlow
+ */
+public final class ParamSlots
+{
+    /** The most names that can be interned. */
+    public static final int MAX_SLOTS = 1 << 16;
+
+    /** The slot of each interned name. */
+    private static final Map<String, Integer> SLOTS = new ConcurrentHashMap<String, Integer>();
+
+    /** The lock used when interning a new name. */
+    private static final Object LOCK = new Object();
+
+    /** The name of each slot. */
+    private static volatile String[] names = new String[64];
+
+    /** How many slots are used (guarded by the lock). */
+    private static int used = 0;
+
+    private ParamSlots() {
+        // a util class
+    }
+
+    /**
+     * Gets the slot of the given param name, interning it if it has not been
+     * seen before.
+     * 
+     * @param name
+     * 
+     * @return the slot
+     */
+    public static int slotOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Param names can not be null");
+        }
+        Integer slot = SLOTS.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (LOCK) {
+            slot = SLOTS.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            int newSlot = used;
+            if (newSlot >= MAX_SLOTS) {
+                throw new CoreException("Unable to intern param name " + name + ", already " + MAX_SLOTS + " param names are interned (are names being made up per record or per run?)");
+            }
+            String[] tmp = names;
+            if (newSlot >= tmp.length) {
+                String[] bigger = new String[tmp.length * 2];
+                System.arraycopy(tmp, 0, bigger, 0, tmp.length);
+                tmp = bigger;
+            }
+            tmp[newSlot] = name;
+            names = tmp;
+            used++;
+            // the name is in place before anyone can get its slot
+            SLOTS.put(name, newSlot);
+            return newSlot;
+        }
+    }
+
+    /**
+     * Gets the slot of the given param name without interning it.
+     * 
+     * @param name
+     * 
+     * @return the slot (or -1 if that name has never been interned)
+     */
+    public static int lookup(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer slot = SLOTS.get(name);
+        if (slot == null) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Gets the param name of the given slot.
+     * 
+     * @param slot
+     * 
+     * @return the name
+     */
+    public static String nameOf(int slot) {
+        return names[slot];
+    }
+}
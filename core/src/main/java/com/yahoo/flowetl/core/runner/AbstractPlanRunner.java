@@ -0,0 +1,411 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang.time.StopWatch;
+
+import com.yahoo.flowetl.core.Logger;
+import com.yahoo.flowetl.core.PipeRunner;
+import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.listener.FlowListener;
+import com.yahoo.flowetl.core.pipe.ContextPipe;
+import com.yahoo.flowetl.core.pipe.Pipe;
+import com.yahoo.flowetl.core.pipe.PipeContext;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.Releasable;
+import com.yahoo.flowetl.core.pipe.RetainingPipe;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
+import com.yahoo.flowetl.core.util.FingerprintUtils;
+
+/**
+ * The base of the pipe runners which run a execution plan, it knows how to run
+ * a single fused unit of that plan so that derivatives only need to decide
+ * when (and where) each unit runs.
+ *
+ * When ran incrementally the fingerprint of the inputs each pipe got (and the
+ * output it made) is retained from run to run, a pipe whose inputs have the
+ * same fingerprint as last time is not ran again and its retained output is
+ * used instead (flow listeners are still told it started and finished, with
+ * a time of {@link FlowListener#REUSED}). Only the pipes whose inputs changed
+ * (and the pipes after them whose inputs then change) are ran again. Pipes
+ * without any inputs are always ran since there is nothing to tell if what
+ * they read has changed, as are pipes given a value that can not be
+ * fingerprinted (see {@link FingerprintUtils}).
+ *
+ * The output of a pipe is dropped from the run as soon as all the pipes using
+ * it have ran and if it is releasable it is released then (unless it is being
+ * retained for the next incremental run). A output that the output of a pipe
+ * using it still holds on to (ie that output has the same result set in it)
+ * is released when that output is, and a output given to a pipe that retains
+ * its inputs is never released.
+ *
+ * @author Joshua Harlow
+ */
+public abstract class AbstractPlanRunner extends PipeRunner
+{
+    /** The logger. */
+    private static final Logger logger = new Logger(AbstractPlanRunner.class);
+
+    /** The compiled plan of the pipes to run. */
+    private final ExecutionPlan plan;
+
+    /** The retained inputs and outputs of each pipe (or null if disabled). */
+    private volatile AtomicReferenceArray<Retained> retained;
+
+    /** The memory each run may use (or -1 if not limited). */
+    private volatile long memoryBudgetBytes;
+
+    /** Where each run spills what does not fit (or null for temp). */
+    private volatile File spillDir;
+
+    /**
+     * The fingerprint of the inputs a pipe last ran with and the output it
+     * made from them.
+     */
+    private static final class Retained
+    {
+        /** The input fingerprint. */
+        private final String fingerprint;
+
+        /** The output made. */
+        private final PipeResult output;
+
+        private Retained(String fingerprint, PipeResult output) {
+            this.fingerprint = fingerprint;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Instantiates a new plan runner.
+     *
+     * @param plan
+     *            the compiled plan of pipes to run
+     */
+    public AbstractPlanRunner(ExecutionPlan plan) {
+        super();
+        if (plan == null) {
+            throw new IllegalArgumentException("No valid plan provided");
+        }
+        this.plan = plan;
+        this.memoryBudgetBytes = -1;
+        this.spillDir = null;
+    }
+
+    /**
+     * Gets the plan.
+     *
+     * @return the compiled plan this runner runs
+     */
+    public ExecutionPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Sets whether this runner runs incrementally, turning it off forgets all
+     * that was retained.
+     *
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental) {
+        if (incremental == false) {
+            this.retained = null;
+        }
+        else if (this.retained == null) {
+            this.retained = new AtomicReferenceArray<Retained>(plan.size());
+        }
+    }
+
+    /**
+     * Checks if this runner runs incrementally.
+     *
+     * @return true, if incremental
+     */
+    public boolean isIncremental() {
+        return retained != null;
+    }
+
+    /**
+     * Sets how much memory each run may use for the results its pipes hold on
+     * to, results which do not fit spill to files in the given directory.
+     *
+     * @param maxBytes
+     *            the bytes each run may use (or -1 for no limit)
+     * @param spillDir
+     *            where to spill to (or null for the temp directory)
+     */
+    public void setMemoryBudget(long maxBytes, File spillDir) {
+        this.spillDir = spillDir;
+        this.memoryBudgetBytes = maxBytes;
+    }
+
+    /**
+     * Gets how much memory each run may use.
+     *
+     * @return the bytes each run may use (or -1 for no limit)
+     */
+    public long getMemoryBudget() {
+        return memoryBudgetBytes;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.PipeRunner#newContext()
+     */
+    @Override
+    public RunContext newContext() {
+        long maxBytes = memoryBudgetBytes;
+        MemoryBudget budget = null;
+        if (maxBytes >= 0) {
+            budget = new MemoryBudget(maxBytes, spillDir);
+        }
+        return new RunContext(plan, budget);
+    }
+
+    /**
+     * Runs the pipes of the unit at the given index one after the other. At
+     * this point all the pipes which provide inputs to the first pipe of that
+     * unit must have ran, the other pipes of the unit get the output of the
+     * pipe before them directly.
+     *
+     * @param context
+     *            the context of the run
+     * @param unitIndex
+     *            the index of the unit to run
+     */
+    protected void runUnit(RunContext context, int unitIndex) {
+        int[] unit = plan.units[unitIndex];
+        StopWatch perRunTimer = new StopWatch();
+        PipeResult pipeRes = null;
+        for (int u = 0; u < unit.length; u++) {
+            int index = unit[u];
+            Pipe toRun = plan.pipes[index];
+            List<PipeResult> pipeInputs = null;
+            if (u == 0) {
+                // add in the same order that a unfused run would have
+                int[] providers = plan.inputs[index];
+                for (int i = 0; i < providers.length; i++) {
+                    context.addInput(index, context.getOutput(providers[i]));
+                }
+                pipeInputs = context.getInputs(index);
+            }
+            else if (context.hasInputs(index)) {
+                // starting inputs were given, they go first
+                context.addInput(index, pipeRes);
+                pipeInputs = context.getInputs(index);
+            }
+            else {
+                pipeInputs = Collections.singletonList(pipeRes);
+            }
+            AtomicReferenceArray<Retained> lastRan = retained;
+            String fingerprint = null;
+            if (lastRan != null && pipeInputs.isEmpty() == false) {
+                fingerprint = FingerprintUtils.fingerprint(new MergedPipeResult(pipeInputs));
+                Retained last = lastRan.get(index);
+                if (last != null && fingerprint != null && last.fingerprint.equals(fingerprint)) {
+                    if (logger.isEnabled(Level.INFO)) {
+                        logger.log(Level.INFO, "Reusing the output of pipe " + toRun + " since its inputs did not change");
+                    }
+                    // listeners still see it (as being reused)
+                    notifyStartGenerate(toRun);
+                    pipeRes = last.output;
+                    context.getPipeContext(index).setPercentDone(1.0f);
+                    context.setOutput(index, pipeRes);
+                    notifyFinishGenerate(toRun, pipeRes, FlowListener.REUSED);
+                    context.clearInputs(index);
+                    consumedInputs(context, index, toRun, pipeRes);
+                    continue;
+                }
+            }
+            if (logger.isEnabled(Level.INFO)) {
+                logger.log(Level.INFO, "Running pipe " + toRun);
+            }
+            perRunTimer.reset();
+            perRunTimer.start();
+            notifyStartGenerate(toRun);
+            {
+                pipeRes = generate(toRun, pipeInputs, context.getPipeContext(index));
+            }
+            perRunTimer.stop();
+            context.setOutput(index, pipeRes);
+            if (lastRan != null) {
+                if (fingerprint != null && toRun instanceof ContextPipe && ((ContextPipe) toRun).isReusable(pipeRes)) {
+                    lastRan.set(index, new Retained(fingerprint, pipeRes));
+                }
+                else {
+                    lastRan.set(index, null);
+                }
+            }
+            notifyFinishGenerate(toRun, pipeRes, perRunTimer.getTime());
+            // now clear it
+            context.clearInputs(index);
+            consumedInputs(context, index, toRun, pipeRes);
+        }
+    }
+
+    /**
+     * Generates the output of the given pipe from the given inputs. Pipes that
+     * are not context pipes get the inputs attached to them instead (and so
+     * are only ran by one run at a time).
+     */
+    private static PipeResult generate(Pipe toRun, List<PipeResult> pipeInputs, PipeContext pipeContext) {
+        if (toRun instanceof ContextPipe) {
+            return ((ContextPipe) toRun).generateOutput(pipeInputs, pipeContext);
+        }
+        synchronized (toRun) {
+            try {
+                for (PipeResult in : pipeInputs) {
+                    toRun.attachInput(in);
+                }
+                return toRun.generateOutput();
+            }
+            finally {
+                toRun.clearInputs();
+            }
+        }
+    }
+
+    /**
+     * Marks that the pipe at the given index has used the outputs of the pipes
+     * that provide its inputs (and made the given output from them), releasing
+     * any of those outputs that are no longer needed.
+     */
+    private void consumedInputs(RunContext context, int index, Pipe toRun, PipeResult output) {
+        int[] providers = plan.inputs[index];
+        for (int i = 0; i < providers.length; i++) {
+            PipeResult in = context.getOutput(providers[i]);
+            if (in != null) {
+                if (toRun instanceof RetainingPipe) {
+                    context.hold(providers[i]);
+                }
+                else if (holdsOnTo(context, providers[i], in, output)) {
+                    context.keep(index, i);
+                }
+            }
+            PipeResult done = context.consumed(providers[i]);
+            if (done != null) {
+                release(context, providers[i], done);
+            }
+        }
+    }
+
+    /**
+     * Checks if the given output holds on to the given input (of the pipe at
+     * the given index), that is if it is that input or has any of the same
+     * param values. Only inputs that are releasable (or that hold on to other
+     * outputs themselves) are checked since only they can be released.
+     */
+    private static boolean holdsOnTo(RunContext context, int inputIndex, PipeResult in, PipeResult output) {
+        if (output == null) {
+            return false;
+        }
+        if (output == in) {
+            return true;
+        }
+        if ((in instanceof Releasable) == false && context.isKeeping(inputIndex) == false) {
+            return false;
+        }
+        Set<Object> values = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        collectValues(output, values);
+        if (values.isEmpty()) {
+            return false;
+        }
+        Iterator<String> names = in.iterator();
+        while (names != null && names.hasNext()) {
+            Object value = in.getParam(names.next());
+            if (value != null && values.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the (non null) param values of the given result to the given set.
+     */
+    private static void collectValues(PipeResult res, Set<Object> values) {
+        Iterator<String> names = res.iterator();
+        while (names != null && names.hasNext()) {
+            Object value = res.getParam(names.next());
+            if (value != null) {
+                values.add(value);
+            }
+        }
+    }
+
+    /**
+     * Releases the given output of the pipe at the given index if it is
+     * releasable and not retained for the next incremental run, the outputs
+     * it was holding on to are then released too (if nothing else holds on
+     * to them).
+     */
+    private void release(RunContext context, int index, PipeResult output) {
+        AtomicReferenceArray<Retained> lastRan = retained;
+        if (lastRan != null) {
+            Retained last = lastRan.get(index);
+            if (last != null && last.output == output) {
+                return;
+            }
+        }
+        if (output instanceof Releasable) {
+            if (logger.isEnabled(Level.DEBUG)) {
+                logger.log(Level.DEBUG, "Releasing the output of pipe " + plan.pipes[index]);
+            }
+            try {
+                ((Releasable) output).release();
+            }
+            catch (RuntimeException e) {
+                if (logger.isEnabled(Level.WARN)) {
+                    logger.log(Level.WARN, e, "Unable to release the output of pipe " + plan.pipes[index]);
+                }
+            }
+        }
+        int[] providers = plan.inputs[index];
+        for (int i = 0; i < providers.length; i++) {
+            PipeResult freed = context.unkeep(index, i);
+            if (freed != null) {
+                release(context, providers[i], freed);
+            }
+        }
+    }
+
+    /**
+     * Releases the outputs that a run which did not complete still holds
+     * (other than those of the last pipes). This should only be called when
+     * no pipes of that run are still running.
+     *
+     * @param context
+     */
+    protected void releaseUnfinished(RunContext context) {
+        for (int i = 0; i < plan.pipes.length; i++) {
+            context.clearInputs(i);
+            if (plan.outputs[i].length == 0) {
+                continue;
+            }
+            PipeResult out = context.getOutput(i);
+            if (out != null) {
+                context.setOutput(i, null);
+                release(context, i, out);
+            }
+        }
+    }
+}
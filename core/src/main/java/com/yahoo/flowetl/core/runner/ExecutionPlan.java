@@ -0,0 +1,274 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.flowetl.core.pipe.Pipe;
+
+/**
+ * A compiled (and immutable) form of a set of connected pipes that runners can
+ * run many times without having to walk a graph again. Each pipe is given an
+ * index which is its position in a ordering where a pipes inputs always come
+ * before it, and the connections between pipes are kept as arrays of those
+ * indexes.
+ *
+ * Chains of pipes where a pipe is the only input of the next pipe and that
+ * next pipe is the only output of the pipe are fused into a single unit. The
+ * pipes of a unit always run one after the other so runners can schedule a
+ * unit as a whole and hand the output of one pipe straight to the next.
+ *
+ * @author Joshua Harlow
+ */
+public final class ExecutionPlan
+{
+    /** The pipes in a order where inputs are satisfied before a pipe runs. */
+    final Pipe[] pipes;
+
+    /** The same pipes as a list (for listeners). */
+    final List<Pipe> ordering;
+
+    /** For each pipe the pipes which provide its inputs (in order). */
+    final int[][] inputs;
+
+    /** For each pipe the pipes which use its output. */
+    final int[][] outputs;
+
+    /** For each pipe how many pipes provide its inputs. */
+    final int[] inputCounts;
+
+    /** The fused units (chains of pipe indexes) in the order of their heads. */
+    final int[][] units;
+
+    /** For each pipe the unit it is in. */
+    final int[] unitOf;
+
+    /** For each unit the units which use the output of its last pipe. */
+    final int[][] unitOutputs;
+
+    /** For each unit how many pipes provide inputs to its first pipe. */
+    final int[] unitInputCounts;
+
+    /** The index of each pipe. */
+    private final Map<Pipe, Integer> indexes;
+
+    /**
+     * Compiles a new execution plan.
+     *
+     * @param ordering
+     *            the pipes to run in an order where a pipes inputs will always
+     *            come before that pipe
+     */
+    public ExecutionPlan(List<Pipe> ordering) {
+        final int am = ordering.size();
+        this.pipes = ordering.toArray(new Pipe[am]);
+        this.ordering = Collections.unmodifiableList(new ArrayList<Pipe>(ordering));
+        this.indexes = new IdentityHashMap<Pipe, Integer>();
+        for (int i = 0; i < am; i++) {
+            indexes.put(pipes[i], i);
+        }
+        List<List<Integer>> ins = new ArrayList<List<Integer>>(am);
+        List<List<Integer>> outs = new ArrayList<List<Integer>>(am);
+        for (int i = 0; i < am; i++) {
+            ins.add(new ArrayList<Integer>());
+            outs.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < am; i++) {
+            List<Pipe> pipeOutputs = pipes[i].getOutputs();
+            if (pipeOutputs == null) {
+                continue;
+            }
+            for (Pipe tmp : pipeOutputs) {
+                Integer j = indexes.get(tmp);
+                if (j == null || outs.get(i).contains(j)) {
+                    continue;
+                }
+                if (j <= i) {
+                    throw new IllegalArgumentException("Pipe " + tmp + " comes before its input " + pipes[i] + " in the given ordering");
+                }
+                outs.get(i).add(j);
+                // since we go in order the inputs will also be in order
+                ins.get(j).add(i);
+            }
+        }
+        this.inputs = toArrays(ins);
+        this.outputs = toArrays(outs);
+        this.inputCounts = new int[am];
+        for (int i = 0; i < am; i++) {
+            inputCounts[i] = inputs[i].length;
+        }
+        // fuse the chains, going in order means a chain
+        // is always found from its first pipe
+        this.unitOf = new int[am];
+        List<int[]> fused = new ArrayList<int[]>();
+        boolean[] taken = new boolean[am];
+        for (int i = 0; i < am; i++) {
+            if (taken[i]) {
+                continue;
+            }
+            List<Integer> chain = new ArrayList<Integer>();
+            int cur = i;
+            while (true) {
+                chain.add(cur);
+                taken[cur] = true;
+                unitOf[cur] = fused.size();
+                if (canFuse(cur) == false) {
+                    break;
+                }
+                cur = outputs[cur][0];
+            }
+            int[] unit = new int[chain.size()];
+            for (int j = 0; j < unit.length; j++) {
+                unit[j] = chain.get(j);
+            }
+            fused.add(unit);
+        }
+        this.units = fused.toArray(new int[fused.size()][]);
+        this.unitOutputs = new int[units.length][];
+        this.unitInputCounts = new int[units.length];
+        for (int u = 0; u < units.length; u++) {
+            int[] tailOutputs = outputs[units[u][units[u].length - 1]];
+            unitOutputs[u] = new int[tailOutputs.length];
+            for (int j = 0; j < tailOutputs.length; j++) {
+                unitOutputs[u][j] = unitOf[tailOutputs[j]];
+            }
+            unitInputCounts[u] = inputCounts[units[u][0]];
+        }
+    }
+
+    /**
+     * Checks if the pipe at the given index can be fused with the pipe after
+     * it, which is when that pipe is its only output and it is the only input
+     * of that pipe.
+     */
+    private boolean canFuse(int index) {
+        if (outputs[index].length != 1) {
+            return false;
+        }
+        return inputCounts[outputs[index][0]] == 1;
+    }
+
+    /**
+     * Converts a list of index lists into a array of index arrays.
+     */
+    private static int[][] toArrays(List<List<Integer>> in) {
+        int[][] out = new int[in.size()][];
+        for (int i = 0; i < out.length; i++) {
+            List<Integer> cur = in.get(i);
+            out[i] = new int[cur.size()];
+            for (int j = 0; j < out[i].length; j++) {
+                out[i][j] = cur.get(j);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Gets the number of pipes in this plan.
+     */
+    public int size() {
+        return pipes.length;
+    }
+
+    /**
+     * Gets the pipe at the given index.
+     */
+    public Pipe getPipe(int index) {
+        return pipes[index];
+    }
+
+    /**
+     * Gets the number of fused units in this plan.
+     */
+    public int getUnitCount() {
+        return units.length;
+    }
+
+    /**
+     * Gets the indexes of the pipes (in the order they run) of the unit at the
+     * given index.
+     *
+     * @return a copy of those indexes
+     */
+    public int[] getUnit(int unitIndex) {
+        return units[unitIndex].clone();
+    }
+
+    /**
+     * Gets the index of the given pipe.
+     *
+     * @return the index (or -1 if the pipe is not in this plan)
+     */
+    public int indexOf(Pipe pipe) {
+        Integer index = indexes.get(pipe);
+        if (index == null) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the ordering that the pipes will be ran in (when ran one at a
+     * time).
+     *
+     * @return the ordering (not modifiable)
+     */
+    public List<Pipe> getOrdering() {
+        return ordering;
+    }
+
+    /**
+     * Gets the indexes of the pipes which provide the inputs of the pipe at
+     * the given index.
+     *
+     * @return a copy of those indexes
+     */
+    public int[] getInputs(int index) {
+        return inputs[index].clone();
+    }
+
+    /**
+     * Gets the indexes of the pipes which use the output of the pipe at the
+     * given index.
+     *
+     * @return a copy of those indexes
+     */
+    public int[] getOutputs(int index) {
+        return outputs[index].clone();
+    }
+
+    /**
+     * Gets how many pipes provide inputs to the pipe at the given index.
+     */
+    public int getInputCount(int index) {
+        return inputCounts[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [ordering=");
+        builder.append(ordering);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,135 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory a single run may use for the results its pipes hold on to.
+ * Results reserve memory before taking it and give it back when released, a
+ * result that can not reserve what it needs spills to files in the spill
+ * directory instead (so a run that makes more than fits still finishes).
+ * 
+ * @author Joshua Harlow
+ */
+public class MemoryBudget
+{
+    /** The most bytes that can be reserved. */
+    private final long maxBytes;
+
+    /** The bytes currently reserved. */
+    private final AtomicLong usedBytes;
+
+    /** Where results that do not fit spill to. */
+    private final File spillDir;
+
+    /**
+     * Instantiates a new memory budget which spills to the temp directory.
+     * 
+     * @param maxBytes
+     */
+    public MemoryBudget(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Instantiates a new memory budget.
+     * 
+     * @param maxBytes
+     *            the most bytes that can be reserved
+     * @param spillDir
+     *            where to spill to (or null for the temp directory)
+     */
+    public MemoryBudget(long maxBytes, File spillDir) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Memory budget can not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.usedBytes = new AtomicLong(0);
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Reserves the given bytes if there is room for them.
+     * 
+     * @param bytes
+     * 
+     * @return true, if reserved (false if they should be spilled)
+     */
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the given previously reserved bytes.
+     * 
+     * @param bytes
+     */
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Gets the bytes currently reserved.
+     * 
+     * @return the used bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Gets the most bytes that can be reserved.
+     * 
+     * @return the max bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the spill directory.
+     * 
+     * @return the spill directory (or null for the temp directory)
+     */
+    public File getSpillDir() {
+        return spillDir;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [maxBytes=");
+        builder.append(maxBytes);
+        builder.append(", usedBytes=");
+        builder.append(usedBytes.get());
+        builder.append(", spillDir=");
+        builder.append(spillDir);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,328 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.commons.lang.time.StopWatch;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.Logger;
+import com.yahoo.flowetl.core.Logger.Level;
+
+/**
+ * A pipe runner which runs pipes on a given executor service as soon as all of
+ * the pipes they depend on have produced their output. Pipes that do not
+ * depend on each other are thus ran at the same time (as much as the executor
+ * allows) so that the total time taken approaches the time of the longest
+ * chain of pipes instead of the sum of all pipe times.
+ *
+ * Pipes which were fused into a unit by the plan are ran together as a single
+ * task, one after the other.
+ *
+ * When pipe timings are provided and more pipes are ready to run than the
+ * executor has threads the pipes with the longest estimated remaining path
+ * (the time of the pipe itself plus the longest chain of pipes after it) are
+ * ran first, since delaying those would delay the whole run.
+ *
+ * The executor is not shutdown by this runner, that is up to whoever created
+ * it.
+ *
+ * @author Joshua Harlow
+ */
+public class ParallelPipeRunner extends AbstractPlanRunner
+{
+    /** The logger. */
+    private static final Logger logger = new Logger(ParallelPipeRunner.class);
+
+    /** The executor which will run the pipes. */
+    private final ExecutorService executor;
+
+    /** The timings used to prioritize pipes (or null if not prioritizing). */
+    private final PipeTimings timings;
+
+    /**
+     * Instantiates a new parallel pipe runner.
+     *
+     * @param plan
+     *            the compiled plan of pipes to run
+     * @param executor
+     *            the executor to run the pipes on
+     */
+    public ParallelPipeRunner(ExecutionPlan plan, ExecutorService executor) {
+        this(plan, executor, null);
+    }
+
+    /**
+     * Instantiates a new parallel pipe runner which prioritizes pipes on the
+     * critical path using the given timings, those timings will also be
+     * updated with how long the pipes took on each run.
+     *
+     * @param plan
+     *            the compiled plan of pipes to run
+     * @param executor
+     *            the executor to run the pipes on
+     * @param timings
+     *            the timings of previous runs (or null for no prioritization)
+     */
+    public ParallelPipeRunner(ExecutionPlan plan, ExecutorService executor, PipeTimings timings) {
+        super(plan);
+        if (executor == null) {
+            throw new IllegalArgumentException("No valid executor provided");
+        }
+        this.executor = executor;
+        this.timings = timings;
+        if (timings != null) {
+            addFlowListener(timings);
+        }
+    }
+
+    /**
+     * Computes for each unit the estimated time from when that unit starts
+     * until the end of the longest chain of pipes that depends on it. Pipes
+     * which have never ran are estimated to take the average time of the ones
+     * that have.
+     *
+     * @return the remaining path estimates (all zero if no timings are known)
+     */
+    private long[] estimateRemaining() {
+        final ExecutionPlan plan = getPlan();
+        if (timings == null) {
+            return new long[plan.units.length];
+        }
+        final int am = plan.size();
+        long[] remaining = new long[am];
+        long def = timings.getAverageEstimate(1);
+        // going backwards means the pipes after a pipe are always done first
+        for (int i = am - 1; i >= 0; i--) {
+            long longestAfter = 0;
+            int[] pipeOutputs = plan.outputs[i];
+            for (int j = 0; j < pipeOutputs.length; j++) {
+                longestAfter = Math.max(longestAfter, remaining[pipeOutputs[j]]);
+            }
+            remaining[i] = timings.getEstimate(plan.pipes[i].getName(), def) + longestAfter;
+        }
+        // a unit starts with its first pipe
+        long[] unitRemaining = new long[plan.units.length];
+        for (int u = 0; u < unitRemaining.length; u++) {
+            unitRemaining[u] = remaining[plan.units[u][0]];
+        }
+        return unitRemaining;
+    }
+
+    /**
+     * The scheduling state of a single run, which units are still waiting on
+     * inputs, which are ready to run and how many units are still active.
+     */
+    private final class RunState
+    {
+        /** The context holding the inputs and outputs of this run. */
+        private final RunContext context;
+
+        /** How many inputs each unit is still waiting on. */
+        private final AtomicIntegerArray waiting;
+
+        /** The units that are ready to run, most important first. */
+        private final PriorityQueue<Integer> ready;
+
+        /** The lock that protects the ready queue, active count and failure. */
+        private final Object lock;
+
+        /** How many units are submitted or running. */
+        private int active;
+
+        /** The first failure that happened (if any). */
+        private Throwable failure;
+
+        private RunState(RunContext context) {
+            final ExecutionPlan plan = getPlan();
+            final int am = plan.units.length;
+            this.context = context;
+            this.waiting = new AtomicIntegerArray(plan.unitInputCounts);
+            final long[] remaining = estimateRemaining();
+            this.ready = new PriorityQueue<Integer>(Math.max(1, am), new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    // longest remaining first, then by ordering
+                    if (remaining[a] != remaining[b]) {
+                        return remaining[a] > remaining[b] ? -1 : 1;
+                    }
+                    return a.compareTo(b);
+                }
+            });
+            this.lock = new Object();
+            this.active = 0;
+            this.failure = null;
+        }
+
+        /**
+         * Marks the unit at the given index as ready and submits a task to the
+         * executor unless a previous unit has failed. The submitted task runs
+         * whichever ready unit is most important when it gets to run, which
+         * may not be the one that was just marked as ready.
+         */
+        private void submit(int index) {
+            synchronized (lock) {
+                if (failure != null) {
+                    return;
+                }
+                ready.add(index);
+                active++;
+            }
+            try {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run() {
+                        try {
+                            Integer next = null;
+                            synchronized (lock) {
+                                next = ready.poll();
+                            }
+                            if (next != null) {
+                                runReadyUnit(RunState.this, next);
+                            }
+                        }
+                        catch (Throwable t) {
+                            failed(t);
+                        }
+                        finally {
+                            finished();
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                failed(e);
+                finished();
+            }
+        }
+
+        /**
+         * Records the given failure (only the first one is kept).
+         */
+        private void failed(Throwable t) {
+            synchronized (lock) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+        }
+
+        /**
+         * Marks a submitted unit as no longer active.
+         */
+        private void finished() {
+            synchronized (lock) {
+                active--;
+                if (active == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for all active units to finish.
+         *
+         * @return the failure that occurred (or null if none)
+         */
+        private Throwable await() {
+            synchronized (lock) {
+                while (active > 0) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        if (failure == null) {
+                            failure = e;
+                        }
+                        // new units will not be started but the running
+                        // ones can not be stopped so just stop waiting
+                        break;
+                    }
+                }
+                return failure;
+            }
+        }
+    }
+
+    /**
+     * Runs the unit at the given index, at this point all the inputs of that
+     * unit have been produced. When done any units that now have all their
+     * inputs are submitted.
+     */
+    private void runReadyUnit(RunState state, int unitIndex) {
+        runUnit(state.context, unitIndex);
+        int[] nextUnits = getPlan().unitOutputs[unitIndex];
+        for (int i = 0; i < nextUnits.length; i++) {
+            int next = nextUnits[i];
+            if (state.waiting.decrementAndGet(next) == 0) {
+                state.submit(next);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.yahoo.flowetl.core.PipeRunner#run(com.yahoo.flowetl.core.runner.
+     * RunContext)
+     */
+    @Override
+    public void run(RunContext context) {
+        ExecutionPlan plan = getPlan();
+        context.begin(plan);
+
+        StopWatch overallTimer = new StopWatch();
+        overallTimer.start();
+
+        notifyStart(plan.ordering);
+
+        RunState state = new RunState(context);
+        for (int u = 0; u < plan.units.length; u++) {
+            if (plan.unitInputCounts[u] == 0) {
+                if (logger.isEnabled(Level.INFO)) {
+                    logger.log(Level.INFO, "Starting with pipe " + plan.pipes[plan.units[u][0]]);
+                }
+                state.submit(u);
+            }
+        }
+        Throwable failure = state.await();
+        if (failure != null) {
+            if ((failure instanceof InterruptedException) == false) {
+                // nothing is still running so its safe to clean up
+                releaseUnfinished(context);
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new CoreException("Unable to run all pipes", failure);
+        }
+
+        // only now is what the pipes did known to have been used
+        context.complete();
+
+        overallTimer.stop();
+        notifyComplete(overallTimer.getTime());
+    }
+}
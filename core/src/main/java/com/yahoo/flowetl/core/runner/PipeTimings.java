@@ -0,0 +1,220 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.yahoo.flowetl.core.listener.FlowListener;
+import com.yahoo.flowetl.core.pipe.Pipe;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * A flow listener which remembers how long each pipe (by name) took to run so
+ * that later runs can estimate how long a pipe will take before it runs. The
+ * same instance should be kept across runs (it can also be stored and loaded
+ * so that it survives restarts).
+ *
+ * Each estimate is a moving average so that a single slow or fast run does not
+ * throw it off to much.
+ *
+ * @author Joshua Harlow
+ */
+public class PipeTimings implements FlowListener
+{
+    /** How much weight the newest time gets in the moving average. */
+    private static final double NEW_WEIGHT = 0.25d;
+
+    /** The estimated time (in milliseconds) each pipe name takes. */
+    private final ConcurrentMap<String, Long> estimates;
+
+    /**
+     * Instantiates a new (empty) pipe timings.
+     */
+    public PipeTimings() {
+        this.estimates = new ConcurrentHashMap<String, Long>();
+    }
+
+    /**
+     * Records that the given pipe name took the given time.
+     *
+     * @param pipeName
+     * @param timeTakenMs
+     */
+    public void record(String pipeName, long timeTakenMs) {
+        if (pipeName == null || timeTakenMs < 0) {
+            return;
+        }
+        // pipes with the same name may finish at the same time
+        while (true) {
+            Long old = estimates.get(pipeName);
+            if (old == null) {
+                if (estimates.putIfAbsent(pipeName, timeTakenMs) == null) {
+                    return;
+                }
+            }
+            else {
+                long est = Math.round(old * (1.0d - NEW_WEIGHT) + timeTakenMs * NEW_WEIGHT);
+                if (estimates.replace(pipeName, old, est)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the estimated time a pipe name takes.
+     *
+     * @param pipeName
+     * @param def
+     *            the default to use if that pipe name has never ran
+     *
+     * @return the estimate in milliseconds
+     */
+    public long getEstimate(String pipeName, long def) {
+        if (pipeName == null) {
+            return def;
+        }
+        Long est = estimates.get(pipeName);
+        if (est == null) {
+            return def;
+        }
+        return est;
+    }
+
+    /**
+     * Gets the average of all estimates, useful as a default for pipes that
+     * have never ran.
+     *
+     * @param def
+     *            the default to use if nothing has ran
+     *
+     * @return the average estimate in milliseconds
+     */
+    public long getAverageEstimate(long def) {
+        long total = 0;
+        int am = 0;
+        for (Long est : estimates.values()) {
+            total += est;
+            am++;
+        }
+        if (am == 0) {
+            return def;
+        }
+        return total / am;
+    }
+
+    /**
+     * Stores the estimates into the given output stream (as properties).
+     *
+     * @param out
+     *
+     * @throws IOException
+     */
+    public void store(OutputStream out) throws IOException {
+        Properties props = new Properties();
+        for (Entry<String, Long> e : estimates.entrySet()) {
+            props.setProperty(e.getKey(), String.valueOf(e.getValue()));
+        }
+        props.store(out, "Pipe timings (in milliseconds)");
+    }
+
+    /**
+     * Loads previously stored estimates from the given input stream, replacing
+     * any estimates with the same pipe name.
+     *
+     * @param in
+     *
+     * @throws IOException
+     */
+    public void load(InputStream in) throws IOException {
+        Properties props = new Properties();
+        props.load(in);
+        for (String name : props.stringPropertyNames()) {
+            long est = NumberUtils.toLong(props.getProperty(name), -1);
+            if (est >= 0) {
+                estimates.put(name, est);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.yahoo.flowetl.core.listener.FlowListener#onFinishGenerate(com.yahoo
+     * .flowetl.core.pipe.Pipe, com.yahoo.flowetl.core.pipe.PipeResult, long)
+     */
+    @Override
+    public void onFinishGenerate(Pipe ranPipe, PipeResult ranResult, long timeTakenMs) {
+        if (timeTakenMs == REUSED) {
+            // it did not run so says nothing about how long it takes
+            return;
+        }
+        record(ranPipe.getName(), timeTakenMs);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.listener.FlowListener#onCompletion(long)
+     */
+    @Override
+    public void onCompletion(long timeTakenMs) {
+        // nothing to do
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.yahoo.flowetl.core.listener.FlowListener#onStart(java.util.List)
+     */
+    @Override
+    public void onStart(List<Pipe> ordering) {
+        // nothing to do
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.yahoo.flowetl.core.listener.FlowListener#onStartGenerate(com.yahoo
+     * .flowetl.core.pipe.Pipe)
+     */
+    @Override
+    public void onStartGenerate(Pipe aboutToRunPipe) {
+        // nothing to do
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [estimates=");
+        builder.append(estimates);
+        builder.append("]");
+        return builder.toString();
+    }
+}
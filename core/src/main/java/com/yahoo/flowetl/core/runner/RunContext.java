@@ -0,0 +1,443 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.yahoo.flowetl.core.pipe.ContextPipe;
+import com.yahoo.flowetl.core.pipe.Pipe;
+import com.yahoo.flowetl.core.pipe.PipeContext;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * The state of a single run of a execution plan, the inputs given to each
+ * pipe, the outputs each pipe produced and how far along each pipe is. Since
+ * this state is kept here instead of in the pipes the same runner can be ran
+ * by many threads at the same time as long as each run gets its own context.
+ *
+ * A context is made by the runner that will run it, any starting inputs are
+ * then attached to it and after the run the outputs of the pipes can be
+ * fetched from it. The output of a pipe which other pipes use is dropped (and
+ * released if it is releasable) as soon as all those pipes have ran, so only
+ * the outputs of the last pipes are kept until the end. A output that the
+ * output of a later pipe still holds on to is kept (not released) until that
+ * later output is released, and a output given to a pipe that retains its
+ * inputs is never released. The tasks pipes add to be ran on completion are
+ * ran (in the order they were added) only if the whole run completes, a task
+ * added after that (ie by a stage still winding down) is ran right away. A
+ * context can only be ran once.
+ *
+ * @author Joshua Harlow
+ */
+public class RunContext
+{
+    /** The plan this context is for. */
+    private final ExecutionPlan plan;
+
+    /** The inputs of each pipe (null if none yet). */
+    private final List<List<PipeResult>> inputs;
+
+    /** The outputs produced by each pipe. */
+    private final PipeResult[] outputs;
+
+    /** How many pipes using the output of each pipe have not ran yet. */
+    private final AtomicIntegerArray unconsumed;
+
+    /** How far along each pipe is (as float bits). */
+    private final AtomicIntegerArray progress;
+
+    /** The per pipe contexts given to the pipes. */
+    private final PipeContext[] pipeContexts;
+
+    /** Whether this context has been ran. */
+    private final AtomicBoolean ran;
+
+    /** The memory budget of this run (or null if not limited). */
+    private final MemoryBudget budget;
+
+    /** How many later outputs (or pipes) hold on to the output of each pipe. */
+    private final int[] keepers;
+
+    /** The dropped outputs that are kept since something holds on to them. */
+    private final PipeResult[] kept;
+
+    /** Which of its inputs (by position) the output of each pipe holds. */
+    private final boolean[][] holds;
+
+    /** The tasks to run once this run has completed. */
+    private final List<Runnable> completionTasks;
+
+    /** Whether this run has completed (guarded by this). */
+    private boolean completed;
+
+    /**
+     * Instantiates a new run context for the given plan.
+     *
+     * @param plan
+     * @param budget
+     *            the memory budget of the run (or null if not limited)
+     */
+    RunContext(ExecutionPlan plan, final MemoryBudget budget) {
+        final int am = plan.size();
+        this.plan = plan;
+        this.budget = budget;
+        this.inputs = new ArrayList<List<PipeResult>>(am);
+        for (int i = 0; i < am; i++) {
+            inputs.add(null);
+        }
+        this.outputs = new PipeResult[am];
+        this.unconsumed = new AtomicIntegerArray(am);
+        for (int i = 0; i < am; i++) {
+            unconsumed.set(i, plan.outputs[i].length);
+        }
+        this.progress = new AtomicIntegerArray(am);
+        this.pipeContexts = new PipeContext[am];
+        for (int i = 0; i < am; i++) {
+            final int index = i;
+            pipeContexts[i] = new PipeContext()
+            {
+                @Override
+                public void setPercentDone(float perDone) {
+                    progress.set(index, Float.floatToIntBits(perDone));
+                }
+
+                @Override
+                public float getPercentDone() {
+                    return Float.intBitsToFloat(progress.get(index));
+                }
+
+                @Override
+                public MemoryBudget getMemoryBudget() {
+                    return budget;
+                }
+
+                @Override
+                public void onCompletion(Runnable task) {
+                    addCompletionTask(task);
+                }
+            };
+        }
+        this.ran = new AtomicBoolean(false);
+        this.keepers = new int[am];
+        this.kept = new PipeResult[am];
+        this.holds = new boolean[am][];
+        this.completionTasks = new ArrayList<Runnable>();
+        this.completed = false;
+    }
+
+    /**
+     * Gets the index of the given pipe in this contexts plan.
+     */
+    private int indexOf(Pipe pipe) {
+        int index = plan.indexOf(pipe);
+        if (index == -1) {
+            throw new IllegalArgumentException("Pipe " + pipe + " is not part of this run");
+        }
+        return index;
+    }
+
+    /**
+     * Attaches a starting input to the given pipe for this run only. This must
+     * be done before the run starts.
+     *
+     * @param pipe
+     * @param input
+     */
+    public void attachInput(Pipe pipe, PipeResult input) {
+        addInput(indexOf(pipe), input);
+    }
+
+    /**
+     * Moves any inputs that have been attached directly to the pipes into this
+     * context (clearing them from the pipes). This is how a run which was not
+     * given a context keeps working the way it always has. Pipes that are not
+     * context pipes keep their attached inputs (they are ran with them).
+     */
+    public void takeAttachedInputs() {
+        for (int i = 0; i < plan.pipes.length; i++) {
+            if ((plan.pipes[i] instanceof ContextPipe) == false) {
+                continue;
+            }
+            ContextPipe p = (ContextPipe) plan.pipes[i];
+            List<PipeResult> attached = p.getInputs();
+            if (attached == null || attached.isEmpty()) {
+                continue;
+            }
+            for (PipeResult in : attached) {
+                addInput(i, in);
+            }
+            p.clearInputs();
+        }
+    }
+
+    /**
+     * Gets the output the given pipe produced in this run.
+     *
+     * @param pipe
+     *
+     * @return the output (or null if the pipe has not ran or its output was
+     *         dropped since all the pipes using it have ran)
+     */
+    public PipeResult getOutput(Pipe pipe) {
+        return outputs[indexOf(pipe)];
+    }
+
+    /**
+     * Gets how far along the given pipe is in this run.
+     *
+     * @param pipe
+     *
+     * @return the percent done (0.0<->1.0 inclusive)
+     */
+    public float getPercentDone(Pipe pipe) {
+        return pipeContexts[indexOf(pipe)].getPercentDone();
+    }
+
+    /**
+     * Gets the memory budget of this run.
+     *
+     * @return the memory budget (or null if not limited)
+     */
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    /**
+     * Marks this context as being ran by a runner with the given plan.
+     *
+     * @throws IllegalArgumentException
+     *             if this context is for a different plan or was already ran
+     */
+    void begin(ExecutionPlan runPlan) {
+        if (runPlan != plan) {
+            throw new IllegalArgumentException("Run context was not made for this runner");
+        }
+        if (ran.compareAndSet(false, true) == false) {
+            throw new IllegalArgumentException("Run context has already been ran");
+        }
+    }
+
+    /**
+     * Adds a input to the pipe at the given index.
+     */
+    void addInput(int index, PipeResult input) {
+        List<PipeResult> pipeInputs = inputs.get(index);
+        if (pipeInputs == null) {
+            pipeInputs = new ArrayList<PipeResult>();
+            inputs.set(index, pipeInputs);
+        }
+        pipeInputs.add(input);
+    }
+
+    /**
+     * Checks if the pipe at the given index has any inputs.
+     */
+    boolean hasInputs(int index) {
+        return inputs.get(index) != null;
+    }
+
+    /**
+     * Gets the inputs of the pipe at the given index.
+     */
+    List<PipeResult> getInputs(int index) {
+        List<PipeResult> pipeInputs = inputs.get(index);
+        if (pipeInputs == null) {
+            return Collections.emptyList();
+        }
+        return pipeInputs;
+    }
+
+    /**
+     * Drops the inputs of the pipe at the given index (once it has ran).
+     */
+    void clearInputs(int index) {
+        inputs.set(index, null);
+    }
+
+    /**
+     * Gets the output of the pipe at the given index.
+     */
+    PipeResult getOutput(int index) {
+        return outputs[index];
+    }
+
+    /**
+     * Sets the output of the pipe at the given index.
+     */
+    void setOutput(int index, PipeResult output) {
+        outputs[index] = output;
+    }
+
+    /**
+     * Marks that one of the pipes using the output of the pipe at the given
+     * index has ran.
+     *
+     * @return the output if that was the last pipe using it (it is then
+     *         dropped from this context) and nothing holds on to it,
+     *         otherwise null
+     */
+    PipeResult consumed(int index) {
+        if (unconsumed.decrementAndGet(index) != 0) {
+            return null;
+        }
+        synchronized (this) {
+            PipeResult out = outputs[index];
+            outputs[index] = null;
+            if (keepers[index] > 0) {
+                kept[index] = out;
+                return null;
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Marks that the output of the pipe at the given index holds on to the
+     * output of its input at the given position, that output is then kept
+     * until this one is released (see {@link #unkeep(int, int)}).
+     */
+    synchronized void keep(int index, int input) {
+        if (holds[index] == null) {
+            holds[index] = new boolean[plan.inputs[index].length];
+        }
+        if (holds[index][input] == false) {
+            holds[index][input] = true;
+            keepers[plan.inputs[index][input]]++;
+        }
+    }
+
+    /**
+     * Marks that the output of the pipe at the given index is held on to by
+     * something that will never say when it is done with it (ie a pipe that
+     * retains its inputs), so it is never released.
+     */
+    synchronized void hold(int index) {
+        keepers[index]++;
+    }
+
+    /**
+     * Checks if the output of the pipe at the given index holds on to any of
+     * the outputs of its inputs.
+     */
+    synchronized boolean isKeeping(int index) {
+        boolean[] held = holds[index];
+        if (held == null) {
+            return false;
+        }
+        for (int i = 0; i < held.length; i++) {
+            if (held[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks that the output of the pipe at the given index has been released
+     * so it no longer holds on to the output of its input at the given
+     * position.
+     *
+     * @return the output of that input if nothing else holds on to it and it
+     *         was dropped already (it should then be released), otherwise
+     *         null
+     */
+    synchronized PipeResult unkeep(int index, int input) {
+        boolean[] held = holds[index];
+        if (held == null || held[input] == false) {
+            return null;
+        }
+        held[input] = false;
+        int from = plan.inputs[index][input];
+        keepers[from]--;
+        if (keepers[from] > 0) {
+            return null;
+        }
+        PipeResult out = kept[from];
+        kept[from] = null;
+        return out;
+    }
+
+    /**
+     * Adds a task to run once this run has completed (it is ran right away if
+     * this run already completed).
+     */
+    private void addCompletionTask(Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("No valid completion task provided");
+        }
+        synchronized (this) {
+            if (completed == false) {
+                completionTasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Marks this run as completed and runs the tasks that were added to be ran
+     * on completion, all of them are ran even if one fails.
+     *
+     * @throws RuntimeException
+     *             the first failure of those tasks (if any)
+     */
+    void complete() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            completed = true;
+            tasks = new ArrayList<Runnable>(completionTasks);
+            completionTasks.clear();
+        }
+        RuntimeException failure = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the context given to the pipe at the given index.
+     */
+    PipeContext getPipeContext(int index) {
+        return pipeContexts[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [plan=");
+        builder.append(plan);
+        builder.append(", ran=");
+        builder.append(ran.get());
+        builder.append("]");
+        return builder.toString();
+    }
+}
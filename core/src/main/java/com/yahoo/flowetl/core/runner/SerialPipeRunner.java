@@ -0,0 +1,72 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import org.apache.commons.lang.time.StopWatch;
+
+/**
+ * A pipe runner which runs the pipes of a execution plan one at a time (in the
+ * plans ordering) in the thread that calls run.
+ *
+ * @author Joshua Harlow
+ */
+public class SerialPipeRunner extends AbstractPlanRunner
+{
+    /**
+     * Instantiates a new serial pipe runner.
+     *
+     * @param plan
+     *            the compiled plan of pipes to run
+     */
+    public SerialPipeRunner(ExecutionPlan plan) {
+        super(plan);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.yahoo.flowetl.core.PipeRunner#run(com.yahoo.flowetl.core.runner.
+     * RunContext)
+     */
+    @Override
+    public void run(RunContext context) {
+        ExecutionPlan plan = getPlan();
+        context.begin(plan);
+
+        StopWatch overallTimer = new StopWatch();
+        overallTimer.start();
+
+        notifyStart(plan.ordering);
+
+        // iterate (units are in the order of their first pipe)
+        boolean completed = false;
+        try {
+            for (int u = 0; u < plan.units.length; u++) {
+                runUnit(context, u);
+            }
+            completed = true;
+        }
+        finally {
+            if (completed == false) {
+                releaseUnfinished(context);
+            }
+        }
+
+        // only now is what the pipes did known to have been used
+        context.complete();
+
+        overallTimer.stop();
+        notifyComplete(overallTimer.getTime());
+    }
+}
@@ -0,0 +1,261 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.runner;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yahoo.flowetl.core.Logger;
+import com.yahoo.flowetl.core.Logger.Level;
+
+/**
+ * An executor which runs every task it is given on its own new thread instead
+ * of on a pool of threads. This is useful for pipes that spend most of there
+ * time blocked (ie waiting on a http call or a database query) since any
+ * number of them can be waiting at once without having to size a thread pool.
+ *
+ * When the JVM supports virtual threads they are used, since they are very
+ * cheap to create and block, otherwise a new (daemon) platform thread is used
+ * for each task. Whether they are supported is found out (and logged) once,
+ * by making a virtual thread when this class is loaded.
+ *
+ * @author Joshua Harlow
+ */
+public class ThreadPerPipeExecutor extends AbstractExecutorService
+{
+    /** The logger. */
+    private static final Logger logger = new Logger(ThreadPerPipeExecutor.class);
+
+    /** The virtual thread builder factory method (null if not supported). */
+    private static final Method OF_VIRTUAL;
+
+    /** The method that makes a unstarted thread from a builder. */
+    private static final Method UNSTARTED;
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (Exception e) {
+            // not supported by this jvm
+            ofVirtual = null;
+            unstarted = null;
+        }
+        if (ofVirtual != null) {
+            // some jvms have the methods but can not make them (ie a preview)
+            try {
+                unstarted.invoke(ofVirtual.invoke(null), new Runnable()
+                {
+                    @Override
+                    public void run() {
+                        // never started
+                    }
+                });
+            }
+            catch (Exception e) {
+                if (logger.isEnabled(Level.WARN)) {
+                    Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                    logger.log(Level.WARN, "Unable to make virtual threads (" + cause + "), using platform threads instead");
+                }
+                ofVirtual = null;
+                unstarted = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    /** The prefix used for naming the threads we create. */
+    private final String namePrefix;
+
+    /** Used to give each thread a unique name. */
+    private final AtomicLong threadCount;
+
+    /** The threads that are currently running a task. */
+    private final Set<Thread> active;
+
+    /** Whether we are shutdown. */
+    private boolean shutdown;
+
+    /**
+     * Instantiates a new thread per pipe executor.
+     */
+    public ThreadPerPipeExecutor() {
+        this("pipe");
+    }
+
+    /**
+     * Instantiates a new thread per pipe executor.
+     *
+     * @param namePrefix
+     *            the prefix of the created thread names
+     */
+    public ThreadPerPipeExecutor(String namePrefix) {
+        this.namePrefix = namePrefix;
+        this.threadCount = new AtomicLong(0);
+        this.active = new HashSet<Thread>();
+        this.shutdown = false;
+    }
+
+    /**
+     * Checks if virtual threads will be used.
+     *
+     * @return true, if the JVM supports virtual threads
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Makes a new (not yet started) thread for the given task.
+     */
+    private Thread makeThread(Runnable task) {
+        String name = namePrefix + "-" + threadCount.incrementAndGet();
+        if (OF_VIRTUAL != null) {
+            try {
+                Thread t = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+                t.setName(name);
+                return t;
+            }
+            catch (Exception e) {
+                // they could be made when this class was loaded
+                if (logger.isEnabled(Level.DEBUG)) {
+                    logger.log(Level.DEBUG, e, "Unable to make a virtual thread, using a platform thread instead");
+                }
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        final Thread[] self = new Thread[1];
+        Thread t = makeThread(new Runnable()
+        {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized (active) {
+                        active.remove(self[0]);
+                        active.notifyAll();
+                    }
+                }
+            }
+        });
+        self[0] = t;
+        synchronized (active) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shutdown");
+            }
+            active.add(t);
+        }
+        t.start();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        synchronized (active) {
+            shutdown = true;
+            active.notifyAll();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#shutdownNow()
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (active) {
+            shutdown = true;
+            for (Thread t : active) {
+                t.interrupt();
+            }
+        }
+        // nothing is ever queued
+        return new ArrayList<Runnable>();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isShutdown()
+     */
+    @Override
+    public boolean isShutdown() {
+        synchronized (active) {
+            return shutdown;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#isTerminated()
+     */
+    @Override
+    public boolean isTerminated() {
+        synchronized (active) {
+            return shutdown && active.isEmpty();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ExecutorService#awaitTermination(long,
+     * java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (active) {
+            while (!(shutdown && active.isEmpty())) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(active, left);
+            }
+            return true;
+        }
+    }
+}
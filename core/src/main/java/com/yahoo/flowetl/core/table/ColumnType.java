@@ -0,0 +1,24 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.table;
+
+/**
+ * The types of values a column of a row batch can hold, each is stored in a
+ * primitive vector (strings are stored as int codes into a dictionary).
+ * 
+ * @author Joshua Harlow
+ */
+public enum ColumnType
+{
+    INT, LONG, DOUBLE, STRING
+}
@@ -0,0 +1,675 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.table;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.pipe.Releasable;
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+import com.yahoo.flowetl.core.util.DirectBuffers;
+
+/**
+ * Rows stored outside of the heap in direct buffers so that large results
+ * passed between pipes do not add to garbage collection work no matter how
+ * many rows there are. Each row is encoded compactly as a null bitmap followed
+ * by the values of its non null columns (ints as 4 bytes, longs and doubles as
+ * 8 bytes, strings as a 4 byte length and their utf-8 bytes). Rows are
+ * appended into fixed size chunks (a row never spans two chunks) and read back
+ * in order with a cursor.
+ * 
+ * If a memory budget is given each chunk reserves its memory from it first,
+ * chunks that do not fit are instead mapped from a temp file in the spill
+ * directory of that budget (the encoding is the same so reading is too). The
+ * operating system then pages those chunks in and out as they are appended and
+ * read instead of the process running out of memory.
+ * 
+ * The memory (and any spill file) is given back as soon as these rows are
+ * released (and not when they are garbage collected) so nothing may read them
+ * after that. Rows are appended by a single thread and then read (possibly by
+ * many cursors).
+ * 
+ * @author Joshua Harlow
+ */
+public final class OffHeapRows implements Releasable, RowWriter
+{
+    /** The default chunk size (in bytes). */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /** The string encoding. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The column names. */
+    private final String[] names;
+
+    /** The column types. */
+    private final ColumnType[] types;
+
+    /** The bytes of the null bitmap of each row. */
+    private final int nullBytes;
+
+    /** The size of new chunks. */
+    private final int chunkSize;
+
+    /** The chunks (direct buffers). */
+    private final List<ByteBuffer> chunks;
+
+    /** The number of rows in each chunk. */
+    private int[] chunkRows;
+
+    /** The chunk being appended to. */
+    private ByteBuffer current;
+
+    /** The number of rows. */
+    private int rowCount;
+
+    /** The bytes used by the rows. */
+    private long byteSize;
+
+    /** Whether this has been released. */
+    private volatile boolean released;
+
+    /** The budget chunks reserve their memory from (or null). */
+    private final MemoryBudget budget;
+
+    /** The bytes reserved from the budget. */
+    private long reservedBytes;
+
+    /** The bytes spilled to the spill file. */
+    private long spilledBytes;
+
+    /** The spill file (or null if nothing spilled). */
+    private File spillFile;
+
+    /** The spill file channel (or null if nothing spilled). */
+    private FileChannel spillChannel;
+
+    /** The values of the row being appended (raw bits of numbers). */
+    private final long[] pendingBits;
+
+    /** The strings of the row being appended. */
+    private final String[] pendingStrings;
+
+    /** Which columns of the row being appended were set. */
+    private final boolean[] pendingSet;
+
+    /**
+     * Instantiates new off heap rows with the default chunk size.
+     * 
+     * @param names
+     * @param types
+     */
+    public OffHeapRows(String[] names, ColumnType[] types) {
+        this(names, types, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Instantiates new off heap rows.
+     * 
+     * @param names
+     *            the column names
+     * @param types
+     *            the column types
+     * @param chunkSize
+     *            how many bytes each chunk of rows is (rows bigger than this
+     *            get a chunk of their own)
+     */
+    public OffHeapRows(String[] names, ColumnType[] types, int chunkSize) {
+        this(names, types, chunkSize, null);
+    }
+
+    /**
+     * Instantiates new off heap rows.
+     * 
+     * @param names
+     *            the column names
+     * @param types
+     *            the column types
+     * @param chunkSize
+     *            how many bytes each chunk of rows is (rows bigger than this
+     *            get a chunk of their own)
+     * @param budget
+     *            the budget to reserve chunk memory from (or null if not
+     *            limited)
+     */
+    public OffHeapRows(String[] names, ColumnType[] types, int chunkSize, MemoryBudget budget) {
+        if (names == null || types == null || names.length != types.length) {
+            throw new IllegalArgumentException("Each column needs a name and a type");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than zero");
+        }
+        this.names = names.clone();
+        this.types = types.clone();
+        this.nullBytes = (names.length + 7) >>> 3;
+        this.chunkSize = chunkSize;
+        this.chunks = new ArrayList<ByteBuffer>();
+        this.chunkRows = new int[8];
+        this.pendingBits = new long[names.length];
+        this.pendingStrings = new String[names.length];
+        this.pendingSet = new boolean[names.length];
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the column count.
+     * 
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of the given column.
+     * 
+     * @param column
+     * 
+     * @return the column name
+     */
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * Gets the index of the column with the given name.
+     * 
+     * @param name
+     * 
+     * @return the column index (or -1 if no such column)
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the type of the given column.
+     * 
+     * @param column
+     * 
+     * @return the column type
+     */
+    public ColumnType getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Gets the row count.
+     * 
+     * @return the row count
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the bytes used by the encoded rows.
+     * 
+     * @return the byte size
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * Gets the bytes of chunks that were spilled to disk.
+     * 
+     * @return the spilled bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Checks if any chunks were spilled to disk.
+     * 
+     * @return true, if spilled
+     */
+    public boolean isSpilled() {
+        return spilledBytes != 0;
+    }
+
+    /**
+     * Checks if this has been released.
+     * 
+     * @return true, if released
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Checks the given column can be set to the given type in the row being
+     * appended.
+     */
+    private void pending(int column, ColumnType type) {
+        if (released) {
+            throw new IllegalStateException("Rows have been released");
+        }
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + names[column] + " is a " + types[column] + " column not a " + type + " column");
+        }
+        pendingSet[column] = true;
+    }
+
+    /**
+     * Sets a int value of the row being appended.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setInt(int column, int value) {
+        pending(column, ColumnType.INT);
+        pendingBits[column] = value;
+    }
+
+    /**
+     * Sets a long value of the row being appended.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setLong(int column, long value) {
+        pending(column, ColumnType.LONG);
+        pendingBits[column] = value;
+    }
+
+    /**
+     * Sets a double value of the row being appended.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setDouble(int column, double value) {
+        pending(column, ColumnType.DOUBLE);
+        pendingBits[column] = Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Sets a string value of the row being appended (null is allowed).
+     * 
+     * @param column
+     * @param value
+     */
+    public void setString(int column, String value) {
+        pending(column, ColumnType.STRING);
+        pendingStrings[column] = value;
+        if (value == null) {
+            pendingSet[column] = false;
+        }
+    }
+
+    /**
+     * Marks the given column of the row being appended as null.
+     * 
+     * @param column
+     */
+    public void setNull(int column) {
+        pendingSet[column] = false;
+        pendingStrings[column] = null;
+    }
+
+    /**
+     * Encodes the row being appended into the current chunk, any columns not
+     * set in it are null.
+     */
+    public void endRow() {
+        if (released) {
+            throw new IllegalStateException("Rows have been released");
+        }
+        byte[][] encoded = null;
+        int size = nullBytes;
+        for (int i = 0; i < types.length; i++) {
+            if (pendingSet[i] == false) {
+                continue;
+            }
+            switch (types[i]) {
+                case INT:
+                    size += 4;
+                    break;
+                case STRING:
+                    if (encoded == null) {
+                        encoded = new byte[types.length][];
+                    }
+                    encoded[i] = pendingStrings[i].getBytes(UTF8);
+                    size += 4 + encoded[i].length;
+                    break;
+                default:
+                    size += 8;
+                    break;
+            }
+        }
+        ByteBuffer chunk = chunkFor(size);
+        for (int b = 0; b < nullBytes; b++) {
+            int bits = 0;
+            for (int i = b << 3; i < types.length && i < ((b + 1) << 3); i++) {
+                if (pendingSet[i] == false) {
+                    bits |= 1 << (i & 7);
+                }
+            }
+            chunk.put((byte) bits);
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (pendingSet[i]) {
+                switch (types[i]) {
+                    case INT:
+                        chunk.putInt((int) pendingBits[i]);
+                        break;
+                    case STRING:
+                        chunk.putInt(encoded[i].length);
+                        chunk.put(encoded[i]);
+                        break;
+                    default:
+                        chunk.putLong(pendingBits[i]);
+                        break;
+                }
+            }
+            pendingSet[i] = false;
+            pendingStrings[i] = null;
+        }
+        chunkRows[chunks.size() - 1]++;
+        rowCount++;
+        byteSize += size;
+    }
+
+    /**
+     * Gets a chunk with room for a row of the given size.
+     */
+    private ByteBuffer chunkFor(int size) {
+        if (current != null && current.remaining() >= size) {
+            return current;
+        }
+        int am = Math.max(chunkSize, size);
+        if (budget == null || budget.tryReserve(am)) {
+            current = ByteBuffer.allocateDirect(am);
+            reservedBytes += am;
+        }
+        else {
+            current = spill(am);
+        }
+        chunks.add(current);
+        if (chunks.size() > chunkRows.length) {
+            chunkRows = Arrays.copyOf(chunkRows, chunkRows.length * 2);
+        }
+        return current;
+    }
+
+    /**
+     * Maps a chunk of the given size from the end of the spill file (making
+     * that file if needed).
+     */
+    private ByteBuffer spill(int size) {
+        try {
+            if (spillChannel == null) {
+                File file = File.createTempFile("rows-", ".spill", budget.getSpillDir());
+                try {
+                    spillChannel = new RandomAccessFile(file, "rw").getChannel();
+                }
+                catch (IOException e) {
+                    // release only deletes files that it can close
+                    file.delete();
+                    throw e;
+                }
+                spillFile = file;
+            }
+            ByteBuffer chunk = spillChannel.map(FileChannel.MapMode.READ_WRITE, spilledBytes, size);
+            spilledBytes += size;
+            return chunk;
+        }
+        catch (IOException e) {
+            throw new CoreException("Unable to spill " + size + " bytes of rows to " + spillFile, e);
+        }
+    }
+
+    /**
+     * Makes a cursor over the rows appended so far.
+     * 
+     * @return the cursor
+     */
+    public Cursor cursor() {
+        if (released) {
+            throw new IllegalStateException("Rows have been released");
+        }
+        return new Cursor();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.Releasable#release()
+     */
+    @Override
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ByteBuffer chunk : chunks) {
+            DirectBuffers.free(chunk);
+        }
+        chunks.clear();
+        current = null;
+        if (budget != null) {
+            budget.release(reservedBytes);
+        }
+        reservedBytes = 0;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            }
+            catch (IOException e) {
+                // should be ok to ignore this...
+            }
+            spillChannel = null;
+            spillFile.delete();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [columns=");
+        builder.append(Arrays.toString(names));
+        builder.append(", rows=");
+        builder.append(rowCount);
+        builder.append(", bytes=");
+        builder.append(byteSize);
+        builder.append(", spilled=");
+        builder.append(spilledBytes);
+        builder.append(", released=");
+        builder.append(released);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Reads the rows in the order they were appended, the cursor is positioned
+     * on one row at a time (its values are decoded straight from the chunk
+     * when asked for so nothing is made per row). A cursor is not thread safe.
+     */
+    public final class Cursor
+    {
+        /** The rows left to read. */
+        private int left;
+
+        /** The index of the chunk being read. */
+        private int chunkIndex;
+
+        /** The rows left in the chunk being read. */
+        private int chunkLeft;
+
+        /** The chunk being read. */
+        private ByteBuffer chunk;
+
+        /** Where the next row starts in the chunk. */
+        private int nextOffset;
+
+        /** Where the current row starts in the chunk. */
+        private int rowOffset;
+
+        /** Where each value of the current row is (or -1 if null). */
+        private final int[] offsets;
+
+        /**
+         * Instantiates a new cursor.
+         */
+        private Cursor() {
+            this.left = rowCount;
+            this.chunkIndex = -1;
+            this.chunkLeft = 0;
+            this.offsets = new int[names.length];
+        }
+
+        /**
+         * Moves to the next row.
+         * 
+         * @return false if there are no more rows
+         */
+        public boolean next() {
+            if (released) {
+                throw new IllegalStateException("Rows have been released");
+            }
+            if (left == 0) {
+                return false;
+            }
+            while (chunkLeft == 0) {
+                chunkIndex++;
+                chunk = chunks.get(chunkIndex);
+                chunkLeft = chunkRows[chunkIndex];
+                nextOffset = 0;
+            }
+            rowOffset = nextOffset;
+            int pos = rowOffset + nullBytes;
+            for (int i = 0; i < offsets.length; i++) {
+                if ((chunk.get(rowOffset + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                    offsets[i] = -1;
+                    continue;
+                }
+                offsets[i] = pos;
+                switch (types[i]) {
+                    case INT:
+                        pos += 4;
+                        break;
+                    case STRING:
+                        pos += 4 + chunk.getInt(pos);
+                        break;
+                    default:
+                        pos += 8;
+                        break;
+                }
+            }
+            nextOffset = pos;
+            chunkLeft--;
+            left--;
+            return true;
+        }
+
+        /**
+         * Checks if the given column of the current row is null.
+         * 
+         * @param column
+         * 
+         * @return true, if null
+         */
+        public boolean isNull(int column) {
+            return offsets[column] == -1;
+        }
+
+        /**
+         * Gets the int value of the given column of the current row.
+         * 
+         * @param column
+         * 
+         * @return the value (zero if null)
+         */
+        public int getInt(int column) {
+            int at = offset(column, ColumnType.INT);
+            return at == -1 ? 0 : chunk.getInt(at);
+        }
+
+        /**
+         * Gets the long value of the given column of the current row.
+         * 
+         * @param column
+         * 
+         * @return the value (zero if null)
+         */
+        public long getLong(int column) {
+            int at = offset(column, ColumnType.LONG);
+            return at == -1 ? 0L : chunk.getLong(at);
+        }
+
+        /**
+         * Gets the double value of the given column of the current row.
+         * 
+         * @param column
+         * 
+         * @return the value (zero if null)
+         */
+        public double getDouble(int column) {
+            int at = offset(column, ColumnType.DOUBLE);
+            return at == -1 ? 0.0d : Double.longBitsToDouble(chunk.getLong(at));
+        }
+
+        /**
+         * Gets the string value of the given column of the current row.
+         * 
+         * @param column
+         * 
+         * @return the value (or null)
+         */
+        public String getString(int column) {
+            int at = offset(column, ColumnType.STRING);
+            if (at == -1) {
+                return null;
+            }
+            int len = chunk.getInt(at);
+            byte[] bytes = new byte[len];
+            ByteBuffer view = chunk.duplicate();
+            view.position(at + 4);
+            view.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        /**
+         * Gets where the value of the given column is after checking its type.
+         */
+        private int offset(int column, ColumnType type) {
+            if (types[column] != type) {
+                throw new IllegalArgumentException("Column " + names[column] + " is a " + types[column] + " column not a " + type + " column");
+            }
+            if (released) {
+                throw new IllegalStateException("Rows have been released");
+            }
+            return offsets[column];
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of rows stored by column, each column is a primitive vector (int,
+ * long, double or dictionary encoded string codes) with a bitmap marking which
+ * rows are null. Since there is no boxing and no per row map lookups pipes
+ * that transform or aggregate tabular data can loop over the columns they need
+ * directly. A batch can not be changed once built (use the builder).
+ * 
+ * @author Joshua Harlow
+ */
+public final class RowBatch
+{
+    /** The column names. */
+    private final String[] names;
+
+    /** The column types. */
+    private final ColumnType[] types;
+
+    /** The column vectors (int[], long[], double[] or int[] codes). */
+    private final Object[] vectors;
+
+    /** The null bitmaps of each column (bit set if null). */
+    private final long[][] nulls;
+
+    /** The dictionaries of the string columns (null for others). */
+    private final String[][] dictionaries;
+
+    /** The number of rows. */
+    private final int rowCount;
+
+    /** The index of each column name. */
+    private final Map<String, Integer> indexes;
+
+    /**
+     * Instantiates a new row batch (see the builder).
+     */
+    private RowBatch(String[] names, ColumnType[] types, Object[] vectors, long[][] nulls, String[][] dictionaries, int rowCount) {
+        this.names = names;
+        this.types = types;
+        this.vectors = vectors;
+        this.nulls = nulls;
+        this.dictionaries = dictionaries;
+        this.rowCount = rowCount;
+        this.indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            indexes.put(names[i], i);
+        }
+    }
+
+    /**
+     * Gets the row count.
+     * 
+     * @return the row count
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the column count.
+     * 
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of the given column.
+     * 
+     * @param column
+     * 
+     * @return the column name
+     */
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * Gets the index of the column with the given name.
+     * 
+     * @param name
+     * 
+     * @return the column index (or -1 if no such column)
+     */
+    public int getColumnIndex(String name) {
+        Integer index = indexes.get(name);
+        if (index == null) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the type of the given column.
+     * 
+     * @param column
+     * 
+     * @return the column type
+     */
+    public ColumnType getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Checks if the value of the given column and row is null.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return true, if null
+     */
+    public boolean isNull(int column, int row) {
+        return (nulls[column][row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Gets the vector of a int column (null rows are zero), this is the
+     * backing vector and must not be changed.
+     * 
+     * @param column
+     * 
+     * @return the int vector
+     */
+    public int[] getInts(int column) {
+        checkType(column, ColumnType.INT);
+        return (int[]) vectors[column];
+    }
+
+    /**
+     * Gets the vector of a long column (null rows are zero), this is the
+     * backing vector and must not be changed.
+     * 
+     * @param column
+     * 
+     * @return the long vector
+     */
+    public long[] getLongs(int column) {
+        checkType(column, ColumnType.LONG);
+        return (long[]) vectors[column];
+    }
+
+    /**
+     * Gets the vector of a double column (null rows are zero), this is the
+     * backing vector and must not be changed.
+     * 
+     * @param column
+     * 
+     * @return the double vector
+     */
+    public double[] getDoubles(int column) {
+        checkType(column, ColumnType.DOUBLE);
+        return (double[]) vectors[column];
+    }
+
+    /**
+     * Gets the dictionary codes of a string column (null rows are -1), this is
+     * the backing vector and must not be changed.
+     * 
+     * @param column
+     * 
+     * @return the code vector
+     */
+    public int[] getStringCodes(int column) {
+        checkType(column, ColumnType.STRING);
+        return (int[]) vectors[column];
+    }
+
+    /**
+     * Gets the dictionary of a string column, this is the backing dictionary
+     * and must not be changed.
+     * 
+     * @param column
+     * 
+     * @return the dictionary (indexed by code)
+     */
+    public String[] getDictionary(int column) {
+        checkType(column, ColumnType.STRING);
+        return dictionaries[column];
+    }
+
+    /**
+     * Gets the int value of the given column and row.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return the value (zero if null)
+     */
+    public int getInt(int column, int row) {
+        return getInts(column)[row];
+    }
+
+    /**
+     * Gets the long value of the given column and row.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return the value (zero if null)
+     */
+    public long getLong(int column, int row) {
+        return getLongs(column)[row];
+    }
+
+    /**
+     * Gets the double value of the given column and row.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return the value (zero if null)
+     */
+    public double getDouble(int column, int row) {
+        return getDoubles(column)[row];
+    }
+
+    /**
+     * Gets the string value of the given column and row.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return the value (or null)
+     */
+    public String getString(int column, int row) {
+        int code = getStringCodes(column)[row];
+        if (code < 0) {
+            return null;
+        }
+        return dictionaries[column][code];
+    }
+
+    /**
+     * Gets the value of the given column and row boxed (or null), this is
+     * meant for generic code and not tight loops.
+     * 
+     * @param column
+     * @param row
+     * 
+     * @return the value
+     */
+    public Object getValue(int column, int row) {
+        if (isNull(column, row)) {
+            return null;
+        }
+        switch (types[column]) {
+            case INT:
+                return getInt(column, row);
+            case LONG:
+                return getLong(column, row);
+            case DOUBLE:
+                return getDouble(column, row);
+            default:
+                return getString(column, row);
+        }
+    }
+
+    /**
+     * Checks the given column is of the given type.
+     */
+    private void checkType(int column, ColumnType type) {
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + names[column] + " is a " + types[column] + " column not a " + type + " column");
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [columns=");
+        builder.append(Arrays.toString(names));
+        builder.append(", types=");
+        builder.append(Arrays.toString(types));
+        builder.append(", rows=");
+        builder.append(rowCount);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    /**
+     * Builds a row batch a row at a time, the columns are added first and then
+     * for each row every column is set (columns not set in a row are null) and
+     * the row is ended.
+     */
+    public static final class Builder implements RowWriter
+    {
+        /** The default initial row capacity. */
+        private static final int DEFAULT_CAPACITY = 64;
+
+        /** The column names. */
+        private final List<String> names;
+
+        /** The column types. */
+        private final List<ColumnType> types;
+
+        /** The vectors being filled. */
+        private Object[] vectors;
+
+        /** The null bitmaps being filled. */
+        private long[][] nulls;
+
+        /** The dictionary codes of each string column. */
+        private List<Map<String, Integer>> codes;
+
+        /** The dictionaries of each string column. */
+        private List<List<String>> dictionaries;
+
+        /** Which columns were set in the current row. */
+        private boolean[] set;
+
+        /** The rows so far. */
+        private int rowCount;
+
+        /** The row capacity of the vectors. */
+        private int capacity;
+
+        /** The initial row capacity. */
+        private final int initialCapacity;
+
+        /**
+         * Instantiates a new builder.
+         */
+        public Builder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * Instantiates a new builder.
+         * 
+         * @param initialCapacity
+         *            how many rows to make room for at first
+         */
+        public Builder(int initialCapacity) {
+            if (initialCapacity <= 0) {
+                throw new IllegalArgumentException("Initial capacity must be greater than zero");
+            }
+            this.names = new ArrayList<String>();
+            this.types = new ArrayList<ColumnType>();
+            this.initialCapacity = initialCapacity;
+        }
+
+        /**
+         * Adds a column, this must be done before any rows are set.
+         * 
+         * @param name
+         * @param type
+         * 
+         * @return the index of the column
+         */
+        public int addColumn(String name, ColumnType type) {
+            if (vectors != null) {
+                throw new IllegalStateException("Columns can not be added once rows have been set");
+            }
+            if (name == null || type == null || names.contains(name)) {
+                throw new IllegalArgumentException("A column needs a unique name and a type");
+            }
+            names.add(name);
+            types.add(type);
+            return names.size() - 1;
+        }
+
+        /**
+         * Makes the vectors once the columns are known.
+         */
+        private void start() {
+            if (vectors != null) {
+                return;
+            }
+            int am = names.size();
+            capacity = initialCapacity;
+            vectors = new Object[am];
+            nulls = new long[am][];
+            codes = new ArrayList<Map<String, Integer>>(am);
+            dictionaries = new ArrayList<List<String>>(am);
+            set = new boolean[am];
+            for (int i = 0; i < am; i++) {
+                nulls[i] = new long[(capacity + 63) >>> 6];
+                ColumnType type = types.get(i);
+                if (type == ColumnType.LONG) {
+                    vectors[i] = new long[capacity];
+                }
+                else if (type == ColumnType.DOUBLE) {
+                    vectors[i] = new double[capacity];
+                }
+                else {
+                    vectors[i] = new int[capacity];
+                }
+                if (type == ColumnType.STRING) {
+                    codes.add(new HashMap<String, Integer>());
+                    dictionaries.add(new ArrayList<String>());
+                }
+                else {
+                    codes.add(null);
+                    dictionaries.add(null);
+                }
+            }
+        }
+
+        /**
+         * Gets the vector of the given column ready to be set in the current
+         * row.
+         */
+        private Object vector(int column, ColumnType type) {
+            start();
+            if (types.get(column) != type) {
+                throw new IllegalArgumentException("Column " + names.get(column) + " is a " + types.get(column) + " column not a " + type + " column");
+            }
+            set[column] = true;
+            return vectors[column];
+        }
+
+        /**
+         * Sets a int value of the current row.
+         * 
+         * @param column
+         * @param value
+         */
+        public void setInt(int column, int value) {
+            ((int[]) vector(column, ColumnType.INT))[rowCount] = value;
+        }
+
+        /**
+         * Sets a long value of the current row.
+         * 
+         * @param column
+         * @param value
+         */
+        public void setLong(int column, long value) {
+            ((long[]) vector(column, ColumnType.LONG))[rowCount] = value;
+        }
+
+        /**
+         * Sets a double value of the current row.
+         * 
+         * @param column
+         * @param value
+         */
+        public void setDouble(int column, double value) {
+            ((double[]) vector(column, ColumnType.DOUBLE))[rowCount] = value;
+        }
+
+        /**
+         * Sets a string value of the current row (null is allowed).
+         * 
+         * @param column
+         * @param value
+         */
+        public void setString(int column, String value) {
+            int[] vec = (int[]) vector(column, ColumnType.STRING);
+            if (value == null) {
+                set[column] = false;
+                return;
+            }
+            Map<String, Integer> known = codes.get(column);
+            Integer code = known.get(value);
+            if (code == null) {
+                List<String> dict = dictionaries.get(column);
+                code = dict.size();
+                dict.add(value);
+                known.put(value, code);
+            }
+            vec[rowCount] = code;
+        }
+
+        /**
+         * Marks the given column of the current row as null.
+         * 
+         * @param column
+         */
+        public void setNull(int column) {
+            start();
+            set[column] = false;
+        }
+
+        /**
+         * Ends the current row, any columns not set in it are null.
+         */
+        public void endRow() {
+            start();
+            for (int i = 0; i < set.length; i++) {
+                if (set[i] == false) {
+                    nulls[i][rowCount >>> 6] |= (1L << rowCount);
+                    if (types.get(i) == ColumnType.STRING) {
+                        ((int[]) vectors[i])[rowCount] = -1;
+                    }
+                }
+                set[i] = false;
+            }
+            rowCount++;
+            if (rowCount == capacity) {
+                grow(capacity * 2);
+            }
+        }
+
+        /**
+         * Gets the rows ended so far.
+         * 
+         * @return the row count
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Resizes the vectors to the given capacity.
+         */
+        private void grow(int size) {
+            for (int i = 0; i < vectors.length; i++) {
+                Object vec = vectors[i];
+                if (vec instanceof long[]) {
+                    vectors[i] = Arrays.copyOf((long[]) vec, size);
+                }
+                else if (vec instanceof double[]) {
+                    vectors[i] = Arrays.copyOf((double[]) vec, size);
+                }
+                else {
+                    vectors[i] = Arrays.copyOf((int[]) vec, size);
+                }
+                nulls[i] = Arrays.copyOf(nulls[i], (size + 63) >>> 6);
+            }
+            capacity = size;
+        }
+
+        /**
+         * Builds the batch of the rows ended so far, the builder can not be
+         * used after this.
+         * 
+         * @return the row batch
+         */
+        public RowBatch build() {
+            start();
+            if (rowCount != capacity) {
+                grow(rowCount);
+            }
+            int am = names.size();
+            String[][] dicts = new String[am][];
+            for (int i = 0; i < am; i++) {
+                List<String> dict = dictionaries.get(i);
+                if (dict != null) {
+                    dicts[i] = dict.toArray(new String[dict.size()]);
+                }
+            }
+            RowBatch batch = new RowBatch(names.toArray(new String[am]), types.toArray(new ColumnType[am]), vectors, nulls, dicts, rowCount);
+            vectors = null;
+            nulls = null;
+            codes = null;
+            dictionaries = null;
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.table;
+
+/**
+ * Something rows are appended to a column at a time, each column of a row is
+ * set (columns not set in a row are null) and then the row is ended. Both row
+ * batch builders and off heap rows are written this way so the same code can
+ * fill either.
+ * 
+ * @author Joshua Harlow
+ */
+public interface RowWriter
+{
+    /**
+     * Sets a int value of the row being written.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setInt(int column, int value);
+
+    /**
+     * Sets a long value of the row being written.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setLong(int column, long value);
+
+    /**
+     * Sets a double value of the row being written.
+     * 
+     * @param column
+     * @param value
+     */
+    public void setDouble(int column, double value);
+
+    /**
+     * Sets a string value of the row being written (null is allowed).
+     * 
+     * @param column
+     * @param value
+     */
+    public void setString(int column, String value);
+
+    /**
+     * Marks the given column of the row being written as null.
+     * 
+     * @param column
+     */
+    public void setNull(int column);
+
+    /**
+     * Ends the row being written, any columns not set in it are null.
+     */
+    public void endRow();
+}
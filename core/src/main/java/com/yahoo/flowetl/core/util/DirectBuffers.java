@@ -0,0 +1,101 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import com.yahoo.flowetl.core.Logger;
+import com.yahoo.flowetl.core.Logger.Level;
+
+/**
+ * Direct buffer utility functions. The memory of a direct buffer is normally
+ * only given back once the buffer is garbage collected, which for large
+ * buffers that are only briefly used can be much later than wanted (or not
+ * until the heap is under pressure). This frees that memory right away using
+ * the cleaner of the buffer (found reflectively since there is no public api
+ * for it), if that can not be done the memory is left to the collector.
+ * 
+ * @author Joshua Harlow
+ */
+public class DirectBuffers
+{
+    /** The logger. */
+    private static final Logger logger = new Logger(DirectBuffers.class);
+
+    /** The unsafe instance (newer jvms) or null. */
+    private static final Object UNSAFE;
+
+    /** The unsafe invoke cleaner method (newer jvms) or null. */
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeKlass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeKlass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = unsafeKlass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        }
+        catch (Exception e) {
+            // older jvm, use the cleaner of each buffer
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private DirectBuffers() {
+        // a util class
+    }
+
+    /**
+     * Frees the memory of the given direct buffer, the buffer (and any views
+     * of it) must not be used after this.
+     * 
+     * @param buffer
+     * 
+     * @return true, if freed (false if left to the garbage collector)
+     */
+    public static boolean free(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() == false) {
+            return false;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        }
+        catch (Exception e) {
+            if (logger.isEnabled(Level.DEBUG)) {
+                logger.log(Level.DEBUG, e, "Unable to free direct buffer " + buffer + ", leaving it to the collector");
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.util;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * Some utils for making fingerprints of pipe results, two results with the
+ * same param names and the same param values will have the same fingerprint.
+ * Only values whose whole value is known are fingerprinted (strings, numbers,
+ * booleans, characters, enums, dates and lists, maps and arrays of those),
+ * since the string form of anything else may leave out part of its value (or
+ * be its identity) a result with any other value has no fingerprint.
+ * 
+ * @author Joshua Harlow
+ */
+public class FingerprintUtils
+{
+    /** The digest algorithm. */
+    private static final String ALGORITHM = "SHA-1";
+
+    /** The hex characters. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private FingerprintUtils() {
+        // a util class
+    }
+
+    /**
+     * Makes a fingerprint of the given pipe result.
+     * 
+     * @param result
+     * 
+     * @return the fingerprint (as a hex string) or null if the result has a
+     *         value which can not be fingerprinted (it should then not be
+     *         treated as the same as any other result)
+     */
+    public static String fingerprint(PipeResult result) {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new CoreException("Unable to get a " + ALGORITHM + " digest", e);
+        }
+        if (result != null) {
+            List<String> names = new ArrayList<String>();
+            for (String name : result) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            // results are not required to be ordered
+            Collections.sort(names);
+            StringBuilder part = new StringBuilder();
+            for (String name : names) {
+                part.setLength(0);
+                appendString(part, name);
+                if (appendValue(part, result.getParam(name)) == false) {
+                    return null;
+                }
+                part.append('\n');
+                try {
+                    digest.update(part.toString().getBytes("UTF-8"));
+                }
+                catch (UnsupportedEncodingException e) {
+                    throw new CoreException("Unable to encode " + name, e);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Appends a string so that where it ends is known (its length first).
+     */
+    private static void appendString(StringBuilder out, String str) {
+        out.append(str.length());
+        out.append(':');
+        out.append(str);
+    }
+
+    /**
+     * Appends the type and the whole value of the given value.
+     * 
+     * @return false if the value is not one whose whole value is known
+     */
+    private static boolean appendValue(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append('N');
+            return true;
+        }
+        Class<?> kls = value.getClass();
+        if (value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte || value instanceof Double || value instanceof Float || value instanceof BigInteger
+                || value instanceof BigDecimal) {
+            out.append('V');
+            appendString(out, kls.getName());
+            appendString(out, value.toString());
+            return true;
+        }
+        if (value instanceof Enum) {
+            out.append('E');
+            appendString(out, ((Enum<?>) value).getDeclaringClass().getName());
+            appendString(out, ((Enum<?>) value).name());
+            return true;
+        }
+        if (value instanceof Date) {
+            out.append('D');
+            appendString(out, kls.getName());
+            out.append(((Date) value).getTime());
+            if (value instanceof Timestamp) {
+                // the time only has the milliseconds of it
+                out.append('.');
+                out.append(((Timestamp) value).getNanos());
+            }
+            out.append(';');
+            return true;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.append('L');
+            out.append(list.size());
+            out.append(':');
+            for (Object o : list) {
+                if (appendValue(out, o) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof Map) {
+            // maps are not required to be ordered so the entries are sorted
+            List<String> entries = new ArrayList<String>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                StringBuilder entry = new StringBuilder();
+                if (appendValue(entry, e.getKey()) == false || appendValue(entry, e.getValue()) == false) {
+                    return false;
+                }
+                entries.add(entry.toString());
+            }
+            Collections.sort(entries);
+            out.append('M');
+            out.append(entries.size());
+            out.append(':');
+            for (String entry : entries) {
+                out.append(entry);
+            }
+            return true;
+        }
+        if (kls.isArray()) {
+            int am = Array.getLength(value);
+            out.append('A');
+            appendString(out, kls.getComponentType().getName());
+            out.append(am);
+            out.append(':');
+            for (int i = 0; i < am; i++) {
+                if (appendValue(out, Array.get(value, i)) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Converts the given bytes to a hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.core.validator;
+
+import java.util.List;
+
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.InputValidator;
+import com.yahoo.flowetl.core.pipe.ParamKey;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+/**
+ * A input validation class for pipes to use that takes a list of required
+ * param keys and a list of optional param keys. Since the plumber already
+ * checks that the pipes before a pipe produce its required keys with a
+ * compatible type this only needs to check that the values are actually there
+ * (and are instances of the key types) which is cheap.
+ * 
+ * @author Joshua Harlow
+ */
+public class KeyInputValidator implements InputValidator
+{
+    /** The required keys. */
+    private final List<ParamKey<?>> required;
+
+    /** The optional keys. */
+    private final List<ParamKey<?>> optional;
+
+    /**
+     * Instantiates a new key input validator.
+     * 
+     * @param required
+     * @param optional
+     */
+    public KeyInputValidator(List<ParamKey<?>> required, List<ParamKey<?>> optional) {
+        this.required = required;
+        this.optional = optional;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.core.InputValidator#checkInput(com.yahoo.flowetl.core
+     * .pipe.PipeResult)
+     */
+    @Override
+    public void checkInput(PipeResult in) {
+        if (in == null) {
+            return;
+        }
+        if (required != null) {
+            for (int i = 0; i < required.size(); i++) {
+                ParamKey<?> key = required.get(i);
+                Object o = key.get(in);
+                if (o == null) {
+                    if (in.isParamExistent(key.getName()) == false) {
+                        throw new CoreException("The param " + key.getName() + " is a required but it is missing");
+                    }
+                    throw new CoreException("The param " + key.getName() + " is a required but it is null");
+                }
+                if (key.getType().isInstance(o) == false) {
+                    throw new CoreException("The param " + key.getName() + " has a value which is not castable to " + key.getType());
+                }
+            }
+        }
+        if (optional != null) {
+            for (int i = 0; i < optional.size(); i++) {
+                ParamKey<?> key = optional.get(i);
+                Object o = key.get(in);
+                if (o == null) {
+                    // ok, its optional
+                    continue;
+                }
+                if (key.getType().isInstance(o) == false) {
+                    throw new CoreException("The param " + key.getName() + " has a value which is not castable to " + key.getType());
+                }
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [optional=");
+        builder.append(optional);
+        builder.append(", required=");
+        builder.append(required);
+        builder.append("]");
+        return builder.toString();
+    }
+}
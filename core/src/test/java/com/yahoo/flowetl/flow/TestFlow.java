@@ -12,17 +12,48 @@
  *******************************************************/
 package com.yahoo.flowetl.flow;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.yahoo.flowetl.core.CoreException;
+import com.yahoo.flowetl.core.PipeException;
+import com.yahoo.flowetl.core.PipeRunner;
 import com.yahoo.flowetl.core.Plumber;
 import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.iterator.RecordChannel;
 import com.yahoo.flowetl.core.pipe.AbstractPipe;
+import com.yahoo.flowetl.core.pipe.ContextPipe;
+import com.yahoo.flowetl.core.pipe.ParamKey;
 import com.yahoo.flowetl.core.pipe.Pipe;
 import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.Releasable;
+import com.yahoo.flowetl.core.pipe.StreamingPipe;
+import com.yahoo.flowetl.core.pipe.cache.LruOutputCache;
 import com.yahoo.flowetl.core.pipe.Pipe.AttachReturn;
+import com.yahoo.flowetl.core.pipe.example.CapturePipe;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.runner.AbstractPlanRunner;
+import com.yahoo.flowetl.core.runner.MemoryBudget;
+import com.yahoo.flowetl.core.runner.PipeTimings;
+import com.yahoo.flowetl.core.runner.RunContext;
 import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.core.table.ColumnType;
+import com.yahoo.flowetl.core.table.OffHeapRows;
 
 @Test
 public class TestFlow
@@ -44,6 +75,279 @@ public class TestFlow
 
     };
 
+    private static class ValuePipe extends AbstractPipe
+    {
+        private final long sleepMs;
+        private final AtomicInteger made = new AtomicInteger();
+
+        public ValuePipe(ServiceRegistry services, String name, long sleepMs) {
+            super(name, services);
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        protected PipeResult makeOutput(List<PipeResult> inputs) {
+            made.incrementAndGet();
+            try {
+                Thread.sleep(sleepMs);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            BackedPipeResult out = new BackedPipeResult(inputs);
+            out.setParam(getName(), getName());
+            return out;
+        }
+    }
+
+    private static class KeyedPipe extends ValuePipe
+    {
+        private final List<ParamKey<?>> required;
+        private final List<ParamKey<?>> declared;
+
+        public KeyedPipe(ServiceRegistry services, String name, List<ParamKey<?>> required, List<ParamKey<?>> declared) {
+            super(services, name, 0);
+            this.required = required;
+            this.declared = declared;
+        }
+
+        @Override
+        public List<ParamKey<?>> getRequiredInputs() {
+            return required;
+        }
+
+        @Override
+        public List<ParamKey<?>> getDeclaredOutputs() {
+            return declared;
+        }
+    }
+
+    private static class RowsPipe extends AbstractPipe
+    {
+        private OffHeapRows rows;
+        private MemoryBudget budget;
+
+        public RowsPipe(ServiceRegistry services, String name) {
+            super(name, services);
+        }
+
+        @Override
+        protected PipeResult makeOutput(List<PipeResult> inputs) {
+            budget = getMemoryBudget();
+            rows = new OffHeapRows(new String[] { "id", "name" }, new ColumnType[] { ColumnType.LONG, ColumnType.STRING }, 4096, budget);
+            for (int i = 0; i < 10000; i++) {
+                rows.setLong(0, i);
+                rows.setString(1, "row" + i);
+                rows.endRow();
+            }
+            return new BackedPipeResult();
+        }
+    }
+
+    private static class ReleasableResult extends BackedPipeResult implements Releasable
+    {
+        private volatile boolean released;
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static class ReleasingPipe extends AbstractPipe
+    {
+        private final List<ReleasableResult> made = new ArrayList<ReleasableResult>();
+        private final boolean fail;
+
+        public ReleasingPipe(ServiceRegistry services, String name, boolean fail) {
+            super(name, services);
+            this.fail = fail;
+        }
+
+        @Override
+        protected synchronized PipeResult makeOutput(List<PipeResult> inputs) {
+            if (fail) {
+                throw new CoreException("Failed " + getName());
+            }
+            ReleasableResult out = new ReleasableResult();
+            out.setParam(getName(), new Object());
+            made.add(out);
+            return out;
+        }
+
+        @Override
+        public boolean isReusable(PipeResult output) {
+            return false;
+        }
+    }
+
+    private static class CountingPipe extends StreamingPipe
+    {
+        private final int count;
+        private final int failAt;
+        private final AtomicLong produced;
+        private volatile boolean stopped;
+
+        public CountingPipe(ServiceRegistry services, int count, int failAt, AtomicLong produced) {
+            super("count", services, 8);
+            this.count = count;
+            this.failAt = failAt;
+            this.produced = produced;
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (i == failAt) {
+                        throw new Exception("Failed at " + i);
+                    }
+                    if (out.put(i) == false) {
+                        return;
+                    }
+                    produced.incrementAndGet();
+                }
+            }
+            finally {
+                stopped = true;
+            }
+        }
+    }
+
+    private static class DoublingPipe extends StreamingPipe
+    {
+        public DoublingPipe(ServiceRegistry services) {
+            this(services, 8);
+        }
+
+        public DoublingPipe(ServiceRegistry services, int capacity) {
+            super("double", services, capacity);
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            while (records.hasNext()) {
+                if (out.put(((Integer) records.next()) * 2) == false) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class LatePipe extends StreamingPipe
+    {
+        private final CountDownLatch go = new CountDownLatch(1);
+        private final CountDownLatch added = new CountDownLatch(1);
+        private final AtomicBoolean ran = new AtomicBoolean(false);
+
+        public LatePipe(ServiceRegistry services) {
+            super("late", services, 1);
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            // blocks until the end of the chain stops reading
+            while (out.put(1)) {
+                // keep going
+            }
+            go.await();
+            getActiveContext().onCompletion(new Runnable()
+            {
+                @Override
+                public void run() {
+                    ran.set(true);
+                }
+            });
+            added.countDown();
+        }
+    }
+
+    private static class SkippingPipe extends StreamingPipe
+    {
+        public SkippingPipe(ServiceRegistry services) {
+            super("skip", services);
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            // reads nothing
+        }
+    }
+
+    private static class SummingPipe extends StreamingPipe
+    {
+        private final AtomicLong produced;
+        private long sum;
+        private long maxAhead;
+
+        public SummingPipe(ServiceRegistry services, AtomicLong produced) {
+            super("sum", services);
+            this.produced = produced;
+        }
+
+        @Override
+        protected void stream(Iterator<Object> records, RecordChannel<Object> out, PipeResult params) throws Exception {
+            long consumed = 0;
+            while (records.hasNext()) {
+                sum += (Integer) records.next();
+                consumed++;
+                maxAhead = Math.max(maxAhead, produced.get() - consumed);
+            }
+        }
+    }
+
+    // implements only the plain pipe interface (like pipes made outside of
+    // this project would)
+    private static class PlainPipe implements Pipe
+    {
+        private final String name;
+        private final List<Pipe> outputs = new ArrayList<Pipe>();
+        private final List<PipeResult> inputs = new ArrayList<PipeResult>();
+
+        public PlainPipe(String name) {
+            this.name = name;
+        }
+
+        public Pipe attachOutput(Pipe next, AttachReturn retWhat) {
+            outputs.add(next);
+            return retWhat == AttachReturn.NEXT ? next : this;
+        }
+
+        public Pipe attachOutput(Pipe next) {
+            return attachOutput(next, AttachReturn.SELF);
+        }
+
+        public List<Pipe> getOutputs() {
+            return outputs;
+        }
+
+        public void attachInput(PipeResult in) {
+            inputs.add(in);
+        }
+
+        public PipeResult generateOutput() {
+            BackedPipeResult out = new BackedPipeResult(inputs);
+            out.setParam(name, name);
+            return out;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int maxOutputs() {
+            return -1;
+        }
+
+        public void clearInputs() {
+            inputs.clear();
+        }
+
+        public float percentDone() {
+            return 0;
+        }
+    }
+
     @Test
     public void testSimpleFlow() throws Exception {
         ServiceRegistry sreg = new TestServiceRegistry();
@@ -53,4 +357,528 @@ public class TestFlow
         Runnable r = runner.translate(start);
         r.run();
     }
+
+    @Test
+    public void testParallelFlow() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new ValuePipe(sreg, "start", 0);
+        CapturePipe end = new CapturePipe("end", sreg);
+        for (int i = 0; i < 4; i++) {
+            start.attachOutput(new ValuePipe(sreg, "branch" + i, 200), AttachReturn.NEXT).attachOutput(end);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Plumber runner = new Plumber(executor);
+            long started = System.currentTimeMillis();
+            runner.translate(start).run();
+            long taken = System.currentTimeMillis() - started;
+            PipeResult captured = end.getCaptured();
+            Assert.assertEquals(captured.getParam("start"), "start");
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(captured.getParam("branch" + i), "branch" + i);
+            }
+            // the branches should not have ran one after the other
+            Assert.assertTrue(taken < 800, "Took " + taken + "ms");
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testThreadPerPipeFlow() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new ValuePipe(sreg, "start", 0);
+        CapturePipe end = new CapturePipe("end", sreg);
+        for (int i = 0; i < 50; i++) {
+            start.attachOutput(new ValuePipe(sreg, "branch" + i, 200), AttachReturn.NEXT).attachOutput(end);
+        }
+        Plumber runner = new Plumber(Plumber.ExecutionMode.THREAD_PER_PIPE);
+        long started = System.currentTimeMillis();
+        runner.translate(start).run();
+        long taken = System.currentTimeMillis() - started;
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(end.getCaptured().getParam("branch" + i), "branch" + i);
+        }
+        Assert.assertTrue(taken < 2000, "Took " + taken + "ms");
+    }
+
+    @Test
+    public void testCriticalPathFirst() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new ValuePipe(sreg, "start", 0);
+        CapturePipe end = new CapturePipe("end", sreg);
+        for (int i = 0; i < 4; i++) {
+            start.attachOutput(new ValuePipe(sreg, "short" + i, 0), AttachReturn.NEXT).attachOutput(end);
+        }
+        start.attachOutput(new ValuePipe(sreg, "long", 0), AttachReturn.NEXT).attachOutput(new ValuePipe(sreg, "longer", 0), AttachReturn.NEXT)
+                .attachOutput(end);
+        PipeTimings timings = new PipeTimings();
+        timings.record("long", 100);
+        timings.record("longer", 100);
+        final List<String> started = new ArrayList<String>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PipeRunner r = new Plumber(executor, timings).translate(start);
+            r.addFlowListener(new TestFlowListener()
+            {
+                @Override
+                public void onStartGenerate(Pipe aboutToRunPipe) {
+                    started.add(aboutToRunPipe.getName());
+                }
+            });
+            r.run();
+        }
+        finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(started.get(0), "start");
+        Assert.assertEquals(started.get(1), "long");
+        Assert.assertTrue(timings.getEstimate("short0", -1) >= 0);
+    }
+
+    @Test
+    public void testConcurrentRuns() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        final Pipe start = new ValuePipe(sreg, "start", 0);
+        final Pipe end = new ValuePipe(sreg, "end", 0);
+        for (int i = 0; i < 2; i++) {
+            start.attachOutput(new ValuePipe(sreg, "branch" + i, 50), AttachReturn.NEXT).attachOutput(end);
+        }
+        final PipeRunner r = new Plumber().translate(start);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PipeResult>> runs = new ArrayList<Future<PipeResult>>();
+            for (int i = 0; i < 8; i++) {
+                final int partition = i;
+                runs.add(executor.submit(new Callable<PipeResult>()
+                {
+                    @Override
+                    public PipeResult call() throws Exception {
+                        RunContext context = r.newContext();
+                        BackedPipeResult seed = new BackedPipeResult();
+                        seed.setParam("partition", partition);
+                        context.attachInput(start, seed);
+                        r.run(context);
+                        return context.getOutput(end);
+                    }
+                }));
+            }
+            for (int i = 0; i < runs.size(); i++) {
+                PipeResult out = runs.get(i).get();
+                Assert.assertEquals(out.getParam("partition"), Integer.valueOf(i));
+                Assert.assertEquals(out.getParam("branch0"), "branch0");
+                Assert.assertEquals(out.getParam("branch1"), "branch1");
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        // the pipes themselves should not be holding anything from those runs
+        Assert.assertTrue(((ContextPipe) end).getInputs().isEmpty());
+    }
+
+    @Test
+    public void testStreamingFlow() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        AtomicLong produced = new AtomicLong();
+        Pipe start = new CountingPipe(sreg, 100000, -1, produced);
+        SummingPipe end = new SummingPipe(sreg, produced);
+        start.attachOutput(new DoublingPipe(sreg), AttachReturn.NEXT).attachOutput(end);
+        new Plumber().translate(start).run();
+        Assert.assertEquals(end.sum, 99999L * 100000L);
+        // the producer should never have gotten far ahead of the consumer
+        Assert.assertTrue(end.maxAhead < 64, "Producer got " + end.maxAhead + " records ahead");
+    }
+
+    @Test
+    public void testStreamingFailure() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        AtomicLong produced = new AtomicLong();
+        Pipe start = new CountingPipe(sreg, 100000, 1000, produced);
+        SummingPipe end = new SummingPipe(sreg, produced);
+        start.attachOutput(new DoublingPipe(sreg), AttachReturn.NEXT).attachOutput(end);
+        try {
+            new Plumber().translate(start).run();
+            Assert.fail("The failure of the first stage was not seen");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+        Assert.assertEquals(produced.get(), 1000L);
+    }
+
+    @Test
+    public void testStreamingEnd() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new CountingPipe(sreg, 1000, -1, new AtomicLong());
+        Pipe end = new DoublingPipe(sreg, 1000);
+        start.attachOutput(end);
+        PipeRunner r = new Plumber().translate(start);
+        RunContext context = r.newContext();
+        r.run(context);
+        // what the last stage produced is kept for us
+        Iterator<Object> records = context.getOutput(end).getParam(StreamingPipe.OUT_RECORDS);
+        long sum = 0;
+        long count = 0;
+        while (records.hasNext()) {
+            sum += (Integer) records.next();
+            count++;
+        }
+        Assert.assertEquals(count, 1000L);
+        Assert.assertEquals(sum, 999L * 1000L);
+        // but only as much as it can keep
+        start = new CountingPipe(sreg, 1001, -1, new AtomicLong());
+        start.attachOutput(new DoublingPipe(sreg, 1000));
+        try {
+            new Plumber().translate(start).run();
+            Assert.fail("The last stage kept more than its capacity");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLateCompletionTask() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        LatePipe start = new LatePipe(sreg);
+        start.attachOutput(new SkippingPipe(sreg));
+        new Plumber().translate(start).run();
+        // the run completed before the stage added its task
+        start.go.countDown();
+        Assert.assertTrue(start.added.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(start.ran.get());
+    }
+
+    @Test
+    public void testStreamingCancelled() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        CountingPipe start = new CountingPipe(sreg, Integer.MAX_VALUE, -1, new AtomicLong());
+        start.attachOutput(new DoublingPipe(sreg), AttachReturn.NEXT).attachOutput(new ReleasingPipe(sreg, "fail", true));
+        try {
+            new Plumber().translate(start).run();
+            Assert.fail("Run did not fail");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+        // nobody will read what the stages produce so they should be stopped
+        for (int i = 0; i < 100 && start.stopped == false; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(start.stopped);
+    }
+
+    @Test
+    public void testFusedChain() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new ValuePipe(sreg, "start", 0);
+        Pipe cur = start;
+        for (int i = 0; i < 100; i++) {
+            cur = cur.attachOutput(new ValuePipe(sreg, "link" + i, 0), AttachReturn.NEXT);
+        }
+        CapturePipe end = new CapturePipe("end", sreg);
+        cur.attachOutput(end);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            PipeRunner r = new Plumber(executor).translate(start);
+            // a single chain is a single unit
+            Assert.assertEquals(((AbstractPlanRunner) r).getPlan().getUnitCount(), 1);
+            r.run();
+        }
+        finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(end.getCaptured().getParam("start"), "start");
+        Assert.assertEquals(end.getCaptured().getParam("link99"), "link99");
+
+        // branches and joins are not fused
+        start = new ValuePipe(sreg, "start", 0);
+        end = new CapturePipe("end", sreg);
+        for (int i = 0; i < 2; i++) {
+            start.attachOutput(new ValuePipe(sreg, "branch" + i, 0), AttachReturn.NEXT).attachOutput(new ValuePipe(sreg, "after" + i, 0),
+                    AttachReturn.NEXT).attachOutput(end);
+        }
+        PipeRunner r = new Plumber().translate(start);
+        Assert.assertEquals(((AbstractPlanRunner) r).getPlan().getUnitCount(), 4);
+        r.run();
+        Assert.assertEquals(end.getCaptured().getParam("after1"), "after1");
+    }
+
+    @Test
+    public void testHeldNotReleased() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        // the last output still has what the first output had
+        ReleasingPipe start = new ReleasingPipe(sreg, "start", false);
+        ValuePipe copy = new ValuePipe(sreg, "copy", 0);
+        start.attachOutput(copy);
+        PipeRunner r = new Plumber().translate(start);
+        RunContext context = r.newContext();
+        r.run(context);
+        Assert.assertFalse(start.made.get(0).released);
+        Assert.assertSame(context.getOutput(copy).getParam("start"), start.made.get(0).getParam("start"));
+
+        // once that holder is released so is what it held
+        start = new ReleasingPipe(sreg, "start", false);
+        ReleasingPipe end = new ReleasingPipe(sreg, "end", false);
+        start.attachOutput(new ValuePipe(sreg, "copy", 0), AttachReturn.NEXT).attachOutput(end);
+        new Plumber().translate(start).run();
+        Assert.assertTrue(start.made.get(0).released);
+        Assert.assertFalse(end.made.get(0).released);
+
+        // what is captured is never released
+        start = new ReleasingPipe(sreg, "start", false);
+        CapturePipe capture = new CapturePipe("capture", sreg);
+        start.attachOutput(capture);
+        new Plumber().translate(start).run();
+        Assert.assertFalse(start.made.get(0).released);
+        Assert.assertNotNull(capture.getCaptured().getParam("start"));
+    }
+
+    @Test
+    public void testOutputCache() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        ValuePipe start = new ValuePipe(sreg, "start", 0);
+        ValuePipe end = new ValuePipe(sreg, "end", 0);
+        start.attachOutput(end);
+        end.setOutputCache(new LruOutputCache(2));
+        PipeRunner r = new Plumber().translate(start);
+        for (int i = 0; i < 6; i++) {
+            RunContext context = r.newContext();
+            BackedPipeResult seed = new BackedPipeResult();
+            seed.setParam("partition", i % 3);
+            context.attachInput(start, seed);
+            r.run(context);
+            Assert.assertEquals(context.getOutput(end).getParam("partition"), Integer.valueOf(i % 3));
+        }
+        // only 2 outputs fit so every other partition was evicted
+        Assert.assertEquals(start.made.get(), 6);
+        Assert.assertEquals(end.made.get(), 6);
+        r = new Plumber().translate(start);
+        PipeResult last = null;
+        for (int i = 0; i < 3; i++) {
+            RunContext context = r.newContext();
+            BackedPipeResult seed = new BackedPipeResult();
+            seed.setParam("partition", 7);
+            context.attachInput(start, seed);
+            r.run(context);
+            // each hit gets its own copy, changing one does not change the cache
+            BackedPipeResult out = (BackedPipeResult) context.getOutput(end);
+            Assert.assertNotSame(out, last);
+            Assert.assertEquals(out.getParam("end"), "end");
+            out.setParam("end", "changed");
+            last = out;
+        }
+        Assert.assertEquals(start.made.get(), 9);
+        Assert.assertEquals(end.made.get(), 7);
+    }
+
+    @Test
+    public void testIncrementalRuns() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        ValuePipe src1 = new ValuePipe(sreg, "src1", 0);
+        ValuePipe src2 = new ValuePipe(sreg, "src2", 0);
+        ValuePipe x = new ValuePipe(sreg, "x", 0);
+        ValuePipe y = new ValuePipe(sreg, "y", 0);
+        ValuePipe end = new ValuePipe(sreg, "end", 0);
+        src1.attachOutput(x, AttachReturn.NEXT).attachOutput(end);
+        src2.attachOutput(y, AttachReturn.NEXT).attachOutput(end);
+        Set<Pipe> roots = new HashSet<Pipe>();
+        roots.add(src1);
+        roots.add(src2);
+        AbstractPlanRunner r = (AbstractPlanRunner) new Plumber().translate(roots);
+        r.setIncremental(true);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger reused = new AtomicInteger();
+        r.addFlowListener(new TestFlowListener()
+        {
+            @Override
+            public void onStartGenerate(Pipe aboutToRunPipe) {
+                started.incrementAndGet();
+            }
+
+            @Override
+            public void onFinishGenerate(Pipe ranPipe, PipeResult ranResult, long timeTakenMs) {
+                finished.incrementAndGet();
+                if (timeTakenMs == REUSED) {
+                    reused.incrementAndGet();
+                }
+            }
+        });
+        PipeTimings timings = new PipeTimings();
+        timings.record("y", 100);
+        r.addFlowListener(timings);
+        int[] seeds = { 1, 1, 2, 2 };
+        for (int i = 0; i < seeds.length; i++) {
+            RunContext context = r.newContext();
+            BackedPipeResult seed1 = new BackedPipeResult();
+            seed1.setParam("seed1", seeds[i]);
+            context.attachInput(src1, seed1);
+            BackedPipeResult seed2 = new BackedPipeResult();
+            seed2.setParam("seed2", 1);
+            context.attachInput(src2, seed2);
+            r.run(context);
+            Assert.assertEquals(context.getOutput(end).getParam("seed1"), Integer.valueOf(seeds[i]));
+            Assert.assertEquals(context.getOutput(end).getParam("y"), "y");
+        }
+        // only the first run and the one where the first seed changed
+        Assert.assertEquals(src1.made.get(), 2);
+        Assert.assertEquals(x.made.get(), 2);
+        Assert.assertEquals(end.made.get(), 2);
+        Assert.assertEquals(src2.made.get(), 1);
+        Assert.assertEquals(y.made.get(), 1);
+        // listeners hear about the reused pipes too
+        Assert.assertEquals(started.get(), 5 * seeds.length);
+        Assert.assertEquals(finished.get(), 5 * seeds.length);
+        // but not as pipes that ran (so timings are not skewed by them)
+        Assert.assertEquals(reused.get(), 5 * seeds.length - 8);
+        Assert.assertTrue(timings.getEstimate("y", -1) > 50);
+    }
+
+    @Test
+    public void testEarlyRelease() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        final ReleasingPipe start = new ReleasingPipe(sreg, "start", false);
+        final ReleasingPipe left = new ReleasingPipe(sreg, "left", false);
+        final ReleasingPipe right = new ReleasingPipe(sreg, "right", false);
+        ReleasingPipe end = new ReleasingPipe(sreg, "end", false);
+        start.attachOutput(left).attachOutput(right);
+        left.attachOutput(end);
+        right.attachOutput(end);
+        final List<String> seen = new ArrayList<String>();
+        PipeRunner r = new Plumber().translate(start);
+        r.addFlowListener(new TestFlowListener()
+        {
+            @Override
+            public void onStartGenerate(Pipe aboutToRunPipe) {
+                if (aboutToRunPipe.getName().equals("end")) {
+                    // both users of the start output have ran
+                    seen.add("start-" + start.made.get(0).released);
+                    seen.add("left-" + left.made.get(0).released);
+                }
+            }
+        });
+        RunContext context = r.newContext();
+        r.run(context);
+        Assert.assertEquals(seen.get(0), "start-true");
+        Assert.assertEquals(seen.get(1), "left-false");
+        Assert.assertTrue(left.made.get(0).released);
+        Assert.assertTrue(right.made.get(0).released);
+        // the last output is kept
+        Assert.assertFalse(end.made.get(0).released);
+        Assert.assertSame(context.getOutput(end), end.made.get(0));
+        Assert.assertNull(context.getOutput(start));
+
+        // a failed run still releases what it made
+        ReleasingPipe failStart = new ReleasingPipe(sreg, "start", false);
+        failStart.attachOutput(new ReleasingPipe(sreg, "fail", true), AttachReturn.NEXT).attachOutput(new ReleasingPipe(sreg, "end", false));
+        try {
+            new Plumber().translate(failStart).run();
+            Assert.fail("Run did not fail");
+        }
+        catch (CoreException e) {
+            // expected
+        }
+        Assert.assertTrue(failStart.made.get(0).released);
+    }
+
+    @Test
+    public void testInputContracts() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        ParamKey<String> name = ParamKey.of("a", String.class);
+        ParamKey<Integer> count = ParamKey.of("b", Integer.class);
+        ParamKey<Object> anything = ParamKey.of("a", Object.class);
+
+        // provided two pipes before (passed through and declared so)
+        KeyedPipe start = new KeyedPipe(sreg, "a", null, ParamKey.listOf(name));
+        start.attachOutput(new KeyedPipe(sreg, "b", null, ParamKey.listOf(name, count)), AttachReturn.NEXT).attachOutput(new KeyedPipe(sreg, "c", ParamKey.listOf(anything, count), null));
+        new Plumber().translate(start).run();
+
+        // only provided two pipes before is not enough
+        start = new KeyedPipe(sreg, "a", null, ParamKey.listOf(name));
+        start.attachOutput(new KeyedPipe(sreg, "b", null, ParamKey.listOf(count)), AttachReturn.NEXT).attachOutput(new KeyedPipe(sreg, "c", ParamKey.listOf(anything, count), null));
+        try {
+            new Plumber().translate(start);
+            Assert.fail("Input declared two pipes before was accepted");
+        }
+        catch (PipeException e) {
+            // expected
+        }
+
+        // a pipe given starting inputs is not checked
+        start = new KeyedPipe(sreg, "a", null, ParamKey.listOf(name));
+        KeyedPipe fed = new KeyedPipe(sreg, "c", ParamKey.listOf(count), null);
+        BackedPipeResult starting = new BackedPipeResult();
+        starting.setParam("b", 1);
+        fed.attachInput(starting);
+        start.attachOutput(fed);
+        new Plumber().translate(start).run();
+
+        // provided with the wrong type
+        start = new KeyedPipe(sreg, "a", null, ParamKey.listOf(name));
+        start.attachOutput(new KeyedPipe(sreg, "c", ParamKey.listOf(ParamKey.of("a", Integer.class)), null));
+        try {
+            new Plumber().translate(start);
+            Assert.fail("Mismatched input was not found");
+        }
+        catch (PipeException e) {
+            // expected
+        }
+
+        // not provided
+        start = new KeyedPipe(sreg, "a", null, ParamKey.listOf(name));
+        start.attachOutput(new KeyedPipe(sreg, "c", ParamKey.listOf(count), null));
+        try {
+            new Plumber().translate(start);
+            Assert.fail("Missing input was not found");
+        }
+        catch (PipeException e) {
+            // expected
+        }
+
+        // undeclared outputs are not checked
+        start = new KeyedPipe(sreg, "a", null, null);
+        start.attachOutput(new KeyedPipe(sreg, "c", ParamKey.listOf(count), null));
+        new Plumber().translate(start);
+    }
+
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        RowsPipe p = new RowsPipe(sreg, "rows");
+        AbstractPlanRunner r = (AbstractPlanRunner) new Plumber().translate(p);
+        r.setMemoryBudget(16 * 1024, null);
+        r.run();
+        OffHeapRows rows = p.rows;
+        Assert.assertTrue(rows.isSpilled());
+        Assert.assertEquals(p.budget.getUsedBytes(), 16 * 1024L);
+        OffHeapRows.Cursor cursor = rows.cursor();
+        long sum = 0;
+        int seen = 0;
+        while (cursor.next()) {
+            sum += cursor.getLong(0);
+            Assert.assertEquals(cursor.getString(1), "row" + seen);
+            seen++;
+        }
+        Assert.assertEquals(seen, 10000);
+        Assert.assertEquals(sum, 49995000L);
+        rows.release();
+        Assert.assertEquals(p.budget.getUsedBytes(), 0L);
+    }
+
+    @Test
+    public void testPlainPipes() throws Exception {
+        ServiceRegistry sreg = new TestServiceRegistry();
+        Pipe start = new PlainPipe("start");
+        CapturePipe end = new CapturePipe("end", sreg);
+        start.attachOutput(new ValuePipe(sreg, "middle", 0), AttachReturn.NEXT).attachOutput(new PlainPipe("plain"), AttachReturn.NEXT).attachOutput(end);
+        new Plumber().translate(start).run();
+        PipeResult captured = end.getCaptured();
+        Assert.assertEquals(captured.getParam("start"), "start");
+        Assert.assertEquals(captured.getParam("middle"), "middle");
+        Assert.assertEquals(captured.getParam("plain"), "plain");
+    }
 }
@@ -0,0 +1,42 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.flow;
+
+import java.util.List;
+
+import com.yahoo.flowetl.core.listener.FlowListener;
+import com.yahoo.flowetl.core.pipe.Pipe;
+import com.yahoo.flowetl.core.pipe.PipeResult;
+
+public class TestFlowListener implements FlowListener
+{
+    @Override
+    public void onCompletion(long timeTakenMs) {
+
+    }
+
+    @Override
+    public void onFinishGenerate(Pipe ranPipe, PipeResult ranResult, long timeTakenMs) {
+
+    }
+
+    @Override
+    public void onStart(List<Pipe> ordering) {
+
+    }
+
+    @Override
+    public void onStartGenerate(Pipe aboutToRunPipe) {
+
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.flow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.result.BackedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.MergedPipeResult;
+import com.yahoo.flowetl.core.pipe.result.ParamSlots;
+import com.yahoo.flowetl.core.util.FingerprintUtils;
+
+@Test
+public class TestPipeResult
+{
+    @Test
+    public void testMerge() {
+        BackedPipeResult a = new BackedPipeResult();
+        a.setParam("a", 1);
+        a.setParam("shared", "a");
+        a.setParam("nothing", null);
+        BackedPipeResult b = new BackedPipeResult();
+        for (int i = 0; i < 100; i++) {
+            b.setParam("b" + i, i);
+        }
+        b.setParam("shared", "b");
+        List<PipeResult> in = new ArrayList<PipeResult>();
+        in.add(a);
+        in.add(b);
+        BackedPipeResult merged = new BackedPipeResult(in);
+        Assert.assertEquals(merged.getParam("a"), Integer.valueOf(1));
+        Assert.assertEquals(merged.getParam("b99"), Integer.valueOf(99));
+        // later results win
+        Assert.assertEquals(merged.getParam("shared"), "b");
+        Assert.assertTrue(merged.isParamExistent("nothing"));
+        Assert.assertNull(merged.getParam("nothing"));
+        Assert.assertFalse(merged.isParamExistent("never-set"));
+        Assert.assertNull(merged.getParam("never-set"));
+        Assert.assertTrue(merged.isParamCastable("a", Number.class));
+        int count = 0;
+        for (Iterator<String> it = merged.iterator(); it.hasNext();) {
+            if (it.next().startsWith("b")) {
+                it.remove();
+            }
+            count++;
+        }
+        Assert.assertEquals(count, 103);
+        Assert.assertFalse(merged.isParamExistent("b5"));
+        Assert.assertTrue(merged.isParamExistent("a"));
+        // the inputs are untouched
+        Assert.assertEquals(a.getParam("shared"), "a");
+        Assert.assertTrue(b.isParamExistent("b5"));
+        merged.clear();
+        Assert.assertFalse(merged.iterator().hasNext());
+    }
+
+    @Test
+    public void testMergedView() {
+        BackedPipeResult a = new BackedPipeResult();
+        a.setParam("a", 1);
+        a.setParam("shared", "a");
+        BackedPipeResult b = new BackedPipeResult();
+        b.setParam("shared", "b");
+        b.setParam("nothing", null);
+        List<PipeResult> in = new ArrayList<PipeResult>();
+        in.add(a);
+        in.add(b);
+        MergedPipeResult view = new MergedPipeResult(in);
+        Assert.assertEquals(view.getParam("shared"), "b");
+        Assert.assertEquals(view.getParam("a"), Integer.valueOf(1));
+        Assert.assertTrue(view.isParamExistent("nothing"));
+        Assert.assertFalse(view.isParamExistent("never-set"));
+        List<String> names = new ArrayList<String>();
+        for (String name : view) {
+            names.add(name);
+        }
+        Assert.assertEquals(names.size(), 3);
+        // writes go to a copy, never to the viewed results
+        view.setParam("shared", "view");
+        view.setParam("c", 3);
+        Assert.assertEquals(view.getParam("shared"), "view");
+        Assert.assertEquals(view.getParam("a"), Integer.valueOf(1));
+        Assert.assertEquals(view.getParam("c"), Integer.valueOf(3));
+        Assert.assertEquals(b.getParam("shared"), "b");
+        Assert.assertFalse(a.isParamExistent("c"));
+    }
+
+    @Test
+    public void testSparse() {
+        for (int i = 0; i < 200; i++) {
+            ParamSlots.slotOf("sparse" + i);
+        }
+        // a result only holds what it was given however many names exist
+        BackedPipeResult a = new BackedPipeResult();
+        a.setParam("sparse199", 199);
+        a.setParam("sparse3", 3);
+        a.setParam("sparse50", 50);
+        BackedPipeResult b = new BackedPipeResult();
+        b.setParam("sparse50", "b");
+        b.setParam("sparse100", 100);
+        a.merge(b);
+        List<String> names = new ArrayList<String>();
+        for (String name : a) {
+            names.add(name);
+        }
+        Assert.assertEquals(names, Arrays.asList("sparse3", "sparse50", "sparse100", "sparse199"));
+        Assert.assertEquals(a.getParam("sparse50"), "b");
+        Assert.assertNull(a.getParam("sparse4"));
+        Iterator<String> it = a.iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (name.equals("sparse50") || name.equals("sparse199")) {
+                it.remove();
+            }
+        }
+        Assert.assertFalse(a.isParamExistent("sparse50"));
+        Assert.assertFalse(a.isParamExistent("sparse199"));
+        Assert.assertEquals(a.getParam("sparse3"), Integer.valueOf(3));
+        Assert.assertEquals(a.getParam("sparse100"), Integer.valueOf(100));
+    }
+
+    private static String fingerprint(String name, Object value) {
+        BackedPipeResult r = new BackedPipeResult();
+        r.setParam(name, value);
+        return FingerprintUtils.fingerprint(r);
+    }
+
+    @Test
+    public void testFingerprint() {
+        Assert.assertEquals(fingerprint("a", Arrays.asList(1, "x")), fingerprint("a", Arrays.asList(1, "x")));
+        Assert.assertFalse(fingerprint("a", Arrays.asList(1, "x")).equals(fingerprint("a", Arrays.asList(1L, "x"))));
+        // dates print without their milliseconds
+        Assert.assertFalse(fingerprint("a", new Date(1000L)).equals(fingerprint("a", new Date(1001L))));
+        Assert.assertFalse(fingerprint("a", new int[] { 1, 2 }).equals(fingerprint("a", new int[] { 1, 3 })));
+        Assert.assertFalse(fingerprint("a", "1,2").equals(fingerprint("a", Arrays.asList("1", "2"))));
+        Map<String, Object> one = new HashMap<String, Object>();
+        Map<String, Object> two = new TreeMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            one.put("k" + i, i);
+            two.put("k" + i, i);
+        }
+        Assert.assertEquals(fingerprint("a", one), fingerprint("a", two));
+        // anything else (even inside a list) has no fingerprint
+        Assert.assertNull(fingerprint("a", new Object()));
+        Assert.assertNull(fingerprint("a", Arrays.asList(1, new StringBuilder("x"))));
+    }
+}
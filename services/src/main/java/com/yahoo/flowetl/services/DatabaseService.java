@@ -13,6 +13,8 @@
 package com.yahoo.flowetl.services;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 import com.yahoo.flowetl.core.services.Service;
 
@@ -55,4 +57,24 @@ public abstract class DatabaseService implements Service
      */
     public abstract Connection getConnection(String dbDsn);
 
+    /**
+     * Prepares the given sql on a connection fetched from this service for the
+     * given dsn. Implementations that can reuse statements prepared before
+     * (so that the database does not parse and plan the same sql again) should
+     * do so here, the statement is always closed by the caller when done.
+     * 
+     * @param dbDsn
+     * @param con
+     * @param sql
+     * @param resultSetType
+     * @param resultSetConcurrency
+     * 
+     * @return the prepared statement
+     * 
+     * @throws SQLException
+     */
+    public PreparedStatement prepareStatement(String dbDsn, Connection con, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return con.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
 }
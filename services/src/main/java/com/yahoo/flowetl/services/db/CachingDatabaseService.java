@@ -13,21 +13,31 @@
 package com.yahoo.flowetl.services.db;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-
-import javax.sql.DataSource;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.mchange.v2.c3p0.DataSources;
+import com.mchange.v2.c3p0.PoolConfig;
 import com.mchange.v2.c3p0.PooledDataSource;
 import com.yahoo.flowetl.core.CoreException;
 import com.yahoo.flowetl.core.Logger;
 import com.yahoo.flowetl.core.Logger.Level;
+import com.yahoo.flowetl.core.runner.ThreadPerPipeExecutor;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.services.ConfigService;
 import com.yahoo.flowetl.services.DatabaseService;
+import com.yahoo.flowetl.services.config.DummyConfigService;
 
 /**
  * A caching database service that keeps connections for a given jndi dsn in a
@@ -35,6 +45,29 @@ import com.yahoo.flowetl.services.DatabaseService;
  * reconnect if a connection times out so that the map can remain valid
  * throughout your running (even if you run for a long time...).
  * 
+ * Since a dsn (a jdbc url) can not be part of a config key (it has the
+ * separators of most config formats in it, and often credentials) the dsns
+ * that need their own settings are given a name, the names are listed under
+ * db.pool.names and the dsn of each is read from db.pool.&lt;name&gt;.dsn.
+ * A named dsn can then be asked for by its name or by its dsn (both use the
+ * same pool).
+ * 
+ * Each dsn can also get a statement cache, statements prepared through this
+ * service are then kept prepared by the pooled connections so that preparing
+ * the same sql again on the same connection does not have the database parse
+ * and plan it again. The size of that cache (per connection) is read from the
+ * config key db.pool.&lt;name&gt;.statementcache (or db.pool.statementcache
+ * for all dsns), it is off unless configured. The pool does not say how often
+ * it reused a statement, so each dsn also gets a statement tracker which
+ * counts how often the same sql was prepared again.
+ * 
+ * The other pool settings are read the same way (ie db.pool.&lt;name&gt;.maxpoolsize
+ * or db.pool.maxpoolsize), those not configured use the c3p0 defaults. Only one
+ * pool is ever made per dsn even when many threads ask for the same dsn at
+ * once, and the pools of the dsns (or names) listed under db.pool.warmup can
+ * be made (and filled) up front (in the background) so that the first queries
+ * do not all wait on new connections at the same time.
+ * 
  * @see http://www.mchange.com/projects/c3p0/index.html
  * 
  * @author Joshua Harlow
@@ -44,15 +77,297 @@ public class CachingDatabaseService extends DatabaseService
     // logging....
     private static final Logger logger = new Logger(CachingDatabaseService.class);
 
+    // config keys (looked up under db.pool.<name>. first, then db.pool.)
+    public static final String CFG_PREFIX = "db.pool.";
+    public static final String CFG_NAMES = CFG_PREFIX + "names";
+    public static final String CFG_DSN = "dsn";
+    public static final String CFG_STATEMENT_CACHE = "statementcache";
+    public static final String CFG_INITIAL_POOL_SIZE = "initialpoolsize";
+    public static final String CFG_MIN_POOL_SIZE = "minpoolsize";
+    public static final String CFG_MAX_POOL_SIZE = "maxpoolsize";
+    public static final String CFG_ACQUIRE_INCREMENT = "acquireincrement";
+    public static final String CFG_MAX_IDLE_TIME = "maxidletime";
+    public static final String CFG_CHECKOUT_TIMEOUT = "checkouttimeout";
+    public static final String CFG_WARMUP = CFG_PREFIX + "warmup";
+
+    /** The executor that warms up the pools (a thread per dsn). */
+    private static final ExecutorService WARMUP_EXECUTOR = new ThreadPerPipeExecutor("warmup");
+
+    /** The statements each pooled connection keeps if not configured. */
+    public static final int DEFAULT_STATEMENT_CACHE = 0;
+
     /** The connection cache. */
-    private Map<String, DataSource> conCache;
+    private final ConcurrentMap<String, PooledDataSource> conCache;
+
+    /** Held while making a pool (so only one is made per dsn). */
+    private final Object poolLock;
+
+    /** The statement tracker of each dsn. */
+    private final ConcurrentMap<String, StatementTracker> stmtTrackers;
+
+    /** The config the pools are made with. */
+    private final ConfigService config;
+
+    /** The dsn of each configured name. */
+    private final Map<String, String> dsnsByName;
+
+    /** The configured name of each named dsn. */
+    private final Map<String, String> namesByDsn;
 
     /**
-     * Instantiates a new caching database service.
+     * Instantiates a new caching database service (with the default pool
+     * settings).
      */
     public CachingDatabaseService() {
+        this(new DummyConfigService());
+    }
+
+    /**
+     * Instantiates a new caching database service which reads its pool
+     * settings from the config service of the given registry (if any).
+     * 
+     * @param reg
+     */
+    public CachingDatabaseService(ServiceRegistry reg) {
+        this(reg.getService(ConfigService.class) == null ? new DummyConfigService() : reg.getService(ConfigService.class));
+    }
+
+    /**
+     * Instantiates a new caching database service.
+     * 
+     * @param config
+     *            where the pool settings are read from
+     */
+    public CachingDatabaseService(ConfigService config) {
         super();
-        this.conCache = new ConcurrentHashMap<String, DataSource>();
+        if (config == null) {
+            throw new IllegalArgumentException("No valid config service provided");
+        }
+        this.config = config;
+        this.conCache = new ConcurrentHashMap<String, PooledDataSource>();
+        this.poolLock = new Object();
+        this.stmtTrackers = new ConcurrentHashMap<String, StatementTracker>();
+        this.dsnsByName = new HashMap<String, String>();
+        this.namesByDsn = new HashMap<String, String>();
+        List<String> names = config.getList(CFG_NAMES);
+        if (names != null) {
+            for (String name : names) {
+                if (StringUtils.isBlank(name)) {
+                    continue;
+                }
+                name = name.trim();
+                String dsn = config.getString(CFG_PREFIX + name + "." + CFG_DSN, null);
+                if (StringUtils.isBlank(dsn)) {
+                    throw new IllegalArgumentException("No dsn configured for db pool name " + name);
+                }
+                dsnsByName.put(name, dsn.trim());
+                namesByDsn.put(dsn.trim(), name);
+            }
+        }
+    }
+
+    /**
+     * Gets the dsn the given dsn (or configured name) refers to.
+     * 
+     * @param dbDsn
+     * 
+     * @return the dsn
+     */
+    protected String resolveDsn(String dbDsn) {
+        String dsn = dsnsByName.get(dbDsn);
+        if (dsn == null) {
+            return dbDsn;
+        }
+        return dsn;
+    }
+
+    /**
+     * Gets the integer config for the given dsn (or configured name), looking
+     * at the key for the name of that dsn first (if it has one) and then at
+     * the key for all dsns.
+     * 
+     * @param dbDsn
+     * @param key
+     * @param def
+     * 
+     * @return the integer (or the default if neither is there)
+     */
+    protected Integer getDsnInteger(String dbDsn, String key, Integer def) {
+        String name = namesByDsn.get(resolveDsn(dbDsn));
+        Integer val = null;
+        if (name != null) {
+            val = config.getInteger(CFG_PREFIX + name + "." + key, null);
+        }
+        if (val == null) {
+            val = config.getInteger(CFG_PREFIX + key, def);
+        }
+        return val;
+    }
+
+    /**
+     * Gets the statement tracker of the given dsn.
+     * 
+     * @param dbDsn
+     * 
+     * @return the statement tracker
+     */
+    public StatementTracker getStatementTracker(String dbDsn) {
+        dbDsn = resolveDsn(dbDsn);
+        StatementTracker tracker = stmtTrackers.get(dbDsn);
+        if (tracker == null) {
+            int size = getDsnInteger(dbDsn, CFG_STATEMENT_CACHE, DEFAULT_STATEMENT_CACHE);
+            tracker = new StatementTracker(Math.max(0, size));
+            StatementTracker had = stmtTrackers.putIfAbsent(dbDsn, tracker);
+            if (had != null) {
+                tracker = had;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Makes the pool config of the given dsn.
+     * 
+     * @param dbDsn
+     * 
+     * @return the pool config
+     */
+    protected PoolConfig makePoolConfig(String dbDsn) {
+        PoolConfig poolCfg = new PoolConfig();
+        poolCfg.setMaxStatementsPerConnection(getStatementTracker(dbDsn).getMaxStatements());
+        Integer val = getDsnInteger(dbDsn, CFG_INITIAL_POOL_SIZE, null);
+        if (val != null) {
+            poolCfg.setInitialPoolSize(val);
+        }
+        val = getDsnInteger(dbDsn, CFG_MIN_POOL_SIZE, null);
+        if (val != null) {
+            poolCfg.setMinPoolSize(val);
+        }
+        val = getDsnInteger(dbDsn, CFG_MAX_POOL_SIZE, null);
+        if (val != null) {
+            poolCfg.setMaxPoolSize(val);
+        }
+        val = getDsnInteger(dbDsn, CFG_ACQUIRE_INCREMENT, null);
+        if (val != null) {
+            poolCfg.setAcquireIncrement(val);
+        }
+        val = getDsnInteger(dbDsn, CFG_MAX_IDLE_TIME, null);
+        if (val != null) {
+            // in seconds
+            poolCfg.setMaxIdleTime(val);
+        }
+        val = getDsnInteger(dbDsn, CFG_CHECKOUT_TIMEOUT, null);
+        if (val != null) {
+            // in milliseconds
+            poolCfg.setCheckoutTimeout(val);
+        }
+        return poolCfg;
+    }
+
+    /**
+     * Makes a new pool for the given dsn.
+     * 
+     * @param dbDsn
+     * 
+     * @return the pooled data source
+     * 
+     * @throws SQLException
+     */
+    protected PooledDataSource makePool(String dbDsn) throws SQLException {
+        return (PooledDataSource) DataSources.pooledDataSource(DataSources.unpooledDataSource(resolveDsn(dbDsn)), makePoolConfig(dbDsn));
+    }
+
+    /**
+     * Gets the pool of the given dsn, making it if this is the first time the
+     * dsn is used.
+     * 
+     * @param dbDsn
+     * 
+     * @return the pooled data source
+     */
+    protected PooledDataSource getPool(String dbDsn) {
+        dbDsn = resolveDsn(dbDsn);
+        PooledDataSource dsP = conCache.get(dbDsn);
+        if (dsP != null) {
+            return dsP;
+        }
+        synchronized (poolLock) {
+            dsP = conCache.get(dbDsn);
+            if (dsP == null) {
+                if (logger.isEnabled(Level.INFO)) {
+                    logger.log(Level.INFO, "Making connection pool for dsn " + dbDsn);
+                }
+                try {
+                    dsP = makePool(dbDsn);
+                }
+                catch (SQLException e) {
+                    throw new CoreException("Unable to get db connection to " + dbDsn + "", e);
+                }
+                conCache.put(dbDsn, dsP);
+            }
+        }
+        return dsP;
+    }
+
+    /**
+     * Starts making the pools of the dsns listed in the config (under the
+     * warmup key) and having each fetch its initial connections now instead of
+     * on their first query. Each dsn is warmed up on its own (daemon) thread so
+     * that a dsn which is slow or can not be reached (which can take as long as
+     * the checkout timeout and acquire retries of its pool allow) does not hold
+     * up the caller. A dsn that can not be warmed up is logged and skipped (it
+     * will be tried again on its first use).
+     * 
+     * @return the warm ups that were started (one per dsn) for those that want
+     *         to wait on them
+     */
+    public List<Future<?>> warmUp() {
+        List<Future<?>> started = new ArrayList<Future<?>>();
+        List<String> dsns = config.getList(CFG_WARMUP);
+        if (dsns == null) {
+            return started;
+        }
+        for (String dbDsn : dsns) {
+            if (StringUtils.isBlank(dbDsn)) {
+                continue;
+            }
+            final String dsn = dbDsn.trim();
+            started.add(WARMUP_EXECUTOR.submit(new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        warmUp(dsn);
+                    }
+                    catch (RuntimeException e) {
+                        if (logger.isEnabled(Level.WARN)) {
+                            logger.log(Level.WARN, e, "Unable to warm up connection pool for dsn " + dsn);
+                        }
+                    }
+                }
+            }));
+        }
+        return started;
+    }
+
+    /**
+     * Makes the pool of the given dsn and has it fetch its initial
+     * connections.
+     * 
+     * @param dbDsn
+     */
+    public void warmUp(String dbDsn) {
+        if (StringUtils.isEmpty(dbDsn)) {
+            throw new IllegalArgumentException("Invalid db dsn " + dbDsn);
+        }
+        // the first checkout fills the pool to its initial size
+        Connection con = getConnection(dbDsn);
+        try {
+            con.close();
+        }
+        catch (SQLException e) {
+            throw new CoreException("Unable to warm up connection pool for dsn " + dbDsn, e);
+        }
     }
 
     /*
@@ -68,16 +383,7 @@ public class CachingDatabaseService extends DatabaseService
             throw new IllegalArgumentException("Invalid db dsn " + dbDsn);
         }
         logger.log(Level.INFO, "Fetching datasource for dsn %s", dbDsn);
-        PooledDataSource dsP = (PooledDataSource) conCache.get(dbDsn);
-        if (dsP == null) {
-            try {
-                dsP = (PooledDataSource) DataSources.pooledDataSource(DataSources.unpooledDataSource(dbDsn));
-            }
-            catch (SQLException e) {
-                throw new CoreException("Unable to get db connection to " + dbDsn + "", e);
-            }
-            conCache.put(dbDsn, dsP);
-        }
+        PooledDataSource dsP = getPool(dbDsn);
         try {
             return dsP.getConnection();
         }
@@ -86,6 +392,24 @@ public class CachingDatabaseService extends DatabaseService
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.yahoo.flowetl.services.DatabaseService#prepareStatement(java.lang
+     * .String, java.sql.Connection, java.lang.String, int, int)
+     */
+    @Override
+    public PreparedStatement prepareStatement(String dbDsn, Connection con, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        StatementTracker tracker = getStatementTracker(dbDsn);
+        boolean repeat = tracker.prepared(StatementTracker.makeKey(sql, resultSetType, resultSetConcurrency));
+        if (logger.isEnabled(Level.DEBUG)) {
+            logger.log(Level.DEBUG, "Preparing " + sql + " on dsn " + dbDsn + (repeat ? " (repeated)" : ""));
+        }
+        // the pooled connection hands back the statement it kept (if any)
+        return con.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -93,7 +417,7 @@ public class CachingDatabaseService extends DatabaseService
      */
     @Override
     public void shutdown() {
-        for (Entry<String, DataSource> e : conCache.entrySet()) {
+        for (Entry<String, PooledDataSource> e : conCache.entrySet()) {
             try {
                 DataSources.destroy(e.getValue());
             }
@@ -104,6 +428,7 @@ public class CachingDatabaseService extends DatabaseService
             }
         }
         conCache.clear();
+        stmtTrackers.clear();
     }
 
 }
@@ -0,0 +1,166 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.services.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the sql prepared on a single dsn. This caches nothing, the statements
+ * themselves are cached by the connection pool of that dsn (each pooled
+ * connection keeps up to the max statements given here prepared, so closing a
+ * statement hands it back to that connection instead of closing it on the
+ * database, and the pool does not expose how often that happens). This only
+ * remembers the same amount of the most recently prepared sql of the dsn (in
+ * least recently used order) to count how often the same sql is prepared again
+ * (a repeat) versus prepared for the first time in a while.
+ * 
+ * Those are counts of repeated sql only, not of statements the pool reused.
+ * Since the pool keeps statements per connection a repeat still has the
+ * database prepare it again when it is prepared on a connection which has not
+ * prepared it before (or has since dropped it).
+ * 
+ * @author Joshua Harlow
+ */
+public class StatementTracker
+{
+    /** The most recently prepared sql (in least recently used order). */
+    private final Map<String, Boolean> recent;
+
+    /** The maximum amount of statements the pool keeps. */
+    private final int maxStatements;
+
+    /** The amount of sql prepared again while remembered. */
+    private final AtomicLong repeats;
+
+    /** The amount of sql prepared while not remembered. */
+    private final AtomicLong firstSeen;
+
+    /**
+     * Instantiates a new statement tracker.
+     * 
+     * @param maxStatements
+     *            the maximum amount of statements the pool keeps (and so the
+     *            amount of sql to remember, or zero for none)
+     */
+    @SuppressWarnings("serial")
+    public StatementTracker(final int maxStatements) {
+        if (maxStatements < 0) {
+            throw new IllegalArgumentException("Statement tracker size can not be negative");
+        }
+        this.maxStatements = maxStatements;
+        this.repeats = new AtomicLong();
+        this.firstSeen = new AtomicLong();
+        this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxStatements;
+            }
+        };
+    }
+
+    /**
+     * Makes the key a statement is tracked under.
+     * 
+     * @param sql
+     * @param resultSetType
+     * @param resultSetConcurrency
+     * 
+     * @return the key
+     */
+    public static String makeKey(String sql, int resultSetType, int resultSetConcurrency) {
+        return resultSetType + ":" + resultSetConcurrency + ":" + sql;
+    }
+
+    /**
+     * Records that the statement with the given key is being prepared.
+     * 
+     * @param key
+     * 
+     * @return true if the same sql was prepared recently (a repeat)
+     */
+    public boolean prepared(String key) {
+        boolean repeat = false;
+        synchronized (recent) {
+            repeat = (recent.put(key, Boolean.TRUE) != null);
+        }
+        if (repeat) {
+            repeats.incrementAndGet();
+        }
+        else {
+            firstSeen.incrementAndGet();
+        }
+        return repeat;
+    }
+
+    /**
+     * Gets the max statements.
+     * 
+     * @return the maximum amount of statements the pool keeps
+     */
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * Gets how many statements are remembered.
+     * 
+     * @return the size
+     */
+    public int size() {
+        synchronized (recent) {
+            return recent.size();
+        }
+    }
+
+    /**
+     * Gets the repeats, this is not how many statements the pool reused (see
+     * above) but how many times sql was prepared again while remembered here.
+     * 
+     * @return how many times the same sql was prepared again while remembered
+     */
+    public long getRepeats() {
+        return repeats.get();
+    }
+
+    /**
+     * Gets the first seen.
+     * 
+     * @return how many times sql was prepared while not remembered
+     */
+    public long getFirstSeen() {
+        return firstSeen.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [maxStatements=");
+        builder.append(maxStatements);
+        builder.append(", size=");
+        builder.append(size());
+        builder.append(", repeats=");
+        builder.append(getRepeats());
+        builder.append(", firstSeen=");
+        builder.append(getFirstSeen());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -83,10 +83,14 @@ public class ServiceFactory
         reg.registerService(new CompositeConfigService(cfgs));
 
         // add the rest in
-        reg.registerService(new CachingDatabaseService());
+        CachingDatabaseService dbService = new CachingDatabaseService(reg);
+        reg.registerService(dbService);
         reg.registerService(new HttpService(reg));
         reg.registerService(new MapMemoryService());
 
+        // start filling the configured pools (in the background)
+        dbService.warmUp();
+
         return reg;
     }
 }
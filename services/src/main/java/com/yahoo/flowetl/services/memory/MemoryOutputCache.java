@@ -0,0 +1,122 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.services.memory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.yahoo.flowetl.core.pipe.PipeResult;
+import com.yahoo.flowetl.core.pipe.cache.OutputCache;
+import com.yahoo.flowetl.services.MemoryService;
+
+/**
+ * A output cache which stores its outputs in a memory service (so that they
+ * are shared with anyone else using that service). Since a memory service is
+ * not bounded this cache remembers the keys it has stored and removes the
+ * least recently used one from the service when it has stored too many.
+ * 
+ * @author Joshua Harlow
+ */
+public class MemoryOutputCache implements OutputCache
+{
+    /** The prefix of the keys stored in the memory service. */
+    private static final String KEY_PREFIX = "output-cache:";
+
+    /** The memory service the outputs are stored in. */
+    private final MemoryService memory;
+
+    /** The keys we have stored (in least recently used order). */
+    private final Map<String, Boolean> keys;
+
+    /** The maximum amount of outputs to store. */
+    private final int maxEntries;
+
+    /**
+     * Instantiates a new memory output cache.
+     * 
+     * @param memory
+     *            the memory service to store outputs in
+     * @param maxEntries
+     *            the maximum amount of outputs to store
+     */
+    @SuppressWarnings("serial")
+    public MemoryOutputCache(MemoryService memory, final int maxEntries) {
+        if (memory == null) {
+            throw new IllegalArgumentException("No valid memory service provided");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        this.memory = memory;
+        this.maxEntries = maxEntries;
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                if (size() > maxEntries) {
+                    MemoryOutputCache.this.memory.removeObject(KEY_PREFIX + eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.cache.OutputCache#get(java.lang.String)
+     */
+    @Override
+    public synchronized PipeResult get(String key) {
+        if (keys.get(key) == null) {
+            return null;
+        }
+        Object out = memory.getObject(KEY_PREFIX + key);
+        if (out instanceof PipeResult) {
+            return (PipeResult) out;
+        }
+        // someone else removed (or replaced) it
+        keys.remove(key);
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.yahoo.flowetl.core.pipe.cache.OutputCache#put(java.lang.String,
+     * com.yahoo.flowetl.core.pipe.PipeResult)
+     */
+    @Override
+    public synchronized void put(String key, PipeResult output) {
+        if (output == null) {
+            return;
+        }
+        memory.putObject(KEY_PREFIX + key, output);
+        keys.put(key, Boolean.TRUE);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(super.toString() + " [maxEntries=");
+        builder.append(maxEntries);
+        builder.append("]");
+        return builder.toString();
+    }
+}
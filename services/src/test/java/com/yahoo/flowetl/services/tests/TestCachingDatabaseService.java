@@ -0,0 +1,268 @@
+/*******************************************************
+ *                                                     *
+ * Copyright (C) 2011 Yahoo! Inc. All Rights Reserved. *
+ *                                                     *
+ *                Licensed under the New               *
+ *                 BSD License. See the                *
+ *              accompanying LICENSE file              *
+ *              for the specific language              *
+ *              governing permissions and              *
+ *                limitations under the                *
+ *                       License.                      *
+ *******************************************************/
+package com.yahoo.flowetl.services.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mchange.v2.c3p0.PoolConfig;
+import com.mchange.v2.c3p0.PooledDataSource;
+import com.yahoo.flowetl.core.services.ServiceRegistry;
+import com.yahoo.flowetl.services.DatabaseService;
+import com.yahoo.flowetl.services.config.DummyConfigService;
+import com.yahoo.flowetl.services.db.CachingDatabaseService;
+import com.yahoo.flowetl.services.db.StatementTracker;
+import com.yahoo.flowetl.services.factory.ServiceFactory;
+
+@Test
+public class TestCachingDatabaseService
+{
+    private static class SizedConfigService extends DummyConfigService
+    {
+        @Override
+        public Integer getInteger(String keyPath, Integer def) {
+            if ("db.pool.statementcache".equals(keyPath)) {
+                return 2;
+            }
+            if ("db.pool.maxpoolsize".equals(keyPath)) {
+                return 7;
+            }
+            if ("db.pool.special.maxpoolsize".equals(keyPath)) {
+                return 3;
+            }
+            return def;
+        }
+
+        @Override
+        public List<String> getList(String keyPath) {
+            if ("db.pool.names".equals(keyPath)) {
+                return Arrays.asList("special");
+            }
+            return null;
+        }
+
+        @Override
+        public String getString(String keyPath, String def) {
+            if ("db.pool.special.dsn".equals(keyPath)) {
+                return "jdbc:sqlite::memory:";
+            }
+            return def;
+        }
+    }
+
+    private static class CountingDatabaseService extends CachingDatabaseService
+    {
+        private final AtomicInteger made = new AtomicInteger();
+
+        public CountingDatabaseService() {
+            super(new SizedConfigService());
+        }
+
+        @Override
+        protected PooledDataSource makePool(String dbDsn) throws SQLException {
+            made.incrementAndGet();
+            return super.makePool(dbDsn);
+        }
+
+        @Override
+        protected PoolConfig makePoolConfig(String dbDsn) {
+            return super.makePoolConfig(dbDsn);
+        }
+    }
+
+    private static void prepare(CachingDatabaseService dbService, String dsn, String sql) throws Exception {
+        Connection con = dbService.getConnection(dsn);
+        PreparedStatement st = dbService.prepareStatement(dsn, con, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ResultSet rs = st.executeQuery();
+        Assert.assertTrue(rs.next());
+        rs.close();
+        st.close();
+        con.close();
+    }
+
+    @Test
+    public void testStatementTracker() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        File db = File.createTempFile("cache", ".db");
+        db.deleteOnExit();
+        String dsn = "jdbc:sqlite:" + db.getAbsolutePath();
+        CachingDatabaseService dbService = new CachingDatabaseService(new SizedConfigService());
+        try {
+            prepare(dbService, dsn, "select 1");
+            prepare(dbService, dsn, "select 1");
+            prepare(dbService, dsn, "select 2");
+            // pushes out the least recently used
+            prepare(dbService, dsn, "select 3");
+            prepare(dbService, dsn, "select 1");
+            StatementTracker tracker = dbService.getStatementTracker(dsn);
+            Assert.assertEquals(tracker.getMaxStatements(), 2);
+            Assert.assertEquals(tracker.size(), 2);
+            Assert.assertEquals(tracker.getRepeats(), 1L);
+            Assert.assertEquals(tracker.getFirstSeen(), 4L);
+        }
+        finally {
+            dbService.shutdown();
+        }
+        db.delete();
+    }
+
+    @Test
+    public void testPoolConfig() throws Exception {
+        CountingDatabaseService dbService = new CountingDatabaseService();
+        Assert.assertEquals(dbService.makePoolConfig("special").getMaxPoolSize(), 3);
+        // a named dsn gets the settings of its name either way it is asked for
+        Assert.assertEquals(dbService.makePoolConfig("jdbc:sqlite::memory:").getMaxPoolSize(), 3);
+        Assert.assertEquals(dbService.makePoolConfig("other").getMaxPoolSize(), 7);
+        Assert.assertEquals(dbService.makePoolConfig("other").getMaxStatementsPerConnection(), 2);
+        // statements are not kept unless configured
+        CachingDatabaseService plain = new CachingDatabaseService(new DummyConfigService());
+        Assert.assertEquals(plain.getStatementTracker("other").getMaxStatements(), 0);
+    }
+
+    @Test
+    public void testOnePoolPerDsn() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        File db = File.createTempFile("cache", ".db");
+        db.deleteOnExit();
+        final String dsn = "jdbc:sqlite:" + db.getAbsolutePath();
+        final CountingDatabaseService dbService = new CountingDatabaseService();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread()
+            {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        dbService.getConnection(dsn).close();
+                    }
+                    catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        try {
+            Assert.assertEquals(failed.get(), 0);
+            Assert.assertEquals(dbService.made.get(), 1);
+        }
+        finally {
+            dbService.shutdown();
+        }
+        db.delete();
+    }
+
+    @Test
+    public void testAsyncWarmUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        File db = File.createTempFile("cache", ".db");
+        db.deleteOnExit();
+        final String dsn = "jdbc:sqlite:" + db.getAbsolutePath();
+        final CountDownLatch reachable = new CountDownLatch(1);
+        final AtomicInteger warmed = new AtomicInteger();
+        CachingDatabaseService dbService = new CachingDatabaseService(new DummyConfigService()
+        {
+            @Override
+            public List<String> getList(String keyPath) {
+                if (CachingDatabaseService.CFG_WARMUP.equals(keyPath)) {
+                    return Arrays.asList(dsn, " ");
+                }
+                return null;
+            }
+        })
+        {
+            @Override
+            public void warmUp(String dbDsn) {
+                try {
+                    // like a dsn that takes a long time to reach
+                    reachable.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.warmUp(dbDsn);
+                warmed.incrementAndGet();
+            }
+        };
+        try {
+            // gives back right away even though the dsn is not reachable yet
+            List<Future<?>> started = dbService.warmUp();
+            Assert.assertEquals(started.size(), 1);
+            Assert.assertEquals(warmed.get(), 0);
+            reachable.countDown();
+            started.get(0).get();
+            Assert.assertEquals(warmed.get(), 1);
+        }
+        finally {
+            dbService.shutdown();
+        }
+        db.delete();
+    }
+
+    @Test
+    public void testNamedPoolsFromFile() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        File db = File.createTempFile("cache", ".db");
+        db.deleteOnExit();
+        String dsn = "jdbc:sqlite:" + db.getAbsolutePath();
+        File cfg = File.createTempFile("cache", ".properties");
+        cfg.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(cfg));
+        out.println("db.pool.names = reports");
+        out.println("db.pool.reports.dsn = " + dsn);
+        out.println("db.pool.reports.maxpoolsize = 3");
+        out.println("db.pool.reports.statementcache = 5");
+        out.println("db.pool.statementcache = 2");
+        out.close();
+        ServiceRegistry reg = new ServiceFactory().makeRegistry(cfg.getAbsolutePath());
+        try {
+            CachingDatabaseService dbService = (CachingDatabaseService) reg.getService(DatabaseService.class);
+            prepare(dbService, "reports", "select 1");
+            // the name and the dsn are the same pool
+            prepare(dbService, dsn, "select 1");
+            StatementTracker tracker = dbService.getStatementTracker("reports");
+            Assert.assertSame(dbService.getStatementTracker(dsn), tracker);
+            Assert.assertEquals(tracker.getMaxStatements(), 5);
+            Assert.assertEquals(tracker.getRepeats(), 1L);
+            // other dsns only get the shared settings
+            Assert.assertEquals(dbService.getStatementTracker("jdbc:sqlite::memory:").getMaxStatements(), 2);
+        }
+        finally {
+            reg.shutdownServices();
+        }
+        cfg.delete();
+        db.delete();
+    }
+}